@@ -0,0 +1,37 @@
+program bubble;
+var a: array[0..299] of integer;
+var i: integer;
+var j: integer;
+var t: integer;
+var seed: integer;
+var sorted: integer;
+
+begin
+    seed := 42;
+    for i := 0 to 299 do
+    begin
+        seed := seed * 1103515245 + 12345;
+        a[i] := seed div 65536;
+    end;
+
+    for i := 0 to 298 do
+    begin
+        for j := 0 to 298 do
+        begin
+            if a[j] > a[j + 1] then
+                t := a[j];
+                a[j] := a[j + 1];
+                a[j + 1] := t;
+        end;
+    end;
+
+    sorted := 0;
+    for i := 0 to 298 do
+    begin
+        if a[i] <= a[i + 1] then sorted := sorted + 1;
+    end;
+    writeln(sorted);
+    writeln(a[0]);
+    writeln(a[150]);
+    writeln(a[299]);
+end.
@@ -0,0 +1,25 @@
+program fibonacci;
+var round: integer;
+var i: integer;
+var a: integer;
+var b: integer;
+var t: integer;
+var checksum: integer;
+
+begin
+    checksum := 0;
+    for round := 1 to 2000 do
+    begin
+        a := 0;
+        b := 1;
+        for i := 1 to 46 do
+        begin
+            t := a + b;
+            a := b;
+            b := t;
+        end;
+        checksum := checksum + a;
+    end;
+    writeln(a);
+    writeln(checksum);
+end.
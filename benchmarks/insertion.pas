@@ -0,0 +1,46 @@
+program insertion;
+var a: array[0..499] of integer;
+var i: integer;
+var k: integer;
+var position: integer;
+var key: integer;
+var t: integer;
+var seed: integer;
+var sorted: integer;
+
+begin
+    seed := 7;
+    for i := 0 to 499 do
+    begin
+        seed := seed * 1103515245 + 12345;
+        a[i] := seed div 65536;
+    end;
+
+    for i := 1 to 499 do
+    begin
+        key := a[i];
+        position := 0;
+        while a[position] <= key do
+        begin
+            position := position + 1;
+        end;
+        k := position;
+        while k <= i do
+        begin
+            t := a[k];
+            a[k] := key;
+            key := t;
+            k := k + 1;
+        end;
+    end;
+
+    sorted := 0;
+    for i := 0 to 498 do
+    begin
+        if a[i] <= a[i + 1] then sorted := sorted + 1;
+    end;
+    writeln(sorted);
+    writeln(a[0]);
+    writeln(a[250]);
+    writeln(a[499]);
+end.
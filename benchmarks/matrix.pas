@@ -0,0 +1,42 @@
+program matrix;
+var a: array[0..1023] of integer;
+var b: array[0..1023] of integer;
+var c: array[0..1023] of integer;
+var i: integer;
+var j: integer;
+var k: integer;
+var sum: integer;
+var checksum: integer;
+
+begin
+    for i := 0 to 31 do
+    begin
+        for j := 0 to 31 do
+        begin
+            a[i * 32 + j] := i + j;
+            b[i * 32 + j] := i * j + 1;
+        end;
+    end;
+
+    for i := 0 to 31 do
+    begin
+        for j := 0 to 31 do
+        begin
+            sum := 0;
+            for k := 0 to 31 do
+            begin
+                sum := sum + a[i * 32 + k] * b[k * 32 + j];
+            end;
+            c[i * 32 + j] := sum;
+        end;
+    end;
+
+    checksum := 0;
+    for i := 0 to 1023 do
+    begin
+        checksum := checksum * 31 + c[i];
+    end;
+    writeln(c[0]);
+    writeln(c[1023]);
+    writeln(checksum);
+end.
@@ -0,0 +1,33 @@
+program sieve;
+var flags: array[0..20000] of integer;
+var i: integer;
+var j: integer;
+var round: integer;
+var primes: integer;
+
+begin
+    for round := 1 to 10 do
+    begin
+        for i := 0 to 20000 do
+        begin
+            flags[i] := 0;
+        end;
+        for i := 2 to 141 do
+        begin
+            if flags[i] = 0 then
+                j := i * i;
+                while j <= 20000 do
+                begin
+                    flags[j] := 1;
+                    j := j + i;
+                end;
+        end;
+    end;
+
+    primes := 0;
+    for i := 2 to 20000 do
+    begin
+        if flags[i] = 0 then primes := primes + 1;
+    end;
+    writeln(primes);
+end.
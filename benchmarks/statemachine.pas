@@ -0,0 +1,43 @@
+program stateMachine;
+var state: integer;
+var input: integer;
+var seed: integer;
+var step: integer;
+var accepted: integer;
+var visits: array[0..7] of integer;
+
+begin
+    state := 0;
+    seed := 1;
+    accepted := 0;
+    for step := 0 to 7 do
+    begin
+        visits[step] := 0;
+    end;
+
+    for step := 1 to 50000 do
+    begin
+        seed := seed * 1103515245 + 12345;
+        input := seed div 536870912 + 4;
+        visits[state] := visits[state] + 1;
+
+        case (state) of
+            0 : if input > 3 then state := 1 else state := 2;
+            1 : if input > 5 then state := 3 else state := 0;
+            2 : if input < 2 then state := 4 else state := 5;
+            3 : state := 6;
+            4 : if input = 7 then state := 7 else state := 2;
+            5 : if input > 1 then state := 1 else state := 6;
+            6 : if input < 4 then state := 0 else state := 7;
+            7 :
+                accepted := accepted + 1;
+                state := 0;
+        end;
+    end;
+
+    writeln(accepted);
+    for step := 0 to 7 do
+    begin
+        writeln(visits[step]);
+    end;
+end.
@@ -0,0 +1,9 @@
+program writelnLoop;
+var i: integer;
+
+begin
+    for i := 1 to 5000 do
+    begin
+        writeln('n', ' ', i, ' ', i * 7919);
+    end;
+end.
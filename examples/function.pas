@@ -0,0 +1,24 @@
+program functionProgram;
+var n: integer;
+
+function power(base, k, n: integer): integer;
+    begin
+        if k = n then power := 1 else power := base * power(base, k + 1, n);
+    end;
+
+function fib(k, n, a, b: integer): integer;
+    begin
+        if k = n then fib := a else fib := fib(k + 1, n, b, a + b);
+    end;
+
+function sum(k, n, total: integer): integer;
+    begin
+        if k > n then sum := total else sum := sum(k + 1, n, total + k);
+    end;
+
+begin
+    n := 10;
+    writeln(power(2, 0, n));
+    writeln(fib(0, n, 0, 1));
+    writeln(sum(1, 50000, 0));
+end.
@@ -0,0 +1,23 @@
+program setProgram;
+var primes: set of 0..100;
+var odd: set of 0..100;
+var i: integer;
+var count: integer;
+
+
+begin
+    primes := [2, 3, 5, 7, 11, 13, 17, 19, 23, 29];
+    odd := [];
+    for i := 0 to 49 do
+    begin
+        odd := odd + [i * 2 + 1];
+    end;
+
+    count := 0;
+    for i := 0 to 100 do
+    begin
+        if i in primes * odd then count := count + 1;
+    end;
+
+    writeln(count);
+end.
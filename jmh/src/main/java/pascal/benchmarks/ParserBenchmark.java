@@ -0,0 +1,56 @@
+package pascal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Parser.parse of generated programs with the optimizations (unrolling, inlining and tail calls)
+on and off, so their cost is the difference of the two. parse rewrites the token types of the
+identifiers it declares, so every invocation gets a Parser of freshly scanned tokens, outside
+of the time measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    @Param({"true", "false"})
+    public boolean optimize;
+
+    private String source;
+    private Object parser;
+
+    @Setup
+    public void setup() throws Throwable {
+        source = Programs.generate(statements);
+        Object parser = Pascal.newParser(source, optimize);
+        Pascal.PARSE.invoke(parser);
+        System.out.printf("%n%d statements, %d bytes of code%n", statements, (int) Pascal.GET_CODE_SIZE.invoke(parser));
+    }
+
+    @Setup(Level.Invocation)
+    public void newParser() throws Throwable {
+        parser = Pascal.newParser(source, optimize);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return Pascal.PARSE.invoke(parser);
+    }
+}
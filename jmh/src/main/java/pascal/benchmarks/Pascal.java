@@ -0,0 +1,116 @@
+package pascal.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+
+/*
+The compiler classes are in the default package, which classes in a package cannot import, and
+JMH only generates benchmarks in a package. So the benchmarks call the compiler through these
+method handles, looked up once. Constant method handles are inlined by the JIT like direct calls.
+ */
+final class Pascal {
+    static final MethodHandle NEW_TOKEN_SCANNER;
+    static final MethodHandle SCAN; // ArrayList<Token> scan(String source)
+
+    static final MethodHandle NEW_PARSER; // Parser(ArrayList<Token>)
+    static final MethodHandle SET_UNROLL_FACTOR;
+    static final MethodHandle SET_INLINE_BUDGET;
+    static final MethodHandle PARSE; // Byte[] parse()
+    static final MethodHandle GET_CODE_SIZE;
+    static final MethodHandle FROM_PARSER; // PcxFile fromParser(Parser, Byte[], boolean lineTable)
+
+    static final MethodHandle NEW_SIMULATOR; // Simulator(PcxFile, PrintStream)
+    static final MethodHandle SET_VERIFY;
+    static final MethodHandle SIMULATE;
+    static final MethodHandle GET_INSTRUCTIONS;
+
+    static final MethodHandle NEW_NAME_TABLE;
+    static final MethodHandle INTERN; // int intern(String name)
+    static final MethodHandle NEW_TOKEN; // Token(String tokenType, String tokenValue, int lineCol, int lineRow)
+    static final MethodHandle SET_NAME_ID;
+
+    static final MethodHandle NEW_SYMBOL_TABLE;
+    static final MethodHandle NEW_SYMBOL; // Symbol(Token nameToken, String tokenType, Parser.TYPE, int address)
+    static final MethodHandle INSERT;
+    static final MethodHandle LOOKUP; // Symbol lookup(Token)
+    static final Object INTEGER_TYPE; // Parser.TYPE.I
+
+    static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> tokenScanner = Class.forName("TokenScanner");
+            Class<?> parser = Class.forName("Parser");
+            Class<?> pcxFile = Class.forName("PcxFile");
+            Class<?> simulator = Class.forName("Simulator");
+            Class<?> nameTable = Class.forName("NameTable");
+            Class<?> token = Class.forName("Token");
+            Class<?> symbolTable = Class.forName("SymbolTable");
+            Class<?> symbol = Class.forName("Symbol");
+            Class<?> type = Class.forName("Parser$TYPE");
+
+            NEW_TOKEN_SCANNER = lookup.findConstructor(tokenScanner, MethodType.methodType(void.class));
+            SCAN = lookup.findVirtual(tokenScanner, "scan", MethodType.methodType(ArrayList.class, String.class));
+
+            NEW_PARSER = lookup.findConstructor(parser, MethodType.methodType(void.class, ArrayList.class));
+            SET_UNROLL_FACTOR = lookup.findVirtual(parser, "setUnrollFactor", MethodType.methodType(void.class, int.class));
+            SET_INLINE_BUDGET = lookup.findVirtual(parser, "setInlineBudget", MethodType.methodType(void.class, int.class));
+            PARSE = lookup.findVirtual(parser, "parse", MethodType.methodType(Byte[].class));
+            GET_CODE_SIZE = lookup.findVirtual(parser, "getCodeSize", MethodType.methodType(int.class));
+            FROM_PARSER = lookup.findStatic(pcxFile, "fromParser", MethodType.methodType(pcxFile, parser, Byte[].class, boolean.class));
+
+            NEW_SIMULATOR = lookup.findConstructor(simulator, MethodType.methodType(void.class, pcxFile, PrintStream.class));
+            SET_VERIFY = lookup.findVirtual(simulator, "setVerify", MethodType.methodType(void.class, boolean.class));
+            SIMULATE = lookup.findVirtual(simulator, "simulate", MethodType.methodType(void.class));
+            GET_INSTRUCTIONS = lookup.findVirtual(simulator, "getInstructions", MethodType.methodType(long.class));
+
+            NEW_NAME_TABLE = lookup.findConstructor(nameTable, MethodType.methodType(void.class));
+            INTERN = lookup.findVirtual(nameTable, "intern", MethodType.methodType(int.class, String.class));
+            NEW_TOKEN = lookup.findConstructor(token, MethodType.methodType(void.class, String.class, String.class, int.class, int.class));
+            SET_NAME_ID = lookup.findVirtual(token, "setNameId", MethodType.methodType(void.class, int.class));
+
+            NEW_SYMBOL_TABLE = lookup.findConstructor(symbolTable, MethodType.methodType(void.class));
+            NEW_SYMBOL = lookup.findConstructor(symbol, MethodType.methodType(void.class, token, String.class, type, int.class));
+            INSERT = lookup.findVirtual(symbolTable, "insert", MethodType.methodType(void.class, symbol));
+            LOOKUP = lookup.findVirtual(symbolTable, "lookup", MethodType.methodType(symbol, token));
+            INTEGER_TYPE = type.getEnumConstants()[0];
+        } catch (ReflectiveOperationException e) {
+            throw new Error(String.format("Cannot find the compiler classes (%s), is ../src on the class path?", e));
+        }
+    }
+
+    private Pascal() {
+    }
+
+    static ArrayList<?> scan(String source) throws Throwable {
+        return (ArrayList<?>) SCAN.invoke(NEW_TOKEN_SCANNER.invoke(), source);
+    }
+
+    // An identifier token of name with its id in nameTable, as the TokenScanner makes it
+    static Object identifier(Object nameTable, String name) throws Throwable {
+        Object token = NEW_TOKEN.invoke("TK_IDENTIFIER", name, 0, 0);
+        SET_NAME_ID.invoke(token, (int) INTERN.invoke(nameTable, name));
+        return token;
+    }
+
+    // A Parser of source, optimize false turns loop unrolling and inlining off
+    static Object newParser(String source, boolean optimize) throws Throwable {
+        Object parser = NEW_PARSER.invoke(scan(source));
+        if (!optimize) {
+            SET_UNROLL_FACTOR.invoke(parser, 1);
+            SET_INLINE_BUDGET.invoke(parser, 0);
+        }
+
+        return parser;
+    }
+
+    static Object compile(String source) throws Throwable {
+        Object parser = newParser(source, true);
+        return FROM_PARSER.invoke(parser, (Byte[]) PARSE.invoke(parser), true);
+    }
+}
@@ -0,0 +1,77 @@
+package pascal.benchmarks;
+
+import java.util.Random;
+
+/*
+Pascal sources for the benchmarks, in the dialect of the examples: integer variables each declared
+on its own var line, and no subtraction or reals, which the VM does not run correctly yet.
+ */
+final class Programs {
+    private static final int VARIABLES = 16;
+
+    private Programs() {
+    }
+
+    // A straight-line program of about statements statements, the same for the same count
+    static String generate(int statements) {
+        Random random = new Random(statements);
+        StringBuilder source = new StringBuilder("program generated;\n");
+        for (int i = 0; i < VARIABLES; i++) {
+            source.append(String.format("var v%d: integer;%n", i));
+        }
+
+        source.append(String.format("%nbegin%n"));
+        for (int i = 0; i < VARIABLES; i++) {
+            source.append(String.format("    v%d := %d;%n", i, i));
+        }
+        for (int i = 0; i < statements; i++) {
+            int a = random.nextInt(VARIABLES);
+            int b = random.nextInt(VARIABLES);
+            int c = random.nextInt(VARIABLES);
+
+            switch (i % 5) {
+                case 0:
+                    source.append(String.format("    v%d := v%d + v%d * %d;%n", a, b, c, random.nextInt(10)));
+                    break;
+                case 1:
+                    source.append(String.format("    if v%d > v%d then v%d := v%d else v%d := v%d;%n", a, b, c, a, c, b));
+                    break;
+                case 2:
+                    source.append(String.format("    v%d := 0;%n    while v%d < %d do%n    begin%n        v%d := v%d + 1;%n    end;%n",
+                            a, a, random.nextInt(10), a, a));
+                    break;
+                case 3:
+                    if (a == b) {
+                        b = (b + 1) % VARIABLES;
+                    }
+                    source.append(String.format("    for v%d := 1 to 8 do%n    begin%n        v%d := v%d + v%d;%n    end;%n",
+                            a, b, b, a));
+                    break;
+                default:
+                    source.append(String.format("    writeln(v%d);%n", a));
+            }
+        }
+        source.append(String.format("end.%n"));
+
+        return source.toString();
+    }
+
+    // A loop of iterations iterations, 2 loads, an add, a store, a compare and a jump each
+    static String whileLoop(int iterations) {
+        return String.format("program whileLoop;%nvar x: integer;%n%nbegin%n    x := 0;%n    while x < %d do%n    begin%n"
+                + "        x := x + 1;%n    end;%n    writeln(x);%nend.%n", iterations);
+    }
+
+    // A for loop with literal bounds, which the Parser unrolls
+    static String forLoop(int iterations) {
+        return String.format("program forLoop;%nvar i: integer;%nvar s: integer;%n%nbegin%n    s := 0;%n    for i := 1 to %d do%n"
+                + "    begin%n        s := s + i;%n    end;%n    writeln(s);%nend.%n", iterations);
+    }
+
+    // 2^depth + 1 calls of a recursive function that is neither inlined nor a tail call
+    static String calls(int depth) {
+        return String.format("program calls;%nvar n: integer;%n%nfunction leaves(k, n: integer): integer;%n    begin%n"
+                + "        if k = n then leaves := 1 else leaves := leaves(k + 1, n) + leaves(k + 1, n);%n    end;%n%n"
+                + "begin%n    n := %d;%n    writeln(leaves(0, n));%nend.%n", depth);
+    }
+}
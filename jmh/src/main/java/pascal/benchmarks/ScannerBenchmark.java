@@ -0,0 +1,43 @@
+package pascal.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+TokenScanner.scan of generated programs, in sources scanned per second; bytes per second is
+that times the source size, which setup prints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScannerBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        source = Programs.generate(statements);
+        System.out.printf("%n%d statements, %d bytes of source%n", statements, source.length());
+    }
+
+    @Benchmark
+    public ArrayList<?> scan() throws Throwable {
+        return Pascal.scan(source);
+    }
+}
@@ -0,0 +1,74 @@
+package pascal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Simulator.simulate of a compiled program, reported as programs per second and, through the
+instructions counter, instructions per second. With verify false the program runs on the checked path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatorBenchmark {
+    @Param({"while", "for", "calls"})
+    public String program;
+
+    @Param({"true", "false"})
+    public boolean verify;
+
+    private Object pcxFile;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        String source;
+        switch (program) {
+            case "while":
+                source = Programs.whileLoop(100000);
+                break;
+            case "for":
+                source = Programs.forLoop(100000);
+                break;
+            case "calls":
+                source = Programs.calls(12);
+                break;
+            default:
+                throw new Error(String.format("Unknown program %s", program));
+        }
+        pcxFile = Pascal.compile(source);
+    }
+
+    @Benchmark
+    public void simulate(Counters counters) throws Throwable {
+        Object simulator = Pascal.NEW_SIMULATOR.invoke(pcxFile, Pascal.NULL_OUT);
+        Pascal.SET_VERIFY.invoke(simulator, verify);
+        Pascal.SIMULATE.invoke(simulator);
+        counters.instructions += (long) Pascal.GET_INSTRUCTIONS.invoke(simulator);
+    }
+}
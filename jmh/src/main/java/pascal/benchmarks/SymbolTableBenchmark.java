@@ -0,0 +1,71 @@
+package pascal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+SymbolTable.insert and lookup of one scope of symbols, in nanoseconds per symbol. insert starts
+from an empty table so it includes resizing it, lookup searches a full one for every name token.
+The names are interned in a NameTable and looked up by token, as the Parser does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolTableBenchmark {
+    private static final int SIZE = 1024; // operations per invocation, a multiple of every symbols
+
+    @Param({"16", "256", "1024"})
+    public int symbols;
+
+    private Object[] tokens;
+    private Object[] symbolObjects;
+    private Object symbolTable;
+
+    @Setup
+    public void setup() throws Throwable {
+        Object nameTable = Pascal.NEW_NAME_TABLE.invoke();
+        tokens = new Object[symbols];
+        symbolObjects = new Object[symbols];
+        symbolTable = Pascal.NEW_SYMBOL_TABLE.invoke();
+        for (int i = 0; i < symbols; i++) {
+            tokens[i] = Pascal.identifier(nameTable, "symbol" + i);
+            symbolObjects[i] = Pascal.NEW_SYMBOL.invoke(tokens[i], "TK_A_VAR", Pascal.INTEGER_TYPE, 4 * i);
+            Pascal.INSERT.invoke(symbolTable, symbolObjects[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void insert(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < SIZE; i += symbols) {
+            Object symbolTable = Pascal.NEW_SYMBOL_TABLE.invoke();
+            for (Object symbol : symbolObjects) {
+                Pascal.INSERT.invoke(symbolTable, symbol);
+            }
+            blackhole.consume(symbolTable);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void lookup(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < SIZE; i++) {
+            blackhole.consume(Pascal.LOOKUP.invoke(symbolTable, tokens[i % symbols]));
+        }
+    }
+}
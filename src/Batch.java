@@ -0,0 +1,260 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+java Emulator batch [options] [--parallelism=<n>] [--output-dir=<dir>] [--job-timeout=<seconds>]
+        [--virtual-threads [--safepoint-interval=<n>]] [--metrics[=<file>]] <directory | file.pas | @list>...
+
+Compiles and runs every Pascal file, the .pas files under a directory or the files named one per line
+in a list, on a ForkJoinPool of parallelism threads (the number of cores by default), or all at once
+on virtual threads, see Scheduler.
+The output of each program goes to its own <file>.out, next to the source or under the output directory
+at the same relative path, a file given by itself at its name. A batch where two files would write the
+same output, like a/x.pas and b/x.pas given with an output directory, fails before it runs any.
+A program that runs longer than the job timeout (Scheduler.DEFAULT_JOB_TIMEOUT, 0 for none) fails at its next
+safepoint. The run ends with a summary table on standard output, and the exit status is 1 when a
+program failed or timed out:
+
+    file        status      compile ms    run ms
+    array.pas   ok                2.41      0.38
+    div.pas     FAILED            0.95      0.04   / by zero
+    loop.pas    TIMEOUT           0.61   2062.50   Program ran longer than its timeout of 2.0 s
+    ...
+    13 files, 2 failed, 1 timed out, 6.12 s of compile and run in 2.61 s wall, 5.0 files/s
+
+The counters of the batch are served by the pascal-compiler:type=Metrics MBean while it runs,
+and printed after the summary with --metrics, see Metrics.
+Every program has its own TokenScanner with its NameTable, Parser and Simulator, only the cache is shared.
+ */
+public final class Batch {
+
+    // One Pascal file of the batch and how it went
+    private static final class Job {
+        private final Path source;
+        private final Path output;
+        private final String name; // relative to the directory it was found in
+
+        private long compileNanos = 0;
+        private long runNanos = 0;
+        private String error = null; // null if the program ran to HALT
+        private boolean timedOut = false;
+
+        Job(Path source, Path output, String name) {
+            this.source = source;
+            this.output = output;
+            this.name = name;
+        }
+    }
+
+    // Returns the number of programs that failed, timed out ones included
+    public static int run(String[] args) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        Path outputDirectory = null;
+        boolean cache = true;
+        boolean virtualThreads = false;
+        long safepointInterval = Scheduler.DEFAULT_SAFEPOINT_INTERVAL;
+        String metrics = null; // Prometheus text file, "" for standard output
+        int traceEntries = Emulator.DEFAULT_TRACE_ENTRIES;
+        double jobTimeout = Scheduler.DEFAULT_JOB_TIMEOUT;
+        ArrayList<String> optionsArrayList = new ArrayList<>();
+        ArrayList<Job> jobsArrayList = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--parallelism=")) {
+                parallelism = Integer.valueOf(arg.substring("--parallelism=".length()));
+            } else if (arg.startsWith("--output-dir=")) {
+                outputDirectory = Paths.get(arg.substring("--output-dir=".length()));
+            } else if (arg.equals("--metrics") || arg.startsWith("--metrics=")) {
+                metrics = arg.substring(Math.min(arg.length(), "--metrics=".length()));
+            } else if (arg.startsWith("--job-timeout=")) {
+                jobTimeout = Double.valueOf(arg.substring("--job-timeout=".length()));
+            } else if (arg.startsWith("--trace=")) {
+                traceEntries = Integer.valueOf(arg.substring("--trace=".length()));
+            } else if (arg.equals("--virtual-threads")) {
+                virtualThreads = true;
+            } else if (arg.startsWith("--safepoint-interval=")) {
+                safepointInterval = Long.valueOf(arg.substring("--safepoint-interval=".length()));
+            } else if (Emulator.isCompileOption(arg)) {
+                optionsArrayList.add(arg);
+            } else if (arg.startsWith("--cache-dir=")) {
+                CompilationCache.setDirectory(Paths.get(arg.substring("--cache-dir=".length())));
+            } else if (arg.startsWith("--cache-size=")) {
+                CompilationCache.setMaxSize(Long.valueOf(arg.substring("--cache-size=".length())));
+            } else if (arg.equals("--no-cache")) {
+                cache = false;
+            } else if (arg.startsWith("--")) {
+                throw new Error(String.format("Unknown batch option (%s)", arg));
+            }
+        }
+
+        // the output directory is known once all options are read
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                addJobs(arg, outputDirectory, jobsArrayList);
+            }
+        }
+        if (jobsArrayList.isEmpty()) {
+            throw new Error("No Pascal files given");
+        }
+        checkOutputs(jobsArrayList);
+
+        boolean useCache = cache;
+        int useTraceEntries = traceEntries;
+        Metrics.register();
+        Scheduler scheduler = new Scheduler(virtualThreads, parallelism, safepointInterval);
+        scheduler.setJobTimeout(jobTimeout);
+        long start = System.nanoTime();
+        try {
+            ArrayList<Future<?>> futuresArrayList = new ArrayList<>();
+            for (Job job : jobsArrayList) {
+                futuresArrayList.add(scheduler.submit(() -> runJob(job, scheduler, optionsArrayList, useCache, useTraceEntries)));
+            }
+            for (Future<?> future : futuresArrayList) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new Error(String.format("Batch interrupted (%s)", e));
+        } finally {
+            scheduler.shutdown();
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        int failed = printSummary(jobsArrayList, wallNanos);
+        if (metrics != null) {
+            Metrics.dump(metrics.isEmpty() ? null : Paths.get(metrics), System.out);
+        }
+
+        return failed;
+    }
+
+    // A directory adds its .pas files, @list the files named in list, anything else is a Pascal file
+    private static void addJobs(String arg, Path outputDirectory, ArrayList<Job> jobsArrayList) throws IOException {
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                if (!line.trim().isEmpty()) {
+                    addJobs(line.trim(), outputDirectory, jobsArrayList);
+                }
+            }
+            return;
+        }
+
+        Path path = Paths.get(arg);
+        if (Files.isDirectory(path)) {
+            ArrayList<Path> sourcesArrayList;
+            try (Stream<Path> paths = Files.walk(path)) {
+                sourcesArrayList = paths
+                        .filter(source -> source.toString().endsWith(".pas") && Files.isRegularFile(source))
+                        .sorted()
+                        .collect(Collectors.toCollection(ArrayList::new));
+            }
+
+            for (Path source : sourcesArrayList) {
+                jobsArrayList.add(newJob(source, path.relativize(source), outputDirectory));
+            }
+        } else {
+            jobsArrayList.add(newJob(path, path.getFileName(), outputDirectory));
+        }
+    }
+
+    // Fail before any program runs when two jobs would write the same output file
+    private static void checkOutputs(ArrayList<Job> jobsArrayList) {
+        HashMap<Path, Job> outputHashMap = new HashMap<>();
+        for (Job job : jobsArrayList) {
+            Job previous = outputHashMap.put(job.output.toAbsolutePath().normalize(), job);
+            if (previous != null) {
+                throw new Error(String.format("Files (%s) and (%s) both write their output to %s",
+                        previous.source, job.source, job.output));
+            }
+        }
+    }
+
+    private static Job newJob(Path source, Path relativePath, Path outputDirectory) {
+        String outputName = relativePath.toString().replaceFirst("(\\.pas)?$", ".out");
+        Path output = outputDirectory != null ? outputDirectory.resolve(outputName) :
+                Paths.get(source.toString().replaceFirst("(\\.pas)?$", ".out"));
+
+        return new Job(source, output, relativePath.toString());
+    }
+
+    // Compile and run the program of job into its output file, a failure is recorded in the job
+    private static void runJob(Job job, Scheduler scheduler, ArrayList<String> optionsArrayList, boolean cache, int traceEntries) {
+        long start = System.nanoTime();
+        try {
+            if (job.output.getParent() != null) {
+                Files.createDirectories(job.output.getParent());
+            }
+
+            PcxFile pcxFile = Emulator.compile(Files.readAllBytes(job.source), optionsArrayList, cache, null);
+            job.compileNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(job.output), 1 << 13), false)) {
+                Simulator simulator = scheduler.newSimulator(pcxFile, out);
+                if (traceEntries > 0) {
+                    simulator.setTrace(traceEntries, out);
+                }
+                try {
+                    simulator.simulate();
+                } catch (Error | RuntimeException e) {
+                    out.println();
+                    out.println(e);
+                    job.timedOut = simulator.isTimedOut();
+                    throw e;
+                }
+            } finally {
+                job.runNanos = System.nanoTime() - start;
+            }
+        } catch (Error | RuntimeException | IOException e) {
+            if (job.compileNanos == 0) {
+                job.compileNanos = System.nanoTime() - start;
+            }
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+    }
+
+    // The number of jobs that failed
+    private static int printSummary(ArrayList<Job> jobsArrayList, long wallNanos) {
+        int nameWidth = "file".length();
+        for (Job job : jobsArrayList) {
+            nameWidth = Math.max(nameWidth, job.name.length());
+        }
+
+        String format = "%-" + nameWidth + "s   %-7s %14s %9s%s%n";
+        System.out.printf(format, "file", "status", "compile ms", "run ms", "");
+
+        long totalNanos = 0;
+        int failed = 0;
+        int timedOut = 0;
+        for (Job job : jobsArrayList) {
+            totalNanos += job.compileNanos + job.runNanos;
+            if (job.error != null) {
+                failed++;
+            }
+            if (job.timedOut) {
+                timedOut++;
+            }
+
+            System.out.printf(format, job.name,
+                    job.error == null ? "ok" : job.timedOut ? "TIMEOUT" : "FAILED",
+                    String.format("%.2f", job.compileNanos / 1e6),
+                    String.format("%.2f", job.runNanos / 1e6),
+                    job.error == null ? "" : "   " + job.error);
+        }
+
+        System.out.printf("%d files, %d failed, %d timed out, %.2f s of compile and run in %.2f s wall, %.1f files/s%n",
+                jobsArrayList.size(), failed, timedOut, totalNanos / 1e9, wallNanos / 1e9,
+                jobsArrayList.size() / (wallNanos / 1e9));
+
+        return failed;
+    }
+}
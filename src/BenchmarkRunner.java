@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+java Emulator bench [--time=<seconds>] [--warmup=<seconds>] [--engine=<name>:<option>,...]...
+        [--update-checksums] [<directory | file.pas>...]
+
+Runs every Pascal benchmark, the .pas files of ../benchmarks by default, with every engine: the
+program is compiled with the options of every engine and the engines take turns running it, one run
+each, for warmup seconds per engine and then measured for time seconds per engine. Taking turns keeps
+an engine run first from getting a JIT profile of the VM the others do not. The engines are by default
+    optimized     the default options
+    unoptimized   --unroll-factor=1,--inline-budget=0
+    checked       --no-verify, the checked path of the VM
+The CRC32 of the output of every run is checked against the one in checksums.txt next to the
+source, --update-checksums writes the checksums of this run there instead.
+
+    benchmark         engine        code B  compile ms   runs   ms/run  M instr/s  checksum
+    bubble.pas        optimized        666       12.41     95    21.05      83.93  ok
+    bubble.pas        unoptimized      578        3.10     90    22.31      79.19  ok
+    ...
+    optimized: 7 benchmarks, geometric mean 33.69 ms/run, 61.20 M instr/s
+
+The exit status is 1 if a benchmark failed or its output did not match its checksum.
+ */
+public final class BenchmarkRunner {
+    static final String CHECKSUMS_FILE = "checksums.txt";
+    private static final String DEFAULT_DIRECTORY = "../benchmarks";
+
+    // A name, the compile options of its programs and whether they are verified
+    private static final class Engine {
+        private final String name;
+        private final ArrayList<String> optionsArrayList;
+        private final boolean verify;
+
+        Engine(String name, ArrayList<String> optionsArrayList, boolean verify) {
+            this.name = name;
+            this.optionsArrayList = optionsArrayList;
+            this.verify = verify;
+        }
+    }
+
+    public static int run(String[] args) throws IOException {
+        double timeSeconds = 2;
+        double warmupSeconds = 1;
+        boolean updateChecksums = false;
+        ArrayList<Engine> enginesArrayList = new ArrayList<>();
+        ArrayList<Path> sourcesArrayList = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--time=")) {
+                timeSeconds = Double.valueOf(arg.substring("--time=".length()));
+            } else if (arg.startsWith("--warmup=")) {
+                warmupSeconds = Double.valueOf(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                enginesArrayList.add(parseEngine(arg.substring("--engine=".length())));
+            } else if (arg.equals("--update-checksums")) {
+                updateChecksums = true;
+            } else if (arg.startsWith("--")) {
+                throw new Error(String.format("Unknown bench option (%s)", arg));
+            } else {
+                addSources(Paths.get(arg), sourcesArrayList);
+            }
+        }
+        if (enginesArrayList.isEmpty()) {
+            enginesArrayList.add(parseEngine("optimized:"));
+            enginesArrayList.add(parseEngine("unoptimized:--unroll-factor=1,--inline-budget=0"));
+            enginesArrayList.add(parseEngine("checked:--no-verify"));
+        }
+        if (sourcesArrayList.isEmpty()) {
+            addSources(Paths.get(DEFAULT_DIRECTORY), sourcesArrayList);
+        }
+        if (sourcesArrayList.isEmpty()) {
+            throw new Error("No Pascal benchmarks given");
+        }
+
+        int nameWidth = "benchmark".length();
+        int engineWidth = "engine".length();
+        for (Path source : sourcesArrayList) {
+            nameWidth = Math.max(nameWidth, source.getFileName().toString().length());
+        }
+        for (Engine engine : enginesArrayList) {
+            engineWidth = Math.max(engineWidth, engine.name.length());
+        }
+        String format = "%-" + nameWidth + "s   %-" + engineWidth + "s %8s %11s %6s %8s %10s  %s%n";
+        System.out.printf(format, "benchmark", "engine", "code B", "compile ms", "runs", "ms/run", "M instr/s", "checksum");
+
+        // directory -> file name -> checksum
+        TreeMap<Path, TreeMap<String, String>> checksumsTreeMap = new TreeMap<>();
+        double[] logInstructionsPerSecond = new double[enginesArrayList.size()];
+        double[] logMillisPerRun = new double[enginesArrayList.size()];
+        int[] measured = new int[enginesArrayList.size()];
+        boolean failed = false;
+
+        for (Path source : sourcesArrayList) {
+            Path directory = source.toAbsolutePath().getParent();
+            TreeMap<String, String> checksums = checksumsTreeMap.get(directory);
+            if (checksums == null) {
+                checksums = readChecksums(directory.resolve(CHECKSUMS_FILE));
+                checksumsTreeMap.put(directory, checksums);
+            }
+            String name = source.getFileName().toString();
+            byte[] sourceBytes = Files.readAllBytes(source);
+
+            int engines = enginesArrayList.size();
+            Emulator.Timings[] timings = new Emulator.Timings[engines];
+            PcxFile[] pcxFiles = new PcxFile[engines];
+            long[] compileNanos = new long[engines];
+            int[] runs = new int[engines];
+            long[] runNanos = new long[engines];
+            long[] instructions = new long[engines];
+            String[] runChecksums = new String[engines];
+            String[] statuses = new String[engines];
+
+            for (int i = 0; i < engines; i++) {
+                timings[i] = new Emulator.Timings();
+                try {
+                    long start = System.nanoTime();
+                    pcxFiles[i] = Emulator.compile(sourceBytes, enginesArrayList.get(i).optionsArrayList, false, timings[i]);
+                    compileNanos[i] = System.nanoTime() - start;
+                } catch (Error | RuntimeException e) {
+                    statuses[i] = "FAILED " + (e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+            }
+
+            // The engines take turns, one run each, so that all of them are measured against the same JIT state of the VM
+            long[] run = new long[2]; // nanos, instructions
+            long warmupEnd = System.nanoTime() + (long) (warmupSeconds * engines * 1e9);
+            long end = warmupEnd + (long) (timeSeconds * engines * 1e9);
+            boolean warmup = true;
+            boolean running = true;
+            while (running) {
+                running = false;
+                for (int i = 0; i < engines; i++) {
+                    if (statuses[i] != null) {
+                        continue;
+                    }
+                    running = true;
+                    try {
+                        runChecksums[i] = runOnce(pcxFiles[i], enginesArrayList.get(i).verify, runChecksums[i], warmup ? null : run);
+                    } catch (Error | RuntimeException e) {
+                        statuses[i] = "FAILED " + (e.getMessage() != null ? e.getMessage() : e.toString());
+                        continue;
+                    }
+                    if (!warmup) {
+                        runs[i]++;
+                        runNanos[i] += run[0];
+                        instructions[i] += run[1];
+                    }
+                }
+                long now = System.nanoTime();
+                if (warmup && now >= warmupEnd) {
+                    warmup = false;
+                } else if (!warmup && now >= end) {
+                    break;
+                }
+            }
+
+            for (int i = 0; i < engines; i++) {
+                Engine engine = enginesArrayList.get(i);
+                String checksum = runChecksums[i];
+                String status = statuses[i];
+
+                if (status != null) {
+                    failed = true;
+                } else {
+                    String expected = checksums.get(name);
+                    if (updateChecksums) {
+                        String previous = checksums.put(name, checksum);
+                        status = previous == null || previous.equals(checksum) ? "ok" : "updated";
+                    } else if (expected == null) {
+                        status = "none " + checksum;
+                    } else if (expected.equals(checksum)) {
+                        status = "ok";
+                    } else {
+                        status = String.format("MISMATCH %s, expected %s", checksum, expected);
+                        failed = true;
+                    }
+                }
+
+                double instructionsPerSecond = runNanos[i] == 0 ? 0 : instructions[i] * 1e9 / runNanos[i];
+                double millisPerRun = runs[i] == 0 ? 0 : runNanos[i] / 1e6 / runs[i];
+                if (instructionsPerSecond > 0) {
+                    logInstructionsPerSecond[i] += Math.log(instructionsPerSecond);
+                    logMillisPerRun[i] += Math.log(millisPerRun);
+                    measured[i]++;
+                }
+                System.out.printf(format, name, engine.name, timings[i].codeBytes,
+                        String.format("%.2f", compileNanos[i] / 1e6), runs[i],
+                        String.format("%.2f", millisPerRun),
+                        String.format("%.2f", instructionsPerSecond / 1e6), status);
+            }
+        }
+
+        for (int i = 0; i < enginesArrayList.size(); i++) {
+            System.out.printf("%s: %d benchmarks, geometric mean %.2f ms/run, %.2f M instr/s%n", enginesArrayList.get(i).name, measured[i],
+                    measured[i] == 0 ? 0 : Math.exp(logMillisPerRun[i] / measured[i]),
+                    measured[i] == 0 ? 0 : Math.exp(logInstructionsPerSecond[i] / measured[i]) / 1e6);
+        }
+
+        if (updateChecksums) {
+            for (Path directory : checksumsTreeMap.keySet()) {
+                writeChecksums(directory.resolve(CHECKSUMS_FILE), checksumsTreeMap.get(directory));
+            }
+        }
+
+        return failed ? 1 : 0;
+    }
+
+    // <name>:<option>,<option>... the options as on the command line
+    private static Engine parseEngine(String engine) {
+        int colon = engine.indexOf(':');
+        if (colon <= 0) {
+            throw new Error(String.format("Engine (%s) is not <name>:<option>,...", engine));
+        }
+
+        ArrayList<String> optionsArrayList = new ArrayList<>();
+        boolean verify = true;
+        for (String option : engine.substring(colon + 1).split(",")) {
+            if (option.isEmpty()) {
+                continue;
+            }
+            if (option.equals("--no-verify")) {
+                verify = false;
+                continue;
+            }
+            if (!Emulator.isCompileOption(option)) {
+                throw new Error(String.format("Unknown engine option (%s)", option));
+            }
+            optionsArrayList.add(option);
+        }
+
+        return new Engine(engine.substring(0, colon), optionsArrayList, verify);
+    }
+
+    private static void addSources(Path path, ArrayList<Path> sourcesArrayList) throws IOException {
+        if (!Files.isDirectory(path)) {
+            sourcesArrayList.add(path);
+            return;
+        }
+
+        try (Stream<Path> paths = Files.list(path)) {
+            sourcesArrayList.addAll(paths
+                    .filter(source -> source.toString().endsWith(".pas") && Files.isRegularFile(source))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /*
+    Run pcxFile once, verified or on the checked path, returning the CRC32 of its output as 8 hex digits. A run whose output differs
+    from the one of the previous run fails, the VM is deterministic. run gets the nanos and
+    instructions of the run when it is not null.
+     */
+    private static String runOnce(PcxFile pcxFile, boolean verify, String previousChecksum, long[] run) {
+        CRC32 crc = new CRC32();
+        PrintStream out = new PrintStream(new CheckedOutputStream(OutputStream.nullOutputStream(), crc), false);
+
+        long start = System.nanoTime();
+        Simulator simulator = new Simulator(pcxFile, out);
+        simulator.setVerify(verify);
+        simulator.simulate();
+        out.flush();
+        if (run != null) {
+            run[0] = System.nanoTime() - start;
+            run[1] = simulator.getInstructions();
+        }
+
+        String checksum = String.format("%08x", crc.getValue());
+        if (previousChecksum != null && !previousChecksum.equals(checksum)) {
+            throw new Error(String.format("Output checksum changed from %s to %s between runs", previousChecksum, checksum));
+        }
+
+        return checksum;
+    }
+
+    // Lines of <file name> <crc32>
+    private static TreeMap<String, String> readChecksums(Path path) throws IOException {
+        TreeMap<String, String> checksumsTreeMap = new TreeMap<>();
+        if (!Files.exists(path)) {
+            return checksumsTreeMap;
+        }
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2) {
+                checksumsTreeMap.put(fields[0], fields[1]);
+            } else if (!line.trim().isEmpty()) {
+                throw new Error(String.format("Line (%s) of %s is not <file> <crc32>", line, path));
+            }
+        }
+
+        return checksumsTreeMap;
+    }
+
+    private static void writeChecksums(Path path, TreeMap<String, String> checksumsTreeMap) throws IOException {
+        StringBuilder checksums = new StringBuilder();
+        for (String name : checksumsTreeMap.keySet()) {
+            checksums.append(name).append(' ').append(checksumsTreeMap.get(name)).append('\n');
+        }
+
+        Files.write(path, checksums.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+The code of a .pcx file, packed. Every instruction is its opcode byte followed by its operands as
+the varints of PcxFile, most of them one byte instead of four:
+
+    PUSHI <value>                       zigzag value, PUSHI 0..127 is the byte SHORT_PUSHI + value alone
+    PUSH, POP, LOAD8, STORE8 <address>  data address rotated left by 2, small for globals and frame addresses alike,
+                                        the same for the address of SET_CLEAR, SET_COPY and the set operations
+    PUSHF <index>
+    JMP, JFALSE, JTRUE, CALL <target>   zigzag of the target less the address of the instruction
+    FOR_LOOP <step> <address> <exit> <slots>
+    FOR_NEXT <step> <address> <body> <sync> <slots>
+    INCR <address> <value>
+    ENTER <frame size>
+    TABLESWITCH <default> <low> <count> <target>*count
+    LOOKUPSWITCH <default> <count> [<key less the key before> <target>]*count
+
+Steps, values and lows are zigzag encoded. The addresses of instructions are those of the code
+unpacked, which the Parser emitted and expand restores when a file is read, so jumps, the line
+table and the procedure table need no translation.
+ */
+public final class CompactCode {
+    static final int SHORT_PUSHI = 0x80; // first opcode byte of the short PUSHIs, above every OP_CODE
+    private static final int SHORT_PUSHI_VALUES = 0x100 - SHORT_PUSHI;
+
+    private static final Parser.OP_CODE[] OP_CODES = Parser.OP_CODE.values();
+
+    private CompactCode() {
+    }
+
+    // Pack code, which must be a sequence of instructions from its first byte to its last
+    public static byte[] pack(ByteBuffer code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.limit() / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            int address = 0;
+            while (address < code.limit()) {
+                Parser.OP_CODE opCode = OP_CODES[code.get(address)];
+                int operand = address + 1;
+
+                if (opCode == Parser.OP_CODE.PUSHI && code.getInt(operand) >= 0 && code.getInt(operand) < SHORT_PUSHI_VALUES) {
+                    out.writeByte(SHORT_PUSHI + code.getInt(operand));
+                    address += 5;
+                    continue;
+                }
+
+                out.writeByte(opCode.ordinal());
+                switch (opCode) {
+                    case PUSHI:
+                        writeSigned(out, code.getInt(operand));
+                        break;
+                    case PUSH:
+                    case POP:
+                    case LOAD8:
+                    case STORE8:
+                    case SET_CLEAR:
+                    case SET_COPY:
+                    case SET_UNION:
+                    case SET_INTER:
+                    case SET_DIFF:
+                        writeData(out, code.getInt(operand));
+                        break;
+                    case PUSHF:
+                    case ENTER:
+                        PcxFile.writeVarInt(out, code.getInt(operand));
+                        break;
+                    case JMP:
+                    case JFALSE:
+                    case JTRUE:
+                    case CALL:
+                        writeTarget(out, code.getInt(operand), address);
+                        break;
+                    case FOR_LOOP:
+                        writeSigned(out, code.getInt(operand));
+                        writeData(out, code.getInt(operand + 4));
+                        writeTarget(out, code.getInt(operand + 8), address);
+                        writeData(out, code.getInt(operand + 12));
+                        break;
+                    case FOR_NEXT:
+                        writeSigned(out, code.getInt(operand));
+                        writeData(out, code.getInt(operand + 4));
+                        writeTarget(out, code.getInt(operand + 8), address);
+                        PcxFile.writeVarInt(out, code.getInt(operand + 12));
+                        writeData(out, code.getInt(operand + 16));
+                        break;
+                    case INCR:
+                        writeData(out, code.getInt(operand));
+                        writeSigned(out, code.getInt(operand + 4));
+                        break;
+                    case TABLESWITCH: {
+                        int count = code.getInt(operand + 8) - code.getInt(operand + 4) + 1;
+                        writeTarget(out, code.getInt(operand), address);
+                        writeSigned(out, code.getInt(operand + 4));
+                        PcxFile.writeVarInt(out, count);
+                        for (int i = 0; i < count; i++) {
+                            writeTarget(out, code.getInt(operand + 12 + i * 4), address);
+                        }
+                        break;
+                    }
+                    case LOOKUPSWITCH: {
+                        int count = code.getInt(operand + 4);
+                        writeTarget(out, code.getInt(operand), address);
+                        PcxFile.writeVarInt(out, count);
+                        int key = 0;
+                        for (int i = 0; i < count; i++) {
+                            writeSigned(out, code.getInt(operand + 8 + i * 8) - key);
+                            key = code.getInt(operand + 8 + i * 8);
+                            writeTarget(out, code.getInt(operand + 12 + i * 8), address);
+                        }
+                        break;
+                    }
+                    default:
+                        for (int i = 0; i < opCode.operands; i++) {
+                            PcxFile.writeVarInt(out, code.getInt(operand + i * 4));
+                        }
+                }
+
+                address += getSize(code, address, opCode);
+            }
+
+            if (address != code.limit()) {
+                throw new Error(String.format("Code ends in the middle of the instruction at %d", address));
+            }
+        } catch (IOException e) {
+            throw new Error(String.format("Cannot pack the code (%s)", e));
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /*
+    The code of codeSize bytes packed in packed. A packed code that does not unpack to exactly
+    codeSize bytes of instructions is corrupt, an IndexOutOfBoundsException or Error is thrown.
+     */
+    public static ByteBuffer expand(ByteBuffer packed, int codeSize) {
+        ByteBuffer code = ByteBuffer.allocate(codeSize);
+
+        while (packed.hasRemaining()) {
+            int address = code.position();
+            int opCodeByte = packed.get() & 0xff;
+
+            if (opCodeByte >= SHORT_PUSHI) {
+                code.put((byte) Parser.OP_CODE.PUSHI.ordinal()).putInt(opCodeByte - SHORT_PUSHI);
+                continue;
+            }
+            if (opCodeByte >= OP_CODES.length) {
+                throw new Error(String.format("Packed opcode %d does not exist", opCodeByte));
+            }
+
+            Parser.OP_CODE opCode = OP_CODES[opCodeByte];
+            code.put((byte) opCodeByte);
+            switch (opCode) {
+                case PUSHI:
+                    code.putInt(readSigned(packed));
+                    break;
+                case PUSH:
+                case POP:
+                case LOAD8:
+                case STORE8:
+                case SET_CLEAR:
+                case SET_COPY:
+                case SET_UNION:
+                case SET_INTER:
+                case SET_DIFF:
+                    code.putInt(readData(packed));
+                    break;
+                case PUSHF:
+                case ENTER:
+                    code.putInt(PcxFile.readVarInt(packed));
+                    break;
+                case JMP:
+                case JFALSE:
+                case JTRUE:
+                case CALL:
+                    code.putInt(readTarget(packed, address));
+                    break;
+                case FOR_LOOP:
+                    code.putInt(readSigned(packed));
+                    code.putInt(readData(packed));
+                    code.putInt(readTarget(packed, address));
+                    code.putInt(readData(packed));
+                    break;
+                case FOR_NEXT:
+                    code.putInt(readSigned(packed));
+                    code.putInt(readData(packed));
+                    code.putInt(readTarget(packed, address));
+                    code.putInt(PcxFile.readVarInt(packed));
+                    code.putInt(readData(packed));
+                    break;
+                case INCR:
+                    code.putInt(readData(packed));
+                    code.putInt(readSigned(packed));
+                    break;
+                case TABLESWITCH: {
+                    code.putInt(readTarget(packed, address));
+                    int low = readSigned(packed);
+                    int count = PcxFile.readVarInt(packed);
+                    code.putInt(low);
+                    code.putInt(low + count - 1);
+                    for (int i = 0; i < count; i++) {
+                        code.putInt(readTarget(packed, address));
+                    }
+                    break;
+                }
+                case LOOKUPSWITCH: {
+                    code.putInt(readTarget(packed, address));
+                    int count = PcxFile.readVarInt(packed);
+                    code.putInt(count);
+                    int key = 0;
+                    for (int i = 0; i < count; i++) {
+                        key += readSigned(packed);
+                        code.putInt(key);
+                        code.putInt(readTarget(packed, address));
+                    }
+                    break;
+                }
+                default:
+                    for (int i = 0; i < opCode.operands; i++) {
+                        code.putInt(PcxFile.readVarInt(packed));
+                    }
+            }
+        }
+
+        if (code.hasRemaining()) {
+            throw new Error(String.format("Packed code unpacks to %d bytes, not %d", code.position(), codeSize));
+        }
+
+        code.clear();
+        return code;
+    }
+
+    private static int getSize(ByteBuffer code, int address, Parser.OP_CODE opCode) {
+        switch (opCode) {
+            case TABLESWITCH:
+                return 1 + (3 + code.getInt(address + 9) - code.getInt(address + 5) + 1) * 4;
+            case LOOKUPSWITCH:
+                return 1 + (2 + 2 * code.getInt(address + 5)) * 4;
+            default:
+                return 1 + opCode.operands * 4;
+        }
+    }
+
+    private static void writeSigned(DataOutputStream out, int value) throws IOException {
+        PcxFile.writeVarInt(out, PcxFile.zigzag(value));
+    }
+
+    private static int readSigned(ByteBuffer packed) {
+        return PcxFile.unzigzag(PcxFile.readVarInt(packed));
+    }
+
+    // FRAME_ADDRESS, bit 30, to bit 0, the offsets of frames and globals to the bits above it
+    private static void writeData(DataOutputStream out, int address) throws IOException {
+        PcxFile.writeVarInt(out, Integer.rotateLeft(address, 2));
+    }
+
+    private static int readData(ByteBuffer packed) {
+        return Integer.rotateRight(PcxFile.readVarInt(packed), 2);
+    }
+
+    private static void writeTarget(DataOutputStream out, int target, int address) throws IOException {
+        writeSigned(out, target - address);
+    }
+
+    private static int readTarget(ByteBuffer packed, int address) {
+        return address + readSigned(packed);
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/*
+Compiled programs are cached as .pcx files named by the SHA-256 of
+    compiler version, compile options, source bytes
+so a source that was compiled before with the same compiler and options is not scanned or parsed again.
+The compiler version is a hash of every class file of the compiler, nested classes such as the
+opcodes of Parser$OP_CODE included, and keywords.txt, rebuilding the compiler with any change
+invalidates the entries of the previous build.
+
+Entries are written to a temporary file and moved into place, processes sharing the directory
+only ever see complete entries. An entry that cannot be read, cut short or of another .pcx version,
+is a miss and is deleted, also one that fails in any other way. A hit touches the modification time of its entry. The size of the entries
+is counted as this process writes them, when it outgrows maxSize the directory is listed and the
+least recently used entries are deleted, which also counts those of the other processes.
+
+The hit and miss counters are counted in memory and added to the stats file of the directory every
+STATS_FLUSH_NANOS, before the statistics are read and when the process exits, under a file lock that
+other processes wait for.
+ */
+public final class CompilationCache {
+    private static final String KEYWORDS_FILE_NAME = "keywords.txt";
+    private static final String STATS_FILE_NAME = "stats";
+    private static final long STATS_FLUSH_NANOS = 10_000_000_000L;
+
+    private static Path directory = getDefaultDirectory();
+    private static long maxSize = 64L << 20; // bytes of entries kept
+    private static byte[] compilerVersion = null;
+
+    private static final AtomicLong entriesSize = new AtomicLong(-1); // bytes of the entries, -1 before the directory is listed
+
+    // lookups not added to the stats file yet
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final AtomicLong nextStatsFlush = new AtomicLong(System.nanoTime() + STATS_FLUSH_NANOS);
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flushStats();
+            } catch (IOException e) {
+                // the counts of this process are lost, the entries are not
+            }
+        }));
+    }
+
+    // $XDG_CACHE_HOME/pascal-compiler, ~/.cache/pascal-compiler by default
+    private static Path getDefaultDirectory() {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome == null || cacheHome.isEmpty()) {
+            return Paths.get(System.getProperty("user.home"), ".cache", "pascal-compiler");
+        }
+
+        return Paths.get(cacheHome, "pascal-compiler");
+    }
+
+    // The entry for the key, null on a miss
+    public static PcxFile get(String key) throws IOException {
+        Path path = directory.resolve(key + ".pcx");
+        PcxFile pcxFile = null;
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            pcxFile = PcxFile.read(path);
+        } catch (NoSuchFileException e) {
+            // not cached, or evicted by another process
+        } catch (IOException | RuntimeException | Error e) {
+            // cut short, corrupt or of another format version, compiled again
+            delete(path);
+        }
+
+        (pcxFile != null ? hits : misses).increment();
+        Metrics.recordCacheLookup(pcxFile != null);
+        if (System.nanoTime() - nextStatsFlush.get() > 0) {
+            flushStats();
+        }
+
+        return pcxFile;
+    }
+
+    public static void put(String key, PcxFile pcxFile) throws IOException {
+        Files.createDirectories(directory);
+
+        Path path = directory.resolve(key + ".pcx");
+        Path temporaryPath = Files.createTempFile(directory, key, ".tmp");
+        long replacedSize = getSize(path);
+        long size;
+        try {
+            pcxFile.write(temporaryPath);
+            size = Files.size(temporaryPath);
+            try {
+                Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+
+        if (entriesSize.get() < 0 || entriesSize.addAndGet(size - replacedSize) > maxSize) {
+            evict();
+        }
+    }
+
+    // Hex SHA-256 of the compiler version, the options and the source
+    public static String getKey(byte[] source, String options) {
+        MessageDigest digest = getDigest();
+        digest.update(getCompilerVersion());
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source);
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+
+        return key.toString();
+    }
+
+    private static byte[] getCompilerVersion() {
+        if (compilerVersion == null) {
+            MessageDigest digest = getDigest();
+            digest.update(ByteBuffer.allocate(2).putShort(PcxFile.VERSION).array());
+
+            try {
+                for (Map.Entry<String, byte[]> classFile : getClassFiles().entrySet()) {
+                    digest.update(classFile.getKey().getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(classFile.getValue());
+                }
+
+                try (InputStream in = CompilationCache.class.getResourceAsStream(KEYWORDS_FILE_NAME)) {
+                    if (in != null) {
+                        digest.update(in.readAllBytes());
+                    } else if (Files.exists(Paths.get(KEYWORDS_FILE_NAME))) {
+                        // loaded from the current directory by the TokenScanner
+                        digest.update(Files.readAllBytes(Paths.get(KEYWORDS_FILE_NAME)));
+                    }
+                }
+            } catch (IOException | URISyntaxException e) {
+                throw new Error(String.format("Cannot read the compiler classes (%s)", e.getMessage()));
+            }
+
+            compilerVersion = digest.digest();
+        }
+
+        return compilerVersion;
+    }
+
+    // The class files of the default package in the directory or jar the compiler runs from, by name
+    private static TreeMap<String, byte[]> getClassFiles() throws IOException, URISyntaxException {
+        TreeMap<String, byte[]> classFilesTreeMap = new TreeMap<>();
+        CodeSource codeSource = CompilationCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            throw new IOException("the compiler has no code source");
+        }
+
+        Path location = Paths.get(codeSource.getLocation().toURI());
+        if (Files.isDirectory(location)) {
+            try (DirectoryStream<Path> classFiles = Files.newDirectoryStream(location, "*.class")) {
+                for (Path classFile : classFiles) {
+                    classFilesTreeMap.put(classFile.getFileName().toString(), Files.readAllBytes(classFile));
+                }
+            }
+        } else {
+            try (JarFile jarFile = new JarFile(location.toFile())) {
+                for (JarEntry entry : Collections.list(jarFile.entries())) {
+                    if (entry.getName().endsWith(".class") && entry.getName().indexOf('/') < 0) {
+                        try (InputStream in = jarFile.getInputStream(entry)) {
+                            classFilesTreeMap.put(entry.getName(), in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+
+        return classFilesTreeMap;
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 is not available");
+        }
+    }
+
+    // Delete the least recently used entries until they fit in maxSize
+    private static synchronized void evict() throws IOException {
+        ArrayList<Path> entriesArrayList = new ArrayList<>();
+        long size = 0;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.pcx")) {
+            for (Path entry : entries) {
+                try {
+                    size += Files.size(entry);
+                    entriesArrayList.add(entry);
+                } catch (NoSuchFileException e) {
+                    // evicted by another process
+                }
+            }
+        }
+
+        if (size <= maxSize) {
+            return;
+        }
+
+        entriesArrayList.sort(Comparator.comparing(CompilationCache::getLastModifiedTime));
+        for (Path entry : entriesArrayList) {
+            if (size <= maxSize) {
+                break;
+            }
+
+            try {
+                long entrySize = Files.size(entry);
+                Files.delete(entry);
+                size -= entrySize;
+            } catch (NoSuchFileException e) {
+                // evicted by another process
+            }
+        }
+        entriesSize.set(size);
+    }
+
+    // Bytes of the entry at path, 0 when there is none
+    private static long getSize(Path path) throws IOException {
+        try {
+            return Files.size(path);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        long size = getSize(path);
+        if (Files.deleteIfExists(path) && entriesSize.get() >= 0) {
+            entriesSize.addAndGet(-size);
+        }
+    }
+
+    private static FileTime getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // Add the lookups counted since the last flush to the hit and miss counters in the stats file, two longs
+    private static synchronized void flushStats() throws IOException {
+        nextStatsFlush.set(System.nanoTime() + STATS_FLUSH_NANOS);
+        long flushedHits = hits.sumThenReset();
+        long flushedMisses = misses.sumThenReset();
+        if (flushedHits == 0 && flushedMisses == 0) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve(STATS_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                long[] stats = readStats(channel);
+
+                ByteBuffer buffer = ByteBuffer.allocate(16);
+                buffer.putLong(stats[0] + flushedHits).putLong(stats[1] + flushedMisses).flip();
+                channel.write(buffer, 0);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static long[] readStats(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // read both counters
+        }
+
+        if (buffer.hasRemaining()) {
+            return new long[]{0, 0};
+        }
+
+        buffer.flip();
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    /*
+    Example:
+    cache: /home/user/.cache/pascal-compiler, hits: 12, misses: 3, entries: 3, bytes: 1840
+     */
+    public static String getStatistics() throws IOException {
+        long[] stats = {0, 0};
+        long entries = 0;
+        long size = 0;
+
+        flushStats();
+        if (Files.isDirectory(directory)) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(STATS_FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    stats = readStats(channel);
+                } finally {
+                    lock.release();
+                }
+            }
+
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*.pcx")) {
+                for (Path path : paths) {
+                    try {
+                        size += Files.size(path);
+                        entries++;
+                    } catch (NoSuchFileException e) {
+                        // evicted by another process
+                    }
+                }
+            }
+        }
+
+        return String.format("cache: %s, hits: %d, misses: %d, entries: %d, bytes: %d",
+                directory, stats[0], stats[1], entries, size);
+    }
+
+    public static void setDirectory(Path directory) {
+        CompilationCache.directory = directory;
+        entriesSize.set(-1);
+    }
+
+    public static void setMaxSize(long maxSize) {
+        CompilationCache.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+java Emulator daemon [--socket=<path>] [--threads=<n> | --virtual-threads [--safepoint-interval=<n>]]
+        [--job-timeout=<seconds>] [--cache-dir=<dir>] [--cache-size=<bytes>]
+        [--metrics-file=<file> [--metrics-interval=<seconds>]]
+java Emulator client [--socket=<path>] <command line>
+
+The daemon keeps the compiler and the VM loaded and JIT compiled in one JVM, and runs the command
+lines sent by clients over a Unix domain socket. Only its user can connect: the socket is bound in
+a new directory only the user can enter, made readable and writable by its owner alone and only
+then moved to its path, and the default one is in $XDG_RUNTIME_DIR or a directory of the temporary
+directory only the user can enter.
+Every job has its own TokenScanner, Parser, SymbolTable and Simulator, up to threads jobs
+(the number of cores by default) run at the same time, with --virtual-threads every job runs
+at once on its own virtual thread, see Scheduler. A program that runs longer than the job timeout
+(300 seconds by default, 0 for none) fails. The counters of the daemon are served by the
+pascal-compiler:type=Metrics MBean, and written to the metrics file every interval (10 seconds by default)
+in the Prometheus text format, see Metrics. The cache is that of the daemon, a job giving
+--cache-dir or --cache-size fails. Relative paths, of files and of options like --profile=<file>,
+are resolved by the client, keywords.txt is read from the directory of the daemon.
+
+Request:
+    <int argument count> <UTF argument>*   the command line, at most MAX_ARGUMENTS arguments
+    <int source length> <source bytes>     UTF-8 source of a <file.pas> given as -, length -1 without one,
+                                           at most MAX_SOURCE_BYTES
+Reply, frames until EXIT:
+    OUT <int length> <bytes>               output of the program
+    ERR <int length> <bytes>               errors and --stats
+    EXIT <int status>                      0, or 1 when the job failed
+ */
+public final class Daemon {
+    private static final byte OUT = 1;
+    private static final byte ERR = 2;
+    private static final byte EXIT = 3;
+
+    private static final String STDIN_FILE_NAME = "-";
+    private static final int MAX_ARGUMENTS = 256;
+    private static final int MAX_SOURCE_BYTES = 16 << 20;
+
+    // options of a command line whose value is a file, resolved by the client
+    private static final String[] PATH_OPTIONS = {"--metrics=", "--profile=", "--sample="};
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_READ_WRITE = PosixFilePermissions.fromString("rw-------");
+
+    public static void serve(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads = false;
+        long safepointInterval = Scheduler.DEFAULT_SAFEPOINT_INTERVAL;
+        Path metricsPath = null;
+        long metricsInterval = 10;
+        double jobTimeout = Scheduler.DEFAULT_JOB_TIMEOUT;
+        ArrayList<String> addressArgsArrayList = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.valueOf(arg.substring("--threads=".length()));
+            } else if (arg.equals("--virtual-threads")) {
+                virtualThreads = true;
+            } else if (arg.startsWith("--safepoint-interval=")) {
+                safepointInterval = Long.valueOf(arg.substring("--safepoint-interval=".length()));
+            } else if (arg.startsWith("--metrics-file=")) {
+                metricsPath = Paths.get(arg.substring("--metrics-file=".length()));
+            } else if (arg.startsWith("--metrics-interval=")) {
+                metricsInterval = Long.valueOf(arg.substring("--metrics-interval=".length()));
+            } else if (arg.startsWith("--job-timeout=")) {
+                jobTimeout = Double.valueOf(arg.substring("--job-timeout=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                CompilationCache.setDirectory(Paths.get(arg.substring("--cache-dir=".length())));
+            } else if (arg.startsWith("--cache-size=")) {
+                CompilationCache.setMaxSize(Long.valueOf(arg.substring("--cache-size=".length())));
+            } else {
+                addressArgsArrayList.add(arg);
+            }
+        }
+        if (addressArgsArrayList.size() > 1 || (addressArgsArrayList.size() == 1 && !isAddressOption(addressArgsArrayList.get(0)))) {
+            throw new Error(String.format("Unknown daemon option (%s)", addressArgsArrayList));
+        }
+
+        UnixDomainSocketAddress address = getAddress(addressArgsArrayList.isEmpty() ? null : addressArgsArrayList.get(0));
+        Path socketPath = address.getPath();
+        if (socketPath.getParent() != null && socketPath.getParent().getFileName().toString().equals(getPrivateDirectoryName())) {
+            createPrivateDirectory(socketPath.getParent());
+        }
+        // left behind by a daemon that was killed
+        Files.deleteIfExists(socketPath);
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }));
+        bind(server, socketPath);
+
+        Metrics.register();
+        if (metricsPath != null) {
+            Path path = metricsPath;
+            ScheduledExecutorService metricsExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metricsExecutor.scheduleAtFixedRate(() -> {
+                try {
+                    Metrics.dump(path, null);
+                } catch (IOException e) {
+                    System.err.println(String.format("daemon: cannot write metrics (%s)", e));
+                }
+            }, 0, metricsInterval, TimeUnit.SECONDS);
+        }
+
+        Scheduler scheduler = new Scheduler(virtualThreads, threads, safepointInterval);
+        scheduler.setJobTimeout(jobTimeout);
+        System.err.println(scheduler.isVirtual() ?
+                String.format("daemon: listening on %s with virtual threads", address) :
+                String.format("daemon: listening on %s with %d threads", address, threads));
+
+        while (true) {
+            SocketChannel channel = server.accept();
+            scheduler.submit(() -> handle(channel, scheduler));
+        }
+    }
+
+    // Read one job from channel, run it and stream back its output
+    private static void handle(SocketChannel channel, Scheduler scheduler) {
+        try (channel) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            DataOutputStream replyOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(OUT, replyOut), 1 << 13), false);
+            PrintStream err = new PrintStream(new BufferedOutputStream(new FrameOutputStream(ERR, replyOut), 1 << 10), false);
+
+            int status = 0;
+            try {
+                int argumentCount = in.readInt();
+                if (argumentCount < 0 || argumentCount > MAX_ARGUMENTS) {
+                    throw new Error(String.format("Request of %d arguments, at most %d are served", argumentCount, MAX_ARGUMENTS));
+                }
+                String[] args = new String[argumentCount];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+
+                String source = null;
+                int sourceLength = in.readInt();
+                if (sourceLength < -1 || sourceLength > MAX_SOURCE_BYTES) {
+                    throw new Error(String.format("Request of a %d byte source, at most %d are served", sourceLength, MAX_SOURCE_BYTES));
+                } else if (sourceLength >= 0) {
+                    byte[] sourceBytes = new byte[sourceLength];
+                    in.readFully(sourceBytes);
+                    source = new String(sourceBytes, StandardCharsets.UTF_8);
+                }
+
+                for (String arg : args) {
+                    if (arg.startsWith("--cache-dir=") || arg.startsWith("--cache-size=")) {
+                        throw new Error(String.format("Cache option (%s) is one of the daemon, give it to java Emulator daemon", arg));
+                    }
+                }
+                Emulator.execute(args, source, out, err, scheduler);
+            } catch (Error | RuntimeException | IOException e) {
+                out.flush();
+                err.println(e);
+                status = 1;
+            }
+
+            out.flush();
+            err.flush();
+            synchronized (replyOut) {
+                replyOut.writeByte(EXIT);
+                replyOut.writeInt(status);
+                replyOut.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, nothing to reply to
+        }
+    }
+
+    /*
+    Send the command line in args to the daemon, copy its output to System.out and System.err
+    and return the exit status of the job
+     */
+    public static int request(String[] args) throws IOException {
+        String addressArg = null;
+        ArrayList<String> commandArrayList = new ArrayList<>();
+        byte[] source = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (isAddressOption(arg) && commandArrayList.isEmpty()) {
+                addressArg = arg;
+            } else if (arg.equals(STDIN_FILE_NAME)) {
+                source = System.in.readAllBytes();
+                commandArrayList.add(arg);
+            } else if (arg.startsWith("--")) {
+                commandArrayList.add(getAbsoluteOption(arg));
+            } else if (commandArrayList.isEmpty() && (arg.equals("compile") || arg.equals("run"))) {
+                commandArrayList.add(arg);
+            } else {
+                // the daemon runs in another directory
+                commandArrayList.add(Paths.get(arg).toAbsolutePath().toString());
+            }
+        }
+
+        SocketAddress address = getAddress(addressArg);
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(address);
+
+            DataOutputStream requestOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            requestOut.writeInt(commandArrayList.size());
+            for (String arg : commandArrayList) {
+                requestOut.writeUTF(arg);
+            }
+            if (source != null) {
+                requestOut.writeInt(source.length);
+                requestOut.write(source);
+            } else {
+                requestOut.writeInt(-1);
+            }
+            requestOut.flush();
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (kind == OUT ? System.out : System.err).write(bytes);
+            }
+        } catch (EOFException e) {
+            throw new Error("Daemon closed the connection before the job finished");
+        }
+    }
+
+    private static boolean isAddressOption(String arg) {
+        return arg.startsWith("--socket=");
+    }
+
+    // --x=<file> with the file absolute when x is one of PATH_OPTIONS, arg otherwise
+    private static String getAbsoluteOption(String arg) {
+        for (String option : PATH_OPTIONS) {
+            if (arg.startsWith(option) && arg.length() > option.length()) {
+                return option + Paths.get(arg.substring(option.length())).toAbsolutePath();
+            }
+        }
+
+        return arg;
+    }
+
+    // --socket=<path>, or the default socket of the user
+    private static UnixDomainSocketAddress getAddress(String addressArg) {
+        if (addressArg != null) {
+            return UnixDomainSocketAddress.of(addressArg.substring("--socket=".length()));
+        }
+
+        String runtimeDirectory = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDirectory != null && !runtimeDirectory.isEmpty()) {
+            return UnixDomainSocketAddress.of(Paths.get(runtimeDirectory, "pascal-compiler.sock"));
+        }
+
+        return UnixDomainSocketAddress.of(Paths.get(System.getProperty("java.io.tmpdir"), getPrivateDirectoryName(), "daemon.sock"));
+    }
+
+    // directory of the default socket in the temporary directory, one per user
+    private static String getPrivateDirectoryName() {
+        return String.format("pascal-compiler-%s", System.getProperty("user.name"));
+    }
+
+    // directory only its owner can enter, which must be the user of the daemon when it exists
+    private static void createPrivateDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectory(directory);
+        } else if (!Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"))) {
+            throw new Error(String.format("Socket directory (%s) belongs to another user", directory));
+        }
+        setPermissions(directory, OWNER_ONLY);
+    }
+
+    /*
+    Bind server to socketPath without a moment it is open to other users: the socket is bound in a new
+    directory next to socketPath that only the user can enter, made private and then renamed into place
+     */
+    private static void bind(ServerSocketChannel server, Path socketPath) throws IOException {
+        Path parent = socketPath.toAbsolutePath().getParent();
+        Path bindDirectory;
+        try {
+            bindDirectory = Files.createTempDirectory(parent, ".pascal-compiler", PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (UnsupportedOperationException e) {
+            // no POSIX permissions, the file system keeps its own
+            bindDirectory = Files.createTempDirectory(parent, ".pascal-compiler");
+        }
+
+        try {
+            Path bindPath = bindDirectory.resolve("daemon.sock");
+            server.bind(UnixDomainSocketAddress.of(bindPath));
+            setPermissions(bindPath, OWNER_READ_WRITE);
+            Files.move(bindPath, socketPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(bindDirectory.resolve("daemon.sock"));
+            Files.delete(bindDirectory);
+        }
+    }
+
+    private static void setPermissions(Path path, Set<PosixFilePermission> permissions) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, permissions);
+        } catch (UnsupportedOperationException e) {
+            // no POSIX permissions, the file system keeps its own
+        }
+    }
+
+    // Writes every chunk of output as one frame of kind, OUT and ERR share the reply stream
+    private static final class FrameOutputStream extends OutputStream {
+        private final byte kind;
+        private final DataOutputStream replyOut;
+
+        FrameOutputStream(byte kind, DataOutputStream replyOut) {
+            this.kind = kind;
+            this.replyOut = replyOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (replyOut) {
+                replyOut.writeByte(kind);
+                replyOut.writeInt(length);
+                replyOut.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (replyOut) {
+                replyOut.flush();
+            }
+        }
+    }
+}
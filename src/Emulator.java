@@ -1,22 +1,345 @@
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public final class Emulator {
 
-    public static void main(String[] args) throws FileNotFoundException {
+    /*
+    java Emulator [options] <file.pas>                      compile and run
+    java Emulator compile [options] <file.pas> [<file.pcx>] compile to <file.pcx>, by default next to <file.pas>
+    java Emulator run <file.pcx>                            run a compiled program
+    java Emulator daemon [daemon options]                   serve jobs, see Daemon
+    java Emulator client [daemon options] <command line>    run a command line on the daemon, <file.pas> - reads stdin
+    java Emulator batch [options] <directory | file.pas | @list>...  compile and run many files in parallel, see Batch
+    java Emulator bench [bench options] [<directory | file.pas>...]  time the benchmarks and check their output, see BenchmarkRunner
+    java Emulator generate --lines=<n> [--seed=<n>] [<file.pas>]    write a program of n lines, see ProgramGenerator
+    java Emulator scale [--sizes=<lines>,...] [--seed=<n>] [--run]   time and heap per phase against program size, see ScaleReport
+
+    --unroll-factor=<n>     copies of a for loop body when unrolling, 1 disables unrolling
+    --unroll-budget=<bytes> maximum code size of an unrolled for loop body
+    --inline-budget=<bytes> maximum code size of a procedure body copied into its call sites, 0 disables inlining
+    --strip-lines           compile without the line table
+    --cache-dir=<dir>       directory of the compilation cache, see CompilationCache
+    --cache-size=<bytes>    maximum bytes of compiled programs kept in the cache
+    --no-cache              always scan and parse the source
+    --stats                 print the cache hit and miss counters
+    --timings               print the time spent per phase, see Timings
+    --trace=<n>             instructions printed with the error when the program fails, 0 disables the trace
+    --no-verify             run the program on the checked path of the VM without verifying it, see Verifier
+    --metrics[=<file>]      print the counters of the process in the Prometheus text format, see Metrics
+    --profile[=<file.json>] count and time the instructions the program runs per opcode and address, see Profiler, runs on the checked path
+    --sample[=<file>]       sample the source lines the program runs, to collapsed stacks in <file>, see SamplingProfiler, runs on the checked path
+    --sample-interval=<us>  microseconds between samples
+     */
+    static final int DEFAULT_TRACE_ENTRIES = 64;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("daemon")) {
+            Daemon.serve(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length > 0 && args[0].equals("client")) {
+            System.exit(Daemon.request(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0 && args[0].equals("batch")) {
+            if (Batch.run(Arrays.copyOfRange(args, 1, args.length)) > 0) {
+                System.exit(1);
+            }
+            return;
+        } else if (args.length > 0 && args[0].equals("bench")) {
+            System.exit(BenchmarkRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0 && args[0].equals("generate")) {
+            ProgramGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length > 0 && args[0].equals("scale")) {
+            ScaleReport.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        execute(args, null, System.out, System.err, null);
+    }
+
+    /*
+    Run one command line writing the output of the program to out, source is the text of
+    the Pascal file when it is not read from disk, the VM comes from scheduler when the command line
+    runs on one. Errors are thrown.
+     */
+    static void execute(String[] args, String source, PrintStream out, PrintStream err, Scheduler scheduler) throws IOException {
+        String command = null;
+        boolean cache = true;
+        boolean stats = false;
+        Timings timings = null;
+        String metrics = null; // Prometheus text file, "" for err
+        int traceEntries = DEFAULT_TRACE_ENTRIES;
+        boolean verify = true;
+        String profile = null; // JSON file of the profile, "" for the report only
+        String sample = null; // collapsed stacks file, "" for the report only
+        long sampleInterval = SamplingProfiler.DEFAULT_INTERVAL_MICROS;
+        ArrayList<String> optionsArrayList = new ArrayList<>(); // options that change the compiled program, part of the cache key
+        ArrayList<String> fileNamesArrayList = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i == 0 && (arg.equals("compile") || arg.equals("run"))) {
+                command = arg;
+            } else if (isCompileOption(arg)) {
+                optionsArrayList.add(arg);
+            } else if (arg.startsWith("--cache-dir=")) {
+                CompilationCache.setDirectory(Paths.get(arg.substring("--cache-dir=".length())));
+            } else if (arg.startsWith("--cache-size=")) {
+                CompilationCache.setMaxSize(Long.valueOf(arg.substring("--cache-size=".length())));
+            } else if (arg.equals("--no-cache")) {
+                cache = false;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--timings")) {
+                timings = new Timings();
+            } else if (arg.equals("--metrics") || arg.startsWith("--metrics=")) {
+                metrics = arg.substring(Math.min(arg.length(), "--metrics=".length()));
+            } else if (arg.startsWith("--trace=")) {
+                traceEntries = Integer.valueOf(arg.substring("--trace=".length()));
+            } else if (arg.equals("--no-verify")) {
+                verify = false;
+            } else if (arg.equals("--profile") || arg.startsWith("--profile=")) {
+                profile = arg.substring(Math.min(arg.length(), "--profile=".length()));
+            } else if (arg.equals("--sample") || arg.startsWith("--sample=")) {
+                sample = arg.substring(Math.min(arg.length(), "--sample=".length()));
+            } else if (arg.startsWith("--sample-interval=")) {
+                sampleInterval = Long.valueOf(arg.substring("--sample-interval=".length()));
+            } else if (arg.startsWith("--")) {
+                throw new Error(String.format("Unknown option (%s)", arg));
+            } else {
+                fileNamesArrayList.add(arg);
+            }
+        }
+
+        if (fileNamesArrayList.isEmpty()) {
+            throw new Error("run".equals(command) ? "No .pcx file given" : "No Pascal file given");
+        }
+        if (fileNamesArrayList.size() > ("compile".equals(command) ? 2 : 1)) {
+            throw new Error(String.format("Too many files given (%s)", fileNamesArrayList));
+        }
+        String fileName = fileNamesArrayList.get(0);
+
+        PcxFile pcxFile;
+        if ("run".equals(command)) {
+            long start = System.nanoTime();
+            pcxFile = PcxFile.read(Paths.get(fileName));
+            if (timings != null) {
+                timings.loadNanos = System.nanoTime() - start;
+            }
+        } else {
+            byte[] sourceBytes = source != null ? source.getBytes(StandardCharsets.UTF_8) : Files.readAllBytes(Paths.get(fileName));
+            pcxFile = compile(sourceBytes, optionsArrayList, cache, timings);
+        }
+
+        if (stats) {
+            err.println(CompilationCache.getStatistics());
+        }
+
+        if ("compile".equals(command)) {
+            if (fileNamesArrayList.size() == 1 && source != null) {
+                throw new Error("No .pcx file given for the source");
+            }
+            Path pcxPath = Paths.get(fileNamesArrayList.size() > 1 ? fileNamesArrayList.get(1) :
+                    fileName.replaceFirst("(\\.pas)?$", ".pcx"));
+            pcxFile.write(pcxPath);
+            if (timings != null) {
+                timings.print(err);
+            }
+            if (metrics != null) {
+                Metrics.dump(metrics.isEmpty() ? null : Paths.get(metrics), err);
+            }
+            return;
+        }
+
+//        System.out.println("\nOutput:");
+        Simulator simulator = scheduler != null ? scheduler.newSimulator(pcxFile, out) : new Simulator(pcxFile, out);
+
+        if (traceEntries > 0) {
+            simulator.setTrace(traceEntries, err);
+        }
+
+        if (verify) {
+            long start = System.nanoTime();
+            Verifier verifier = pcxFile.verify();
+            if (timings != null) {
+                timings.verifyNanos = System.nanoTime() - start;
+                timings.verifier = verifier;
+            }
+        } else {
+            simulator.setVerify(false);
+        }
+
+        Profiler profiler = null;
+        if (profile != null) {
+            profiler = new Profiler(pcxFile);
+            simulator.setProfiler(profiler);
+        }
+        SamplingProfiler sampler = null;
+        if (sample != null) {
+            sampler = new SamplingProfiler(pcxFile, sampleInterval);
+            simulator.setSampler(sampler);
+        }
+
+        long start = System.nanoTime();
+        simulator.simulate();
+        if (timings != null) {
+            timings.executeNanos = System.nanoTime() - start;
+            timings.instructions = simulator.getInstructions();
+            timings.outputBytes = simulator.getOutputBytes();
+            timings.print(err);
+        }
+
+        out.flush();
+        if (profiler != null) {
+            profiler.report(err);
+            if (!profile.isEmpty()) {
+                profiler.writeJson(Paths.get(profile));
+            }
+        }
+        if (sampler != null) {
+            sampler.report(err);
+            if (!sample.isEmpty()) {
+                sampler.writeCollapsed(Paths.get(sample));
+            }
+        }
+        if (metrics != null) {
+            Metrics.dump(metrics.isEmpty() ? null : Paths.get(metrics), err);
+        }
+    }
+
+    // Options that change the compiled program, part of the cache key
+    static boolean isCompileOption(String arg) {
+        return arg.startsWith("--unroll-factor=") || arg.startsWith("--unroll-budget=") ||
+                arg.startsWith("--inline-budget=") || arg.equals("--strip-lines");
+    }
+
+    // Compile source with its own scanner and parser, or take it from the cache, timings may be null
+    static PcxFile compile(byte[] source, ArrayList<String> optionsArrayList, boolean cache, Timings timings) throws IOException {
+        long start = System.nanoTime();
+        String key = null;
+        if (cache) {
+            key = CompilationCache.getKey(source, String.join(" ", optionsArrayList));
+
+            PcxFile pcxFile = CompilationCache.get(key);
+            if (timings != null) {
+                timings.cacheNanos = System.nanoTime() - start;
+                timings.cacheHit = pcxFile != null;
+            }
+            if (pcxFile != null) {
+                return pcxFile;
+            }
+        }
+
 //        System.out.println("Scanner output:");
-        ArrayList<Token> tokenArrayList = TokenScanner.scan(new File(args[0]));
+        start = System.nanoTime();
+        long compileStart = start;
+        ArrayList<Token> tokenArrayList = new TokenScanner().scan(new String(source, StandardCharsets.UTF_8));
+        if (timings != null) {
+            timings.scanNanos = System.nanoTime() - start;
+            timings.tokens = tokenArrayList.size();
+        }
 
 //        System.out.println("\nParser output:");
-        Parser.setTokenArrayListIterator(tokenArrayList);
+        Parser parser = new Parser(tokenArrayList);
 
-        Byte[] instructions = Parser.parse();
-        Simulator.setInstructions(instructions);
+        boolean lineTable = true;
+        for (String option : optionsArrayList) {
+            if (option.startsWith("--unroll-factor=")) {
+                parser.setUnrollFactor(Integer.valueOf(option.substring("--unroll-factor=".length())));
+            } else if (option.startsWith("--unroll-budget=")) {
+                parser.setUnrollBudget(Integer.valueOf(option.substring("--unroll-budget=".length())));
+            } else if (option.startsWith("--inline-budget=")) {
+                parser.setInlineBudget(Integer.valueOf(option.substring("--inline-budget=".length())));
+            } else if (option.equals("--strip-lines")) {
+                lineTable = false;
+            }
+        }
 
-//        System.out.println("\nOutput:");
-        Simulator.simulate();
+        start = System.nanoTime();
+        Byte[] instructions = parser.parse();
+        Metrics.recordCompile(System.nanoTime() - compileStart);
+        if (timings != null) {
+            timings.optimizeNanos = parser.getOptimizeNanos();
+            timings.parseNanos = System.nanoTime() - start - timings.optimizeNanos;
+            timings.codeBytes = parser.getCodeSize();
+            timings.symbols = parser.getSymbolStatistics();
+        }
+
+        PcxFile pcxFile = PcxFile.fromParser(parser, instructions, lineTable);
+        if (key != null) {
+            start = System.nanoTime();
+            CompilationCache.put(key, pcxFile);
+            if (timings != null) {
+                timings.cacheNanos += System.nanoTime() - start;
+            }
+        }
+
+        return pcxFile;
+    }
+
+    /*
+    Time spent per phase of one command line, printed by --timings:
+        phase         ms      %
+        cache       0.84    2.1  miss
+        scan        4.12   10.3  212 tokens
+        parse       9.35   23.4  1032 bytes of code
+        optimize    0.41    1.0  unrolling, inlining and tail calls
+        verify      0.12    0.3  verified, 6 stack slots
+        execute    25.20   63.1  750425 instructions, 29.8 M/s, 80 bytes of output
+        total      39.92
+    Parse excludes the optimizations the Parser applies while parsing. A program taken from the cache
+    or run from a .pcx file is not scanned or parsed, load is the time to read a .pcx file. The
+    Verifier is kept with the PcxFile, running it again does not verify it again.
+     */
+    static final class Timings {
+        long cacheNanos = 0;
+        boolean cacheHit = false;
+        long scanNanos = 0;
+        long parseNanos = 0;
+        long optimizeNanos = 0;
+        long loadNanos = 0;
+        long verifyNanos = 0;
+        long executeNanos = 0;
+
+        int tokens = 0;
+        int codeBytes = 0;
+        String symbols = null; // symbol table statistics, null when the program was not parsed
+        long instructions = 0;
+        long outputBytes = 0;
+        Verifier verifier = null;
+
+        void print(PrintStream err) {
+            long total = cacheNanos + scanNanos + parseNanos + optimizeNanos + loadNanos + verifyNanos + executeNanos;
 
+            err.println(String.format("%-8s %9s %6s", "phase", "ms", "%"));
+            printPhase(err, "cache", cacheNanos, total, cacheHit ? "hit" : "miss");
+            printPhase(err, "scan", scanNanos, total, String.format("%d tokens", tokens));
+            printPhase(err, "parse", parseNanos, total, String.format("%d bytes of code", codeBytes));
+            printPhase(err, "optimize", optimizeNanos, total, "unrolling, inlining and tail calls");
+            printPhase(err, "load", loadNanos, total, "");
+            if (verifier != null) {
+                printPhase(err, "verify", verifyNanos, total, !verifier.isVerified() ? "checked, " + verifier.getReason() :
+                        verifier.getMaxStack() < 0 ? "verified, the stack grows with recursion" :
+                        String.format("verified, %d stack slots", verifier.getMaxStack()));
+            }
+            printPhase(err, "execute", executeNanos, total, String.format("%d instructions, %.1f M/s, %d bytes of output",
+                    instructions, executeNanos == 0 ? 0 : instructions * 1e3 / executeNanos, outputBytes));
+            err.println(String.format("%-8s %9.2f", "total", total / 1e6));
+            if (symbols != null) {
+                err.println(String.format("%-8s %s", "symbols", symbols));
+            }
+        }
 
+        // A phase that did not run is left out
+        private static void printPhase(PrintStream err, String phase, long nanos, long total, String detail) {
+            if (nanos > 0) {
+                err.println(String.format("%-8s %9.2f %6.1f  %s", phase, nanos / 1e6, 100.0 * nanos / total, detail));
+            }
+        }
     }
 }
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+Counters of the programs this process compiled and ran, for the daemon and batch mode. Updated once
+per program by every worker thread, the instructions and run time of the VMs of the daemon and batch
+also at their safepoints while they run, see Scheduler, so they are striped LongAdders and
+LongAccumulators that threads do not contend on. They are read through the pascal-compiler:type=Metrics platform MBean
+(jconsole, jcmd, any JMX client) or dumped in the Prometheus text format:
+
+    # TYPE pascal_programs_compiled_total counter
+    pascal_programs_compiled_total 12
+    # TYPE pascal_compile_latency_seconds histogram
+    pascal_compile_latency_seconds_bucket{le="1.0E-4"} 0
+    pascal_compile_latency_seconds_bucket{le="5.0E-4"} 2
+    pascal_compile_latency_seconds_bucket{le="0.001"} 3
+    ...
+ */
+public final class Metrics implements MetricsMBean {
+    private static final double[] LATENCY_BUCKETS_MILLIS = {0.1, 0.5, 1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    private static final Metrics METRICS = new Metrics();
+
+    private final LongAdder programsCompiled = new LongAdder();
+    private final LongAdder programsExecuted = new LongAdder();
+    private final LongAdder programsFailed = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder[] compileLatencyBuckets = new LongAdder[LATENCY_BUCKETS_MILLIS.length + 1]; // the last is +Inf
+    private final LongAdder instructionsExecuted = new LongAdder();
+    private final LongAdder executeNanos = new LongAdder();
+    private final LongAccumulator operandStackHighWaterMark = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator dataBytesHighWaterMark = new LongAccumulator(Math::max, 0);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private static boolean registered = false;
+
+    private Metrics() {
+        for (int i = 0; i < compileLatencyBuckets.length; i++) {
+            compileLatencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    // Register the MBean once, for processes that live long enough to be watched
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(METRICS, new ObjectName("pascal-compiler:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            throw new Error(String.format("Cannot register the metrics MBean (%s)", e));
+        }
+    }
+
+    static void recordCompile(long nanos) {
+        METRICS.programsCompiled.increment();
+        METRICS.compileNanos.add(nanos);
+
+        double millis = nanos / 1e6;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        METRICS.compileLatencyBuckets[bucket].increment();
+    }
+
+    // A running program ran instructions more in nanos more
+    static void recordProgress(long instructions, long nanos) {
+        METRICS.instructionsExecuted.add(instructions);
+        METRICS.executeNanos.add(nanos);
+    }
+
+    // The end of a program, with the instructions and nanos not recorded as progress
+    static void recordExecute(long instructions, long nanos, int operandStackDepth, int dataBytes, boolean failed) {
+        METRICS.programsExecuted.increment();
+        if (failed) {
+            METRICS.programsFailed.increment();
+        }
+        METRICS.instructionsExecuted.add(instructions);
+        METRICS.executeNanos.add(nanos);
+        METRICS.operandStackHighWaterMark.accumulate(operandStackDepth);
+        METRICS.dataBytesHighWaterMark.accumulate(dataBytes);
+    }
+
+    static void recordCacheLookup(boolean hit) {
+        (hit ? METRICS.cacheHits : METRICS.cacheMisses).increment();
+    }
+
+    @Override
+    public long getProgramsCompiled() {
+        return programsCompiled.sum();
+    }
+
+    @Override
+    public long getProgramsExecuted() {
+        return programsExecuted.sum();
+    }
+
+    @Override
+    public long getProgramsFailed() {
+        return programsFailed.sum();
+    }
+
+    // Mean compile time of the programs compiled
+    @Override
+    public double getCompileLatencyMillis() {
+        long compiled = programsCompiled.sum();
+        return compiled == 0 ? 0 : compileNanos.sum() / 1e6 / compiled;
+    }
+
+    @Override
+    public double[] getCompileLatencyBucketsMillis() {
+        return LATENCY_BUCKETS_MILLIS.clone();
+    }
+
+    // Programs compiled per bucket, not cumulative, the last bucket counts the ones slower than all bounds
+    @Override
+    public long[] getCompileLatencyHistogram() {
+        long[] histogram = new long[compileLatencyBuckets.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = compileLatencyBuckets[i].sum();
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public long getInstructionsExecuted() {
+        return instructionsExecuted.sum();
+    }
+
+    // Instructions per second of the time spent running programs, summed over threads
+    @Override
+    public double getInstructionsPerSecond() {
+        long nanos = executeNanos.sum();
+        return nanos == 0 ? 0 : instructionsExecuted.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getOperandStackHighWaterMark() {
+        return operandStackHighWaterMark.get();
+    }
+
+    @Override
+    public long getDataBytesHighWaterMark() {
+        return dataBytesHighWaterMark.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long lookups = cacheHits.sum() + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) cacheHits.sum() / lookups;
+    }
+
+    // The text exposition format, lines end in \n on every platform
+    public static String getPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "pascal_programs_compiled_total", "counter", METRICS.getProgramsCompiled());
+        appendMetric(text, "pascal_programs_executed_total", "counter", METRICS.getProgramsExecuted());
+        appendMetric(text, "pascal_programs_failed_total", "counter", METRICS.getProgramsFailed());
+
+        text.append("# TYPE pascal_compile_latency_seconds histogram\n");
+        long cumulative = 0;
+        long[] histogram = METRICS.getCompileLatencyHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            cumulative += histogram[i];
+            String bound = i < LATENCY_BUCKETS_MILLIS.length ? String.format(Locale.ROOT, "%s", LATENCY_BUCKETS_MILLIS[i] / 1e3) : "+Inf";
+            text.append(String.format("pascal_compile_latency_seconds_bucket{le=\"%s\"} %d\n", bound, cumulative));
+        }
+        text.append(String.format(Locale.ROOT, "pascal_compile_latency_seconds_sum %.9f\n", METRICS.compileNanos.sum() / 1e9));
+        text.append(String.format("pascal_compile_latency_seconds_count %d\n", cumulative));
+
+        appendMetric(text, "pascal_instructions_executed_total", "counter", METRICS.getInstructionsExecuted());
+        appendMetric(text, "pascal_execute_seconds_total", "counter", METRICS.executeNanos.sum() / 1e9);
+        appendMetric(text, "pascal_instructions_per_second", "gauge", METRICS.getInstructionsPerSecond());
+        appendMetric(text, "pascal_operand_stack_high_water_mark", "gauge", METRICS.getOperandStackHighWaterMark());
+        appendMetric(text, "pascal_data_bytes_high_water_mark", "gauge", METRICS.getDataBytesHighWaterMark());
+        appendMetric(text, "pascal_cache_hits_total", "counter", METRICS.getCacheHits());
+        appendMetric(text, "pascal_cache_misses_total", "counter", METRICS.getCacheMisses());
+
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, Number value) {
+        text.append(String.format("# TYPE %s %s\n", name, type));
+        text.append(String.format(Locale.ROOT, "%s %s\n", name, value));
+    }
+
+    // Write the Prometheus text to path, or to out when path is null
+    public static void dump(Path path, PrintStream out) throws IOException {
+        if (path == null) {
+            out.print(getPrometheusText());
+            out.flush();
+            return;
+        }
+
+        // moved into place so a scraper never reads half a file
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporaryPath, getPrometheusText().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+Attributes of the pascal-compiler:type=Metrics MBean, see Metrics
+ */
+public interface MetricsMBean {
+    long getProgramsCompiled();
+
+    long getProgramsExecuted();
+
+    long getProgramsFailed();
+
+    double getCompileLatencyMillis();
+
+    double[] getCompileLatencyBucketsMillis();
+
+    long[] getCompileLatencyHistogram();
+
+    long getInstructionsExecuted();
+
+    double getInstructionsPerSecond();
+
+    long getOperandStackHighWaterMark();
+
+    long getDataBytesHighWaterMark();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+}
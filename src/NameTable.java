@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+Example:
+    var x, y: integer;
+    x := y
+
+    intern("x") = 0, intern("y") = 1, intern("x") = 0
+
+Every identifier is interned once by the TokenScanner, after that the
+Parser and SymbolTable only compare and index by the int name id.
+Every TokenScanner has its own table, the ids are those of one compilation
+and the table goes with it.
+ */
+public final class NameTable {
+    private final HashMap<String, Integer> nameIdHashMap = new HashMap<>();
+    private final ArrayList<String> namesArrayList = new ArrayList<>();
+
+    public int intern(String name) {
+        Integer nameId = nameIdHashMap.get(name);
+        if (nameId == null) {
+            nameId = namesArrayList.size();
+            namesArrayList.add(name);
+            nameIdHashMap.put(name, nameId);
+        }
+
+        return nameId;
+    }
+
+    public String getName(int nameId) {
+        return namesArrayList.get(nameId);
+    }
+
+    public int size() {
+        return namesArrayList.size();
+    }
+}
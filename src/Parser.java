@@ -1,15 +1,20 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 
 // GJK
 public final class Parser {
     enum TYPE {
-        I, R, B, C, S, P, L, A     // integer, real, boolean, char, string, procedure, label, array
+        I, R, B, C, S, P, L, A, E     // integer, real, boolean, char, string, procedure, label, array, set
     }
 
-    private static int dp = 0; // data pointer for vars
+    private int dp = 0; // data pointer for vars
 
     private static final HashMap<String, TYPE> STRING_TYPE_HASH_MAP;
     static {
@@ -24,31 +29,178 @@ public final class Parser {
     }
 
     enum OP_CODE {
-        PUSHI, PUSH, POP,PUSHF,
-        JMP, JFALSE, JTRUE,
-        CVR, CVI,
-        DUP, XCHG, REMOVE,
-        ADD, SUB, MULT, DIV, NEG,
-        OR, AND,
-        FADD, FSUB, FMULT, FDIV, FNEG,
-        EQL, NEQL, GEQ, LEQ, GTR, LSS,
-        FGTR, FLSS,
-        HALT,
-        PRINT_INT, PRINT_CHAR, PRINT_BOOL, PRINT_REAL, PRINT_NEWLINE,
-        GET, PUT
+        PUSHI(1), PUSH(1), POP(1), PUSHF(1),
+        JMP(1), JFALSE(1), JTRUE(1), TABLESWITCH(-1), LOOKUPSWITCH(-1),
+        FOR_LOOP(4), FOR_NEXT(5), INCR(2),
+        CALL(1), ENTER(1), RET(0),
+        CVR(0), CVI(0),
+        DUP(0), XCHG(0), REMOVE(0),
+        ADD(0), SUB(0), MULT(0), DIV(0), NEG(0),
+        OR(0), AND(0),
+        FADD(0), FSUB(0), FMULT(0), FDIV(0), FNEG(0),
+        EQL(0), NEQL(0), GEQ(0), LEQ(0), GTR(0), LSS(0),
+        FGTR(0), FLSS(0),
+        HALT(0),
+        PRINT_INT(0), PRINT_CHAR(0), PRINT_BOOL(0), PRINT_REAL(0), PRINT_NEWLINE(0),
+        GET(0), PUT(0),
+        LOAD8(1), STORE8(1), GET8(0), PUT8(0),
+        SET_CLEAR(1), SET_INCL(0), SET_RANGE(0), SET_COPY(1),
+        SET_UNION(1), SET_INTER(1), SET_DIFF(1),
+        SET_EQL(0), SET_NEQL(0), SET_IN(0), SET_TEST(5);
+
+        final int operands; // number of ADDRESS_SIZE operands, -1 for the variable length switches
+
+        OP_CODE(int operands) {
+            this.operands = operands;
+        }
     }
 
+    private static final OP_CODE[] OP_CODES = OP_CODE.values();
+
     private static final int ADDRESS_SIZE = 4;
+    private static final int MAX_TABLE_SPAN = 1 << 12; // entries of the largest TABLESWITCH
+
+    // flag of the data addresses of parameters, locals and temporaries, relative to the frame of the running call
+    static final int FRAME_ADDRESS = 1 << 30;
+
+    /*
+    Every set is SET_SIZE bytes of data, the bit of ordinal x is bit x & 63 of the big-endian word x >>> 6.
+    The set instructions take and leave the data address of a set on the stack, and write their
+    result to a set temporary:
+
+        SET_CLEAR <temporary>     push the address of the temporary emptied
+        SET_INCL                  x, add x to the set below it
+        SET_RANGE                 low, high, add low..high to the set below them
+        SET_COPY <variable>       copy the set into the variable
+        SET_UNION <temporary>     a, b, push a + b, SET_INTER a * b and SET_DIFF a - b, 64 bits at a time
+        SET_EQL, SET_NEQL         a, b, push a = b or a <> b
+        SET_IN                    x, a, push x in a
+        SET_TEST <low> <bits>*4   x, push x in the constant set of the 128 bits from low
+     */
+    static final int SET_SIZE = 32;
+    static final int SET_ELEMENTS = SET_SIZE * 8; // ordinals 0..255
+    static final int SET_TEST_ELEMENTS = 128;
+    private static final int SET_ALIGNMENT = 8;
+
+    // element type of the set expression compiled last, null for []
+    private TYPE setElementType = null;
+
+    // set temporaries of the procedure or main program, the first setTemporaries in use by the statement
+    private ArrayList<Integer> setTemporariesArrayList = new ArrayList<>();
+    private int setTemporaries = 0;
 
-    private static Token currentToken;
-    private static Iterator<Token> it;
+    // the set constructor of constants compiled last at [constantSetStart, constantSetEnd), see setIn
+    private long[] constantSet = null;
+    private int constantSetStart = -1;
+    private int constantSetEnd = -1;
+
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    private Token currentToken;
+    private Token nextToken; // token read ahead by peekToken
+    private Iterator<Token> it;
 
     private static final int INSTRUCTION_SIZE = 1000;
 
-    private static Byte[] byteArray = new Byte[INSTRUCTION_SIZE];
-    private static int ip = 0;
+    private Byte[] byteArray = new Byte[INSTRUCTION_SIZE];
+    private int ip = 0;
+
+    // source line of the statement each instruction was emitted for, by the address of its opcode
+    private int[] linesArray = new int[INSTRUCTION_SIZE];
+    private int line = 0;
+
+    // operands of PUSHF, by their index
+    private ArrayList<Float> constantsArrayList = new ArrayList<>();
+    private HashMap<Integer, Integer> constantIndexHashMap = new HashMap<>(); // float bits -> index
+
+    /*
+    A while or for loop being compiled. Array addresses in its body are kept in temporaries
+    initialized in the loop preheader instead of being recomputed on every access:
+        a[<for loop variable>] -> induction pointer, advanced by step * element size every iteration
+        a[<var not yet written in the loop>] -> invariant address, recomputed only after var is written
+     */
+    static class Loop {
+        Symbol variable = null; // control variable of a for loop, null for a while loop
+        int step = 0;
+
+        ArrayList<Temporary> temporariesArrayList = new ArrayList<>();
+
+        HashSet<Integer> writtenHashSet = new HashSet<>(); // addresses assigned in the body so far
+        boolean calls = false; // body has called a procedure so far
+    }
+
+    static class Temporary {
+        Symbol array;
+        Symbol index;
+        int address; // data address of the temporary holding the element address
+        boolean induction; // index is the control variable of the loop
+    }
+
+    // loops being compiled, innermost last
+    private ArrayList<Loop> loopsArrayList = new ArrayList<>();
+
+    // procedure or function declared so far
+    static class Procedure {
+        Symbol symbol;
+        ArrayList<TYPE> parameterTypesArrayList;
+        int frameSize = 0; // bytes of parameters, result, locals and temporaries
+        int resultAddress = 0; // frame address of the function result
+        int prologue; // address after ENTER, where the parameters are popped, target of tail calls
+        int end; // address after RET
+    }
+
+    private HashMap<Symbol, Procedure> proceduresHashMap = new HashMap<>();
+
+    // procedure being compiled, null in the main program
+    private Procedure currentProcedure = null;
+
+    // maximum JMPs followed from a self call to the epilogue for it to be a tail call
+    private static final int TAIL_JUMPS = 8;
+
+    // body of a procedure small enough to be copied into its call sites
+    static class InlineBody {
+        Byte[] bodyArray;
+        int[] linesArray;
+        int address; // address the body was compiled at
+        ArrayList<Symbol> writtenArrayList; // variables the body assigns
+    }
+
+    private HashMap<Symbol, InlineBody> inlineBodiesHashMap = new HashMap<>();
+
+    // variables assigned by the procedure being compiled, null outside of procedures
+    private ArrayList<Symbol> procedureWrittenArrayList = null;
+
+    // maximum bytes of code of a procedure body copied into its call sites, 0 disables inlining
+    private int inlineBudget = 32;
+
+    // address of the labels placed so far, and the holes of the gotos to labels not placed yet
+    private HashMap<Symbol, Integer> labelAddressHashMap = new HashMap<>();
+    private HashMap<Symbol, ArrayList<Integer>> gotoHolesHashMap = new HashMap<>();
+
+    // number of jumps/holes emitted that are tied to their address (goto, label), code containing them cannot be copied
+    private int pinnedCount = 0;
+
+    // copies of a constant trip count for loop body, 1 or less disables unrolling
+    private int unrollFactor = 4;
+    // maximum bytes of code an unrolled for loop body may grow to
+    private int unrollBudget = 256;
+
+    // optimizations applied, and the time spent applying them
+    private int unrolledLoops = 0;
+    private int inlinedCalls = 0;
+    private int tailCalls = 0;
+    private long optimizeNanos = 0;
+
+    public Parser(ArrayList<Token> tokenArrayList) {
+        it = tokenArrayList.iterator();
+    }
+
+    public Byte[] parse() {
+        PipelineEvents.ParseEvent event = PipelineEvents.isRecording() ? new PipelineEvents.ParseEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
 
-    public static Byte[] parse() {
         getToken(); // Get initial token
 
         match("TK_PROGRAM");
@@ -57,6 +209,17 @@ public final class Parser {
 
         program();
 
+        if (event != null && event.shouldCommit()) {
+            event.codeBytes = ip;
+            event.symbols = symbolTable.getSymbolCount();
+            event.constants = constantsArrayList.size();
+            event.unrolledLoops = unrolledLoops;
+            event.inlinedCalls = inlinedCalls;
+            event.tailCalls = tailCalls;
+            event.optimizeNanos = optimizeNanos;
+            event.commit();
+        }
+
         return byteArray;
     }
 
@@ -67,7 +230,7 @@ public final class Parser {
 	    <begin-statement>.
     <program stat> -> E
      */
-    public static void program() {
+    public void program() {
         declarations();
         begin();
     }
@@ -82,13 +245,14 @@ public final class Parser {
 	    <function ______,,______>
 	-> E
      */
-    public static void declarations() {
+    public void declarations() {
         while (true) {
             switch (currentToken.getTokenType()) {
                 case "TK_VAR":
                     varDeclarations();
                     break;
                 case "TK_PROCEDURE":
+                case "TK_FUNCTION":
                     procDeclaration();
                     break;
                 case "TK_LABEL":
@@ -101,7 +265,7 @@ public final class Parser {
     }
 
     // label <namelist>;
-    private static void labelDeclarations() {
+    private void labelDeclarations() {
         while(true) {
             if ("TK_LABEL".equals(currentToken.getTokenType())) {
                 match("TK_LABEL");
@@ -128,13 +292,13 @@ public final class Parser {
             for (Token label : labelsArrayList) {
 
 
-                Symbol symbol = new Symbol(label.getTokenValue(),
+                Symbol symbol = new Symbol(label,
                         "TK_A_LABEL",
                         TYPE.L,
                         0);
 
-                if (SymbolTable.lookup(label.getTokenValue()) == null) {
-                    SymbolTable.insert(symbol);
+                if (symbolTable.lookup(label) == null) {
+                    symbolTable.insert(symbol);
                 }
             }
 
@@ -143,54 +307,278 @@ public final class Parser {
     }
 
     /*
-    <procedure decl> -> procedure <name> [params];
-        <declarations>
+    <procedure decl> -> procedure <name> [(<params>)];
+        [<var decl>]
         <begin-statement>
-            <statement> -> <procedure call>
+    <function decl> -> function <name> [(<params>)]: <type>;
+        [<var decl>]
+        <begin-statement>
+    <params> -> <namelist>: <type> [; <namelist>: <type>]^*
+
+    Parameters, the function result, locals and loop temporaries live in a frame allocated by ENTER,
+    their addresses are tagged with FRAME_ADDRESS:
+
+        JMP past
+        entry: ENTER <frame size>
+        prologue: POP <last parameter> ... POP <first parameter>
+        body: <statements>
+        [PUSH <result>] RET
+        past:
+
+    A call pushes the arguments and CALLs entry, a function returns its result on the stack.
+    Self calls in tail position jump back to the prologue instead, see genTailCalls.
     */
-    private static void procDeclaration() {
-        // declaration
-        if (currentToken.getTokenType().equals("TK_PROCEDURE")) {
-            match("TK_PROCEDURE");
-            currentToken.setTokenType("TK_A_PROC");
+    private void procDeclaration() {
+        line = currentToken.getLineRow() + 1;
+        boolean function = currentToken.getTokenType().equals("TK_FUNCTION");
+        match(currentToken.getTokenType());
 
-            String procedureName = currentToken.getTokenValue();
+        currentToken.setTokenType("TK_A_PROC");
+        Token procedureToken = currentToken;
+        String procedureName = currentToken.getTokenValue();
+        match("TK_A_PROC");
 
-            match("TK_A_PROC");
-            match("TK_SEMI_COLON");
+        // parameters
+        ArrayList<Token> parametersArrayList = new ArrayList<>();
+        ArrayList<TYPE> parameterTypesArrayList = new ArrayList<>();
+        if (currentToken.getTokenType().equals("TK_OPEN_PARENTHESIS")) {
+            match("TK_OPEN_PARENTHESIS");
 
-            // generate hole to jump past the body
-            genOpCode(OP_CODE.JMP);
-            int hole = ip;
-            genAddress(0);
+            while (true) {
+                int first = parametersArrayList.size();
+                while ("TK_IDENTIFIER".equals(currentToken.getTokenType())) {
+                    currentToken.setTokenType("TK_A_VAR");
+                    parametersArrayList.add(currentToken);
+                    match("TK_A_VAR");
 
-            Symbol symbol = new Symbol(procedureName,
-                    "TK_A_PROC",
-                    TYPE.P,
-                    ip);
+                    if ("TK_COMMA".equals(currentToken.getTokenType())) {
+                        match("TK_COMMA");
+                    }
+                }
 
-            // body
-            match("TK_BEGIN");
-            statements();
-            match("TK_END");
-            match("TK_SEMI_COLON");
+                match("TK_COLON");
+                TYPE type = getSimpleType();
+                for (int i = first; i < parametersArrayList.size(); i++) {
+                    parameterTypesArrayList.add(type);
+                }
 
-            // hole to return the procedure
-            genOpCode(OP_CODE.JMP);
-            symbol.setReturnAddress(ip);
-            genAddress(0);
+                if (currentToken.getTokenType().equals("TK_SEMI_COLON")) {
+                    match("TK_SEMI_COLON");
+                } else {
+                    break;
+                }
+            }
+
+            match("TK_CLOSE_PARENTHESIS");
+        }
 
-            if (SymbolTable.lookup(procedureName) == null) {
-                SymbolTable.insert(symbol);
+        TYPE resultType = TYPE.P;
+        if (function) {
+            match("TK_COLON");
+            resultType = getSimpleType();
+        }
+
+        match("TK_SEMI_COLON");
+
+        // generate hole to jump past the body
+        genOpCode(OP_CODE.JMP);
+        int hole = ip;
+        genAddress(0);
+
+        Symbol symbol = new Symbol(procedureToken,
+                "TK_A_PROC",
+                resultType,
+                ip);
+
+        // visible to its own body for recursion
+        if (symbolTable.lookupCurrentScope(procedureToken) == null) {
+            symbolTable.insert(symbol);
+        }
+
+        Procedure procedure = new Procedure();
+        procedure.symbol = symbol;
+        procedure.parameterTypesArrayList = parameterTypesArrayList;
+        proceduresHashMap.put(symbol, procedure);
+
+        currentProcedure = procedure;
+        setTemporariesArrayList = new ArrayList<>();
+        symbolTable.openScope();
+
+        ArrayList<Symbol> parameterSymbolsArrayList = new ArrayList<>();
+        for (int i = 0; i < parametersArrayList.size(); i++) {
+            Token parameter = parametersArrayList.get(i);
+            if (symbolTable.lookupCurrentScope(parameter) != null) {
+                throw new Error(String.format("Parameter (%s) is declared twice", parameter.getTokenValue()));
             }
 
-            // fill in the hole to jump past the body
-            int save = ip;
+            Symbol parameterSymbol = new Symbol(parameter, "TK_A_VAR", parameterTypesArrayList.get(i),
+                    allocate(getSize(parameterTypesArrayList.get(i))));
+            symbolTable.insert(parameterSymbol);
+            parameterSymbolsArrayList.add(parameterSymbol);
+        }
 
-            ip = hole;
-            genAddress(save);
-            ip = save;
+        if (function) {
+            procedure.resultAddress = allocate(getSize(resultType));
+        }
+
+        genOpCode(OP_CODE.ENTER);
+        int frameHole = ip;
+        genAddress(0);
+
+        procedure.prologue = ip;
+        for (int i = parameterSymbolsArrayList.size() - 1; i >= 0; i--) {
+            genOpCode(getStore(parameterSymbolsArrayList.get(i).getDataType()));
+            genAddress(parameterSymbolsArrayList.get(i).getAddress());
+        }
+
+        varDeclarations();
+
+        int pinned = pinnedCount;
+        procedureWrittenArrayList = new ArrayList<>();
+
+        // body
+        int body = ip;
+        match("TK_BEGIN");
+        statements();
+        match("TK_END");
+        match("TK_SEMI_COLON");
+
+        long start = System.nanoTime();
+        genTailCalls(procedure, ip);
+        optimizeNanos += System.nanoTime() - start;
+
+        // keep a copy of small bodies without a frame or jumps patched in place for inlining
+        if (!function && procedure.frameSize == 0 && pinned == pinnedCount && ip - body <= inlineBudget) {
+            InlineBody inlineBody = new InlineBody();
+            inlineBody.bodyArray = Arrays.copyOfRange(byteArray, body, ip);
+            inlineBody.linesArray = Arrays.copyOfRange(linesArray, body, ip);
+            inlineBody.address = body;
+            inlineBody.writtenArrayList = procedureWrittenArrayList;
+
+            inlineBodiesHashMap.put(symbol, inlineBody);
+        }
+
+        procedureWrittenArrayList = null;
+
+        if (function) {
+            genOpCode(getLoad(resultType));
+            genAddress(procedure.resultAddress);
+        }
+        genOpCode(OP_CODE.RET);
+        procedure.end = ip;
+
+        symbolTable.closeScope();
+        currentProcedure = null;
+        setTemporariesArrayList = new ArrayList<>();
+
+        // fill in the frame size and the hole to jump past the body, frames start aligned
+        procedure.frameSize = align(procedure.frameSize, ADDRESS_SIZE);
+        int save = ip;
+
+        ip = frameHole;
+        genAddress(procedure.frameSize);
+        ip = hole;
+        genAddress(save);
+        ip = save;
+    }
+
+    /*
+    Replace the self calls of procedure that are only followed by its epilogue with a jump to its prologue,
+    the arguments are popped into the parameters of the running call and its frame is reused:
+
+        CALL entry [POP <result>] [JMP ...] epilogue: -> JMP prologue
+     */
+    private void genTailCalls(Procedure procedure, int epilogue) {
+        int entry = procedure.symbol.getAddress();
+
+        int cursor = procedure.prologue;
+        while (cursor < epilogue) {
+            if (byteArray[cursor] == OP_CODE.CALL.ordinal() && getAddress(cursor + 1) == entry &&
+                    isTailPosition(procedure, cursor + 1 + ADDRESS_SIZE, epilogue)) {
+                byteArray[cursor] = (byte) OP_CODE.JMP.ordinal();
+                tailCalls++;
+
+                int save = ip;
+                ip = cursor + 1;
+                genAddress(procedure.prologue);
+                ip = save;
+            }
+
+            cursor += getInstructionSize(cursor);
+        }
+    }
+
+    // true when the code at address does nothing but store the result and reach epilogue
+    private boolean isTailPosition(Procedure procedure, int address, int epilogue) {
+        if (procedure.symbol.getDataType() != TYPE.P) {
+            if (byteArray[address] != getStore(procedure.symbol.getDataType()).ordinal() ||
+                    getAddress(address + 1) != procedure.resultAddress) {
+                return false;
+            }
+            address += 1 + ADDRESS_SIZE;
+        }
+
+        for (int jumps = 0; address != epilogue; jumps++) {
+            if (jumps == TAIL_JUMPS || address > epilogue || byteArray[address] != OP_CODE.JMP.ordinal()) {
+                return false;
+            }
+            address = getAddress(address + 1);
         }
+
+        return true;
+    }
+
+    // Reserve a variable of size bytes, aligned to its size
+    private int allocate(int size) {
+        return allocate(size, size);
+    }
+
+    /*
+    Reserve size bytes of data, in the frame of the procedure being compiled or with the globals,
+    aligned to alignment: 1 for chars and booleans, 4 for integers, reals and addresses.
+     */
+    private int allocate(int size, int alignment) {
+        if (currentProcedure != null) {
+            int offset = align(currentProcedure.frameSize, alignment);
+            currentProcedure.frameSize = offset + size;
+            return FRAME_ADDRESS | offset;
+        }
+
+        int address = align(dp, alignment);
+        dp = address + size;
+        return address;
+    }
+
+    private static int align(int address, int size) {
+        return (address + size - 1) / size * size;
+    }
+
+    // Bytes of a variable or array element of a simple type
+    static int getSize(TYPE type) {
+        return type == TYPE.B || type == TYPE.C ? 1 : ADDRESS_SIZE;
+    }
+
+    // PUSH or LOAD8 of a variable of type
+    private static OP_CODE getLoad(TYPE type) {
+        return getSize(type) == 1 ? OP_CODE.LOAD8 : OP_CODE.PUSH;
+    }
+
+    // POP or STORE8 of a variable of type
+    private static OP_CODE getStore(TYPE type) {
+        return getSize(type) == 1 ? OP_CODE.STORE8 : OP_CODE.POP;
+    }
+
+    // integer | real | boolean | char
+    private TYPE getSimpleType() {
+        String dataType = currentToken.getTokenType();
+        match(dataType);
+
+        TYPE type = dataType.startsWith("TK_") ? STRING_TYPE_HASH_MAP.get(dataType.toLowerCase().substring(3)) : null;
+        if (type != TYPE.I && type != TYPE.R && type != TYPE.B && type != TYPE.C) {
+            throw new Error(String.format("Type (%s) is not a simple type", dataType));
+        }
+
+        return type;
     }
 
 
@@ -198,7 +586,7 @@ public final class Parser {
     <var decl> ->
         var[<namelist>: <type>;]^+
      */
-    public static void varDeclarations() {
+    public void varDeclarations() {
         while(true) {
             if ("TK_VAR".equals(currentToken.getTokenType())) {
                 match("TK_VAR");
@@ -225,26 +613,27 @@ public final class Parser {
             String dataType = currentToken.getTokenType();
             match(dataType);
 
-            // Add the correct datatype for each identifier and insert into symbol table
-            for (Token var : variablesArrayList) {
-
-                Symbol symbol = new Symbol(var.getTokenValue(),
-                        "TK_A_VAR",
-                        STRING_TYPE_HASH_MAP.get(dataType.toLowerCase().substring(3)),
-                        dp);
+            if (dataType.equals("TK_ARRAY")){
+                arrayDeclaration(variablesArrayList);
+            } else if (dataType.equals("TK_SET")) {
+                setDeclaration(variablesArrayList);
+            } else {
+                // Add the correct datatype for each identifier and insert into symbol table
+                for (Token var : variablesArrayList) {
 
-                dp += 4;
+                    TYPE type = STRING_TYPE_HASH_MAP.get(dataType.toLowerCase().substring(3));
+                    Symbol symbol = new Symbol(var,
+                            "TK_A_VAR",
+                            type,
+                            allocate(getSize(type)));
 
 
-                if (SymbolTable.lookup(var.getTokenValue()) == null) {
-                    SymbolTable.insert(symbol);
+                    if (symbolTable.lookupCurrentScope(var) == null) {
+                        symbolTable.insert(symbol);
+                    }
                 }
             }
 
-            if (dataType.equals("TK_ARRAY")){
-                arrayDeclaration(variablesArrayList);
-            }
-
             match("TK_SEMI_COLON");
 
         }
@@ -262,16 +651,16 @@ public final class Parser {
 	    <low>,<high> ->
             ordinal constants of the same type
      */
-    private static void arrayDeclaration(ArrayList<Token> variablesArrayList) {
+    private void arrayDeclaration(ArrayList<Token> variablesArrayList) {
         match("TK_OPEN_SQUARE_BRACKET");
-        String v1 = currentToken.getTokenValue();
         TYPE indexType1 = getLitType(currentToken.getTokenType());
+        int low = getLitValue();
         match(currentToken.getTokenType());
 
         match("TK_RANGE");
 
-        String v2 = currentToken.getTokenValue();
         TYPE indexType2 = getLitType(currentToken.getTokenType());
+        int high = getLitValue();
         match(currentToken.getTokenType());
         match("TK_CLOSE_SQUARE_BRACKET");
         match("TK_OF");
@@ -281,83 +670,95 @@ public final class Parser {
 
         if (indexType1 != indexType2){
             throw new Error(String.format("Array index LHS type (%s) is not equal to RHS type: (%s)", indexType1, indexType2));
-        } else {
-
-            assert indexType1 != null;
-            switch (indexType1) {
-                case I:
-                    int i1 = Integer.valueOf(v1);
-                    int i2 = Integer.valueOf(v2);
-                    if (i1 > i2){
-                        throw new Error(String.format("Array range is invalid: %d..%d", i1, i2));
-                    }
-
-                    Symbol firstIntArray = SymbolTable.lookup(variablesArrayList.get(0).getTokenValue());
-                    if (firstIntArray != null) {
-                        dp = firstIntArray.getAddress();
-                    }
+        } else if (indexType1 == TYPE.R) {
+            throw new Error("Array index type: real is invalid");
+        }
 
-                    for (Token var: variablesArrayList) {
-                        Symbol symbol = SymbolTable.lookup(var.getTokenValue());
-                        if (symbol != null){
+        if (low > high){
+            if (indexType1 == TYPE.C) {
+                throw new Error(String.format("Array range is invalid: %c..%c", (char) low, (char) high));
+            }
+            throw new Error(String.format("Array range is invalid: %d..%d", low, high));
+        }
 
-                            int elementSize = 4;
-                            int size = elementSize*(i2 - i1 + 1);
+        if (currentProcedure != null) {
+            throw new Error(String.format("Local array (%s) is not supported", variablesArrayList.get(0).getTokenValue()));
+        }
 
-                            symbol.setAddress(dp);
-                            symbol.setLow(i1);
-                            symbol.setHigh(i2);
-                            symbol.setTokenType("TK_AN_ARRAY");
-                            symbol.setIndexType(TYPE.I);
-                            symbol.setValueType(STRING_TYPE_HASH_MAP.get(valueType.toLowerCase().substring(3)));
+        TYPE elementType = STRING_TYPE_HASH_MAP.get(valueType.toLowerCase().substring(3));
+        int elementSize = getSize(elementType);
 
-                            dp += size;
-                        }
-                    }
+        for (Token var: variablesArrayList) {
+            Symbol symbol = new Symbol(var,
+                    indexType1,
+                    elementType,
+                    allocate(elementSize * (high - low + 1), elementSize),
+                    low,
+                    high,
+                    elementSize);
 
-                    break;
-                case C:
-                    char c1 = v1.toCharArray()[0];
-                    char c2 = v2.toCharArray()[0];
-                    if (c1 > c2){
-                        throw new Error(String.format("Array range is invalid: %c..%c", c1, c2));
-                    }
+            if (symbolTable.lookupCurrentScope(var) == null) {
+                symbolTable.insert(symbol);
+            }
+        }
 
-                    Symbol firstCharArray = SymbolTable.lookup(variablesArrayList.get(0).getTokenValue());
-                    if (firstCharArray != null) {
-                        dp = firstCharArray.getAddress();
-                    }
+    }
 
-                    for (Token var: variablesArrayList) {
-                        Symbol symbol = SymbolTable.lookup(var.getTokenValue());
-                        if (symbol != null){
-                            int size = c2 - c1 + 1;
+    /*
+    <set type> -> set of char | set of boolean | set of <low>..<high>
+        <low>,<high> -> ordinal constants of the same type within 0..255
+     */
+    private void setDeclaration(ArrayList<Token> variablesArrayList) {
+        match("TK_OF");
 
-                            symbol.setAddress(dp);
-                            symbol.setLow(c1);
-                            symbol.setHigh(c2);
-                            symbol.setTokenType("TK_AN_ARRAY");
-                            symbol.setIndexType(TYPE.C);
-                            symbol.setValueType(STRING_TYPE_HASH_MAP.get(valueType.toLowerCase().substring(3)));
+        TYPE elementType;
+        int low;
+        int high;
+        if (currentToken.getTokenType().equals("TK_CHAR")) {
+            match("TK_CHAR");
+            elementType = TYPE.C;
+            low = 0;
+            high = SET_ELEMENTS - 1;
+        } else if (currentToken.getTokenType().equals("TK_BOOLEAN")) {
+            match("TK_BOOLEAN");
+            elementType = TYPE.B;
+            low = 0;
+            high = 1;
+        } else {
+            elementType = getLitType(currentToken.getTokenType());
+            if (elementType == null || elementType == TYPE.R) {
+                throw new Error(String.format("Set base (%s) is not char, boolean or a range of ordinal constants", currentToken.getTokenValue()));
+            }
+            low = getLitValue();
+            match(currentToken.getTokenType());
 
-                            dp += size;
-                        }
-                    }
+            match("TK_RANGE");
 
-                    break;
-                case R:
-                    throw new Error("Array index type: real is invalid");
+            if (getLitType(currentToken.getTokenType()) != elementType) {
+                throw new Error(String.format("Set range LHS type (%s) is not equal to RHS type: (%s)", elementType, getLitType(currentToken.getTokenType())));
             }
+            high = getLitValue();
+            match(currentToken.getTokenType());
 
+            if (low > high || low < 0 || high >= SET_ELEMENTS) {
+                throw new Error(String.format("Set range %d..%d is not within 0..%d", low, high, SET_ELEMENTS - 1));
+            }
         }
 
+        for (Token var : variablesArrayList) {
+            Symbol symbol = new Symbol(var, elementType, allocate(SET_SIZE, SET_ALIGNMENT), low, high);
+
+            if (symbolTable.lookupCurrentScope(var) == null) {
+                symbolTable.insert(symbol);
+            }
+        }
     }
 
     /*
     <begin_statement> ->
         begin <stats> end
      */
-    public static void begin(){
+    public void begin(){
         match("TK_BEGIN");
         statements();
         match("TK_END");
@@ -379,8 +780,12 @@ public final class Parser {
 	    <procedure call> TK_A_PROC
 	    <writeStat>
      */
-    public static void statements(){
+    public void statements(){
         while(!currentToken.getTokenType().equals("TK_END")) {
+            line = currentToken.getLineRow() + 1;
+            // the sets of an expression are used up by the statement that computes them
+            setTemporaries = 0;
+            constantSetEnd = -1;
             switch (currentToken.getTokenType()) {
                 case "TK_CASE":
                     caseStat();
@@ -404,7 +809,7 @@ public final class Parser {
                     writeStat();
                     break;
                 case "TK_IDENTIFIER":
-                    Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+                    Symbol symbol = symbolTable.lookup(currentToken);
                     if (symbol != null) {
                         // assign token type to be var, proc, or label
                         currentToken.setTokenType(symbol.getTokenType());
@@ -432,55 +837,136 @@ public final class Parser {
 
     }
 
-    private static void labelStat() {
-        Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+    private void labelStat() {
+        Symbol symbol = symbolTable.lookup(currentToken);
         match("TK_A_LABEL");
         match("TK_COLON");
         if (symbol != null) {
-            int hole = symbol.getAddress();
-            int save = ip;
-
-            // fill in hole for goto jump
-            ip = hole;
-            genAddress(save);
-
-            ip = save;
+            pinnedCount++;
+            labelAddressHashMap.put(symbol, ip);
+
+            // fill in holes for the goto jumps before the label
+            ArrayList<Integer> holesArrayList = gotoHolesHashMap.remove(symbol);
+            if (holesArrayList != null) {
+                int save = ip;
+                for (Integer hole : holesArrayList) {
+                    ip = hole;
+                    genAddress(save);
+                }
+                ip = save;
+            }
 
             statements();
         }
     }
 
-    private static void procedureStat() {
-        Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
-        if (symbol != null) {
-            int address = symbol.getAddress();
+    /*
+    Small procedures without parameters or a frame are inlined: the body is copied into the call site
+    and the variables it writes are known to the loop optimizations as if they were assigned here.
+    Other calls push the arguments and CALL the procedure, see genCall.
+    Inside a function, <function name> := E stores the result.
+     */
+    private void procedureStat() {
+        Symbol symbol = symbolTable.lookup(currentToken);
+        InlineBody inlineBody = symbol != null ? inlineBodiesHashMap.get(symbol) : null;
+
+        if (inlineBody != null) {
             match("TK_A_PROC");
-            match("TK_SEMI_COLON");
-            // call procedure
-            genOpCode(OP_CODE.JMP);
-            genAddress(address);
 
-            int restore = ip;
+            long start = System.nanoTime();
+            genCopy(inlineBody.bodyArray, inlineBody.linesArray, inlineBody.address);
+            optimizeNanos += System.nanoTime() - start;
+            inlinedCalls++;
+
+            for (Symbol written : inlineBody.writtenArrayList) {
+                variableWritten(written);
+            }
+        } else if (symbol != null && symbol.getDataType() != TYPE.P) {
+            if (currentProcedure == null || currentProcedure.symbol != symbol) {
+                throw new Error(String.format("Function (%s) is called as a procedure", symbol.getName()));
+            }
+
+            match("TK_A_PROC");
+            match("TK_ASSIGNMENT");
+
+            TYPE rhsType = E();
+            if (rhsType != symbol.getDataType()) {
+                throw new Error(String.format("Function (%s) result type (%s) is not equal to RHS type: (%s)", symbol.getName(), symbol.getDataType(), rhsType));
+            }
 
-            // fill in return hole and restore ip
-            ip = symbol.getReturnAddress();
-            genAddress(restore);
-            ip = restore;
+            genOpCode(getStore(rhsType));
+            genAddress(currentProcedure.resultAddress);
+        } else if (symbol != null) {
+            genCall(symbol);
         }
     }
 
-    private static void goToStat() {
+    /*
+    <call> -> <name> [(E [, E]^*)]
+
+    The arguments are pushed in order, integers passed for real parameters are converted:
+        <E1> ... <En> CALL entry
+     */
+    private void genCall(Symbol symbol) {
+        Procedure procedure = proceduresHashMap.get(symbol);
+        ArrayList<TYPE> parameterTypesArrayList = procedure.parameterTypesArrayList;
+
+        currentToken.setTokenType("TK_A_PROC");
+        match("TK_A_PROC");
+
+        int arguments = 0;
+        if (currentToken.getTokenType().equals("TK_OPEN_PARENTHESIS")) {
+            match("TK_OPEN_PARENTHESIS");
+
+            while (true) {
+                if (arguments == parameterTypesArrayList.size()) {
+                    throw new Error(String.format("Too many arguments for (%s), expected %d", symbol.getName(), parameterTypesArrayList.size()));
+                }
+
+                TYPE argumentType = E();
+                TYPE parameterType = parameterTypesArrayList.get(arguments++);
+                if (argumentType == TYPE.I && parameterType == TYPE.R) {
+                    genOpCode(OP_CODE.CVR);
+                } else if (argumentType != parameterType) {
+                    throw new Error(String.format("Argument type (%s) is not equal to parameter type: (%s)", argumentType, parameterType));
+                }
+
+                if (currentToken.getTokenType().equals("TK_COMMA")) {
+                    match("TK_COMMA");
+                } else {
+                    break;
+                }
+            }
+
+            match("TK_CLOSE_PARENTHESIS");
+        }
+
+        if (arguments != parameterTypesArrayList.size()) {
+            throw new Error(String.format("Too few arguments for (%s), expected %d", symbol.getName(), parameterTypesArrayList.size()));
+        }
+
+        genOpCode(OP_CODE.CALL);
+        genAddress(symbol.getAddress());
+
+        procedureCalled();
+    }
+
+    private void goToStat() {
         match("TK_GOTO");
-        Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+        pinnedCount++;
+        Symbol symbol = symbolTable.lookup(currentToken);
         currentToken.setTokenType("TK_A_LABEL");
         match("TK_A_LABEL");
         genOpCode(OP_CODE.JMP);
-        int hole = ip;
-        genAddress(0);
 
-        // hole for jump
-        if (symbol != null){
-            symbol.setAddress(hole);
+        if (symbol != null && labelAddressHashMap.containsKey(symbol)) {
+            genAddress(labelAddressHashMap.get(symbol));
+        } else {
+            // hole for jump, filled when the label is placed
+            if (symbol != null) {
+                gotoHolesHashMap.computeIfAbsent(symbol, k -> new ArrayList<>()).add(ip);
+            }
+            genAddress(0);
         }
 
         match("TK_SEMI_COLON");
@@ -488,65 +974,455 @@ public final class Parser {
     }
 
 
-    // for <variable name> := <initial value> to <final value> do <stat>
-    private static void forStat() {
+    /*
+    for <variable name> := <initial value> to <final value> do <stat>
+    for <variable name> := <initial value> downto <final value> do <stat>
+
+    The final value is evaluated once. FOR_LOOP keeps the limit and the counter in two words of
+    data of the loop, slots and slots + 4, allocated like a variable. FOR_NEXT steps the counter
+    and jumps back, so the loop overhead is one instruction per iteration, and the stack is the
+    same in the body as around the loop, a goto out of the body leaves nothing behind:
+
+        <initial value> POP var
+        <final value>
+        <preheader: initialize the loop temporaries>
+        FOR_LOOP <step> <var> <exit> <slots>
+        body: <stat>
+        INCR <induction pointer> <step * element size> ...
+        FOR_NEXT <step> <var> <body> <sync> <slots>
+        exit:
+
+    The counter is only written back to var every iteration (sync) when the body can observe it,
+    otherwise var is written once when the loop ends.
+
+    The preheader is only known once the body has been compiled, so the body is moved after it.
+    Bodies with code patched in place (goto, label) cannot be moved, for those
+    the preheader is put after the loop and reached through a JMP in front of FOR_LOOP.
+
+    When both values are literals the loop is unrolled within unrollBudget, see unrollFor.
+     */
+    private void forStat() {
         match("TK_FOR");
 
+        Token varToken = currentToken;
         String varName = currentToken.getTokenValue();
         currentToken.setTokenType("TK_A_VAR");
+        int initialStart = ip;
         assignmentStat();
+        boolean constantInitial = ip == initialStart + 2 * (1 + ADDRESS_SIZE) &&
+                byteArray[initialStart] == OP_CODE.PUSHI.ordinal();
 
-        int target = ip;
-
-
-        Symbol symbol = SymbolTable.lookup(varName);
+        Symbol symbol = symbolTable.lookup(varToken);
         if (symbol != null) {
+            if (symbol.getDataType() != TYPE.I) {
+                throw new Error(String.format("For loop variable (%s) is not an integer", varName));
+            }
             int address = symbol.getAddress();
-            match("TK_TO");
 
-            // Generate op code for x <= <upper bound>
-            genOpCode(OP_CODE.PUSH);
-            genAddress(address);
-            genOpCode(OP_CODE.PUSHI);
-            genAddress(Integer.valueOf(currentToken.getTokenValue()));
+            int step;
+            if (currentToken.getTokenType().equals("TK_DOWNTO")) {
+                match("TK_DOWNTO");
+                step = -1;
+            } else {
+                match("TK_TO");
+                step = 1;
+            }
 
-            genOpCode(OP_CODE.LEQ);
-            match("TK_INTLIT");
+            int limitStart = ip;
+            TYPE limitType = E();
+            if (limitType != TYPE.I) {
+                throw new Error(String.format("For loop final value type (%s) is not an integer", limitType));
+            }
+            boolean constantLimit = ip == limitStart + 1 + ADDRESS_SIZE &&
+                    byteArray[limitStart] == OP_CODE.PUSHI.ordinal();
 
             match("TK_DO");
 
-            genOpCode(OP_CODE.JFALSE);
+            // hole to jump to the preheader when the body cannot be moved
+            genOpCode(OP_CODE.JMP);
+            int preheaderHole = ip;
+            genAddress(0);
+
+            int head = ip;
+            genOpCode(OP_CODE.FOR_LOOP);
+            genAddress(step);
+            genAddress(address);
             int hole = ip;
             genAddress(0);
+            int slotsHole = ip;
+            genAddress(0);
+
+            int target = ip;
+            int pinned = pinnedCount;
+
+            Loop loop = new Loop();
+            loop.variable = symbol;
+            loop.step = step;
+            loopsArrayList.add(loop);
 
             match("TK_BEGIN");
             statements();
             match("TK_END");
             match("TK_SEMI_COLON");
 
-            // Generate op code for x := x + 1;
-            genOpCode(OP_CODE.PUSH);
-            genAddress(address);
-            genOpCode(OP_CODE.PUSHI);
-            genAddress(1);
-            genOpCode(OP_CODE.ADD);
+            loopsArrayList.remove(loopsArrayList.size() - 1);
+
+            boolean sync = isObservable(address, target, ip);
+
+            if (pinned != pinnedCount) {
+                int slots = allocate(2 * ADDRESS_SIZE, ADDRESS_SIZE);
+                int save = ip;
+                ip = slotsHole;
+                genAddress(slots);
+                ip = save;
+
+                genIncrements(loop);
+                genForNext(step, address, target, sync, slots);
+
+                int exitHole = -1;
+                if (!loop.temporariesArrayList.isEmpty()) {
+                    genOpCode(OP_CODE.JMP);
+                    exitHole = ip;
+                    genAddress(0);
+                }
+
+                save = ip;
+                ip = preheaderHole;
+                genAddress(loop.temporariesArrayList.isEmpty() ? head : save);
+                ip = save;
+
+                if (exitHole != -1) {
+                    genPreheader(loop);
+                    genOpCode(OP_CODE.JMP);
+                    genAddress(head);
+                }
+
+                save = ip;
+                ip = hole;
+                genAddress(save);
+                if (exitHole != -1) {
+                    ip = exitHole;
+                    genAddress(save);
+                }
+                ip = save;
+            } else {
+                Byte[] bodyArray = Arrays.copyOfRange(byteArray, target, ip);
+                int[] bodyLinesArray = Arrays.copyOfRange(linesArray, target, ip);
+
+                boolean unrolled = false;
+                if (constantInitial && constantLimit) {
+                    int initial = getAddress(initialStart + 1);
+                    int limit = getAddress(limitStart + 1);
+                    long start = System.nanoTime();
+                    unrolled = unrollFor(loop, initial, limit, limitStart, bodyArray, bodyLinesArray, target, sync);
+                    optimizeNanos += System.nanoTime() - start;
+                    if (unrolled) {
+                        unrolledLoops++;
+                    }
+                }
+
+                if (!unrolled) {
+                    ip = preheaderHole - 1;
+                    genPreheader(loop);
+
+                    int slots = allocate(2 * ADDRESS_SIZE, ADDRESS_SIZE);
+                    genOpCode(OP_CODE.FOR_LOOP);
+                    genAddress(step);
+                    genAddress(address);
+                    hole = ip;
+                    genAddress(0);
+                    genAddress(slots);
+
+                    int body = ip;
+                    genCopy(bodyArray, bodyLinesArray, target);
+                    genIncrements(loop);
+                    genForNext(step, address, body, sync, slots);
+
+                    int save = ip;
+                    ip = hole;
+                    genAddress(save);
+                    ip = save;
+                }
+            }
+
+            // the loop left its final value in var
+            variableWritten(symbol);
+        }
+    }
+
+    private void genForNext(int step, int address, int body, boolean sync, int slots) {
+        genOpCode(OP_CODE.FOR_NEXT);
+        genAddress(step);
+        genAddress(address);
+        genAddress(body);
+        genAddress(sync ? 1 : 0);
+        genAddress(slots);
+    }
+
+    /*
+    Unroll a for loop with a literal initial and final value, its body was compiled to bodyArray at address body.
+    Loops whose whole trip count fits in unrollBudget are fully unrolled:
+
+        <initial> POP var
+        <preheader>
+        body0 [PUSHI <initial + step> POP var] body1 ... PUSHI <final + step> POP var
+
+    Otherwise the body is copied unrollFactor times inside the loop and the remaining
+    trip count % unrollFactor iterations are unrolled after it:
+
+        <initial> POP var
+        PUSHI <last initial value of a copy group>
+        <preheader>
+        FOR_LOOP <step * unrollFactor> <var> <exit> <slots>
+        body: body0 [PUSH var PUSHI <step> ADD POP var] body1 ...
+        FOR_NEXT <step * unrollFactor> <var> <body> <sync> <slots>
+        exit: remainder copies as above
+
+    The PUSH/POP var in between copies are only emitted when the body can observe var (sync),
+    the induction pointers are advanced after every copy.
+    Returns false if the loop is not worth unrolling and nothing was emitted.
+     */
+    private boolean unrollFor(Loop loop, int initial, int limit, int limitStart, Byte[] bodyArray, int[] bodyLinesArray, int body, boolean sync) {
+        int address = loop.variable.getAddress();
+        int step = loop.step;
+        long tripCount = ((long) limit - initial) * step + 1;
+        int bodySize = bodyArray.length;
+
+        if (unrollFactor <= 1 || tripCount <= 1 || bodySize == 0) {
+            return false;
+        }
+
+        if (tripCount * bodySize <= unrollBudget) {
+            // full unroll, drop the limit and FOR_LOOP
+            ip = limitStart;
+            genPreheader(loop);
+            genUnrolledCopies(loop, bodyArray, bodyLinesArray, body, initial, (int) tripCount, sync);
+            return true;
+        }
+
+        long groups = tripCount / unrollFactor;
+        int remainder = (int) (tripCount % unrollFactor);
+        if ((long) (unrollFactor + remainder) * bodySize > unrollBudget) {
+            return false;
+        }
+
+        int groupStep = step * unrollFactor;
+
+        ip = limitStart;
+        genOpCode(OP_CODE.PUSHI);
+        genAddress((int) (initial + (groups - 1) * groupStep));
+
+        genPreheader(loop);
+
+        int slots = allocate(2 * ADDRESS_SIZE, ADDRESS_SIZE);
+        genOpCode(OP_CODE.FOR_LOOP);
+        genAddress(groupStep);
+        genAddress(address);
+        int hole = ip;
+        genAddress(0);
+        genAddress(slots);
+
+        int target = ip;
+        for (int i = 0; i < unrollFactor; i++) {
+            if (i > 0 && sync) {
+                genOpCode(OP_CODE.PUSH);
+                genAddress(address);
+                genOpCode(OP_CODE.PUSHI);
+                genAddress(step);
+                genOpCode(OP_CODE.ADD);
+                genOpCode(OP_CODE.POP);
+                genAddress(address);
+            }
+            genCopy(bodyArray, bodyLinesArray, body);
+            genIncrements(loop);
+        }
 
+        genForNext(groupStep, address, target, sync, slots);
+
+        int save = ip;
+        ip = hole;
+        genAddress(save);
+        ip = save;
+
+        if (remainder > 0) {
+            genUnrolledCopies(loop, bodyArray, bodyLinesArray, body, (int) (initial + groups * groupStep), remainder, sync);
+        }
+
+        return true;
+    }
+
+    // count copies of the body for var = initial, initial + step, ... and leave var one step past the last copy
+    private void genUnrolledCopies(Loop loop, Byte[] bodyArray, int[] bodyLinesArray, int body, int initial, int count, boolean sync) {
+        int address = loop.variable.getAddress();
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && sync) {
+                genOpCode(OP_CODE.PUSHI);
+                genAddress(initial + i * loop.step);
+                genOpCode(OP_CODE.POP);
+                genAddress(address);
+            }
+            genCopy(bodyArray, bodyLinesArray, body);
+            genIncrements(loop);
+        }
+
+        genOpCode(OP_CODE.PUSHI);
+        genAddress(initial + count * loop.step);
+        genOpCode(OP_CODE.POP);
+        genAddress(address);
+    }
+
+    // Initialize the temporaries of a loop from the current values of their index
+    private void genPreheader(Loop loop) {
+        for (Temporary temporary : loop.temporariesArrayList) {
+            genElementAddress(temporary.array, temporary.index);
             genOpCode(OP_CODE.POP);
-            genAddress(address);
+            genAddress(temporary.address);
+        }
+    }
 
+    // Advance the induction pointers of a for loop by one step
+    private void genIncrements(Loop loop) {
+        for (Temporary temporary : loop.temporariesArrayList) {
+            if (temporary.induction) {
+                genOpCode(OP_CODE.INCR);
+                genAddress(temporary.address);
+                genAddress(loop.step * temporary.array.getElementSize());
+            }
+        }
+    }
 
-            genOpCode(OP_CODE.JMP);
-            genAddress(target);
+    /*
+    Temporary holding the address of array[index] for the loops being compiled, null when the address
+    has to be computed in place: outside of loops, or when index was already written in the loop body.
+     */
+    private Temporary getTemporary(Symbol array, Symbol index) {
+        if (loopsArrayList.isEmpty()) {
+            return null;
+        }
 
-            int save = ip;
-            ip = hole;
-            genAddress(save);
-            ip = save;
+        Loop owner = null;
+        for (Loop loop : loopsArrayList) {
+            if (loop.variable == index) {
+                owner = loop;
+            }
+        }
+
+        if (owner == null) {
+            owner = loopsArrayList.get(loopsArrayList.size() - 1);
+            if (owner.calls || owner.writtenHashSet.contains(index.getAddress())) {
+                return null;
+            }
+        }
+
+        for (Temporary temporary : owner.temporariesArrayList) {
+            if (temporary.array == array && temporary.index == index) {
+                return temporary;
+            }
+        }
+
+        Temporary temporary = new Temporary();
+        temporary.array = array;
+        temporary.index = index;
+        temporary.address = allocate(4);
+        temporary.induction = owner.variable == index;
+
+        owner.temporariesArrayList.add(temporary);
+
+        return temporary;
+    }
+
+    // Keep the invariant addresses indexed by a variable up to date after it was written
+    private void variableWritten(Symbol symbol) {
+        if (procedureWrittenArrayList != null && !procedureWrittenArrayList.contains(symbol)) {
+            procedureWrittenArrayList.add(symbol);
+        }
+
+        for (Loop loop : loopsArrayList) {
+            loop.writtenHashSet.add(symbol.getAddress());
+
+            for (Temporary temporary : loop.temporariesArrayList) {
+                if (!temporary.induction && temporary.index == symbol) {
+                    genElementAddress(temporary.array, temporary.index);
+                    genOpCode(OP_CODE.POP);
+                    genAddress(temporary.address);
+                }
+            }
         }
     }
 
+    // A procedure may write any variable, recompute every invariant address
+    private void procedureCalled() {
+        for (Loop loop : loopsArrayList) {
+            loop.calls = true;
+
+            for (Temporary temporary : loop.temporariesArrayList) {
+                if (!temporary.induction) {
+                    genElementAddress(temporary.array, temporary.index);
+                    genOpCode(OP_CODE.POP);
+                    genAddress(temporary.address);
+                }
+            }
+        }
+    }
+
+    /*
+    Emit a copy of code that was originally emitted at address origin.
+    Jumps into the copied range (or to the end of it) are moved with the copy, jumps leaving it are kept.
+     */
+    private void genCopy(Byte[] codeArray, int[] codeLinesArray, int origin) {
+        int start = ip;
+        int end = origin + codeArray.length;
+
+        ensureCapacity(ip + codeArray.length);
+        System.arraycopy(codeArray, 0, byteArray, ip, codeArray.length);
+        System.arraycopy(codeLinesArray, 0, linesArray, ip, codeArray.length);
+        ip += codeArray.length;
+
+        int cursor = start;
+        while (cursor < ip) {
+            for (int operand : getJumpOperands(cursor)) {
+                int jumpAddress = getAddress(operand);
+                if (jumpAddress >= origin && jumpAddress <= end) {
+                    int save = ip;
+                    ip = operand;
+                    genAddress(jumpAddress - origin + start);
+                    ip = save;
+                }
+            }
+
+            cursor += getInstructionSize(cursor);
+        }
+    }
+
+    /*
+    true when the code in [start, end) reads the variable at address,
+    or jumps out of the range (procedure call or goto) where it may be read
+     */
+    private boolean isObservable(int address, int start, int end) {
+        int cursor = start;
+        while (cursor < end) {
+            OP_CODE opCode = OP_CODES[byteArray[cursor]];
+            if ((opCode == OP_CODE.PUSH || opCode == OP_CODE.POP || opCode == OP_CODE.LOAD8 || opCode == OP_CODE.STORE8)
+                    && getAddress(cursor + 1) == address) {
+                return true;
+            }
+
+            for (int operand : getJumpOperands(cursor)) {
+                int jumpAddress = getAddress(operand);
+                if (jumpAddress < start || jumpAddress > end) {
+                    return true;
+                }
+            }
+
+            cursor += getInstructionSize(cursor);
+        }
+
+        return false;
+    }
+
     // repeat <stat> until <cond>
-    private static void repeatStat() {
+    private void repeatStat() {
         match("TK_REPEAT");
         int target = ip;
         statements();
@@ -557,10 +1433,32 @@ public final class Parser {
     }
 
 
-    // while <cond> do <stat>
-    private static void whileStat() {
+    /*
+    while <cond> do <stat>
+
+        <preheader: initialize the loop temporaries>
+        head: <cond> JFALSE exit
+        <stat>
+        JMP head
+        exit:
+
+    Like forStat the preheader is emitted once the loop is compiled and the loop is moved after it,
+    or reached through a JMP when the loop has code patched in place.
+     */
+    private void whileStat() {
         match("TK_WHILE");
+
+        // hole to jump to the preheader when the loop cannot be moved
+        genOpCode(OP_CODE.JMP);
+        int preheaderHole = ip;
+        genAddress(0);
+
         int target = ip;
+        int pinned = pinnedCount;
+
+        Loop loop = new Loop();
+        loopsArrayList.add(loop);
+
         C();
         match("TK_DO");
 
@@ -573,20 +1471,46 @@ public final class Parser {
         match("TK_END");
         match("TK_SEMI_COLON");
 
+        loopsArrayList.remove(loopsArrayList.size() - 1);
 
-        genOpCode(OP_CODE.JMP);
-        genAddress(target);
+        if (pinned != pinnedCount) {
+            genOpCode(OP_CODE.JMP);
+            genAddress(target);
+
+            int save = ip;
+            ip = preheaderHole;
+            genAddress(loop.temporariesArrayList.isEmpty() ? target : save);
+            ip = save;
+
+            if (!loop.temporariesArrayList.isEmpty()) {
+                genPreheader(loop);
+                genOpCode(OP_CODE.JMP);
+                genAddress(target);
+            }
+        } else {
+            Byte[] loopArray = Arrays.copyOfRange(byteArray, target, ip);
+            int[] loopLinesArray = Arrays.copyOfRange(linesArray, target, ip);
+
+            ip = preheaderHole - 1;
+            genPreheader(loop);
+
+            int head = ip;
+            genCopy(loopArray, loopLinesArray, target);
+            hole = hole - target + head;
+
+            genOpCode(OP_CODE.JMP);
+            genAddress(head);
+        }
 
         int save = ip;
         ip = hole;
         genAddress(save);
         ip = save;
-
     }
 
     // if <cond> then <stat>
     // if <cond> then <stat> else <stat>
-    public static void ifStat(){
+    public void ifStat(){
         match("TK_IF");
         C();
         match("TK_THEN");
@@ -626,11 +1550,19 @@ public final class Parser {
           <range> 3..9:
           <list> 3,5,7:
           <list of ranges> 1..2,30..40:
+
+    The selector is evaluated once and left on the stack, the arms are emitted in order and
+    the dispatch (TABLESWITCH for dense labels, LOOKUPSWITCH for sparse ones) is emitted after them:
+
+        <E> JMP dispatch
+        arm1: <statement> JMP exit
+        ...
+        dispatch: TABLESWITCH/LOOKUPSWITCH
+        exit:
     */
-    public static void caseStat() {
+    public void caseStat() {
         match("TK_CASE");
         match("TK_OPEN_PARENTHESIS");
-        Token eToken = currentToken;
 
         TYPE t1 = E();
 
@@ -641,113 +1573,198 @@ public final class Parser {
         match("TK_CLOSE_PARENTHESIS");
         match("TK_OF");
 
-        ArrayList<Integer> labelsArrayList = new ArrayList<>();
+        // hole for JMP past the arms to the dispatch table
+        genOpCode(OP_CODE.JMP);
+        int dispatchHole = ip;
+        genAddress(0);
+
+        // low label of a range -> {high label, address of its arm}, sorted by label value
+        TreeMap<Integer, int[]> rangesTreeMap = new TreeMap<>();
+        ArrayList<Integer> exitHolesArrayList = new ArrayList<>();
+        int defaultAddress = -1;
 
         while(currentToken.getTokenType().equals("TK_INTLIT") ||
                 currentToken.getTokenType().equals("TK_CHARLIT") ||
                 currentToken.getTokenType().equals("TK_BOOLLIT")) {
 
-            TYPE t2 = E();
-            emit("TK_EQUAL", t1, t2);
-            match("TK_COLON");
+            int armAddress = ip;
 
-            // hole for JFALSE to the next case label when the eql condition fails
-            genOpCode(OP_CODE.JFALSE);
-            int hole = ip;
-            genAddress(0);
-            statements();
+            while (true) {
+                TYPE t2 = getLitType(currentToken.getTokenType());
+                if (t1 != t2) {
+                    throw new Error(String.format("Case label type (%s) is not equal to case E type: (%s)", t2, t1));
+                }
 
-            genOpCode(OP_CODE.JMP);
-            labelsArrayList.add(ip);
-            genAddress(0);
+                int low = getLitValue();
+                int high = low;
+                match(currentToken.getTokenType());
 
-            // Fill JFALSE hole
-            int save = ip;
-            ip = hole;
-            genAddress(save);
+                if (currentToken.getTokenType().equals("TK_RANGE")) {
+                    match("TK_RANGE");
+                    if (t1 != getLitType(currentToken.getTokenType())) {
+                        throw new Error(String.format("Case range type (%s) is not equal to case E type: (%s)",
+                                getLitType(currentToken.getTokenType()), t1));
+                    }
+                    high = getLitValue();
+                    match(currentToken.getTokenType());
 
-            ip = save;
+                    if (low > high) {
+                        throw new Error(String.format("Case range is invalid: %d..%d", low, high));
+                    }
+                }
 
-            // PUSH the original eToken variable back to prepare for the next eql condition case label
-            if (!currentToken.getTokenValue().equals("TK_END")){
-                Symbol symbol = SymbolTable.lookup(eToken.getTokenValue());
-                if (symbol != null) {
-                    genOpCode(OP_CODE.PUSH);
-                    genAddress(symbol.getAddress());
+                // the range below high starting last must end before low
+                Map.Entry<Integer, int[]> below = rangesTreeMap.floorEntry(high);
+                if (below != null && below.getValue()[0] >= low) {
+                    throw new Error(String.format("Duplicate case label: %d", Math.max(low, below.getKey())));
+                }
+                rangesTreeMap.put(low, new int[] {high, armAddress});
+
+                if (currentToken.getTokenType().equals("TK_COMMA")) {
+                    match("TK_COMMA");
+                } else {
+                    break;
                 }
             }
+
+            match("TK_COLON");
+            statements();
+
+            genOpCode(OP_CODE.JMP);
+            exitHolesArrayList.add(ip);
+            genAddress(0);
+        }
+
+        if (currentToken.getTokenType().equals("TK_ELSE")) {
+            match("TK_ELSE");
+            defaultAddress = ip;
+            statements();
+
+            genOpCode(OP_CODE.JMP);
+            exitHolesArrayList.add(ip);
+            genAddress(0);
         }
 
         match("TK_END");
         match("TK_SEMI_COLON");
 
+        // Fill the hole to jump to the dispatch table
         int save = ip;
+        ip = dispatchHole;
+        genAddress(save);
+        ip = save;
+
+        ArrayList<Integer> defaultHolesArrayList = new ArrayList<>();
+        genSwitch(rangesTreeMap, defaultAddress, defaultHolesArrayList);
+
+        if (defaultAddress == -1) {
+            // no else: a selector without a label falls through to the exit
+            exitHolesArrayList.addAll(defaultHolesArrayList);
+        }
 
-        // Fill all the labelHoles for JMP
-        for (Integer labelHole: labelsArrayList) {
-            ip = labelHole;
+        save = ip;
+
+        // Fill all the exit holes for JMP
+        for (Integer exitHole: exitHolesArrayList) {
+            ip = exitHole;
             genAddress(save);
         }
 
         ip = save;
     }
 
-    public static void writeStat(){
-        match("TK_WRITELN");
-        match("TK_OPEN_PARENTHESIS");
-
-        while (true) {
-            Symbol symbol =  SymbolTable.lookup(currentToken.getTokenValue());
-            TYPE t;
-
-            if (symbol != null) {
-                if (symbol.getDataType() == TYPE.A) {
-                    // array
-                    currentToken.setTokenType("TK_AN_ARRAY");
-                    handleArrayAccess(symbol);
-
-                    genOpCode(OP_CODE.GET);
-
-                    t = symbol.getValueType();
+    /*
+    Dense label sets are cheaper as a bounds-checked jump table, sparse ones and wide ranges as sorted
+    (key, address) pairs that the Simulator binary searches. The choice uses the same space/time
+    weighting as javac, and a table never has more than MAX_TABLE_SPAN entries.
+
+    TABLESWITCH <default> <low> <high> <address>*(high-low+1)
+    LOOKUPSWITCH <default> <count> [<key> <address>]*count
+
+    A LOOKUPSWITCH key starts an interval that runs up to the next key, a selector below the first key
+    goes to default. Ranges are never expanded, each adds a key at its low label and, before a gap,
+    one at its high label + 1 to default:
+        case 1..5: a; 10: b; 100..MaxInt: c
+        LOOKUPSWITCH default 5 [1 a] [6 default] [10 b] [11 default] [100 c]
+     */
+    private void genSwitch(TreeMap<Integer, int[]> rangesTreeMap, int defaultAddress,
+                                  ArrayList<Integer> defaultHolesArrayList) {
+        // keys and their addresses, -1 for the default address
+        ArrayList<Integer> keysArrayList = new ArrayList<>();
+        ArrayList<Integer> addressesArrayList = new ArrayList<>();
+        long next = Long.MIN_VALUE; // label after the last range
+        for (Map.Entry<Integer, int[]> range : rangesTreeMap.entrySet()) {
+            if (!keysArrayList.isEmpty() && next < range.getKey()) {
+                keysArrayList.add((int) next);
+                addressesArrayList.add(-1);
+            }
+            keysArrayList.add(range.getKey());
+            addressesArrayList.add(range.getValue()[1]);
+            next = (long) range.getValue()[0] + 1;
+        }
+        if (!keysArrayList.isEmpty() && next <= Integer.MAX_VALUE) {
+            keysArrayList.add((int) next);
+            addressesArrayList.add(-1);
+        }
 
+        long count = keysArrayList.size();
+        long low = rangesTreeMap.isEmpty() ? 0 : rangesTreeMap.firstKey();
+        long high = next - 1;
+
+        long tableSpaceCost = 4 + (high - low + 1);
+        long tableTimeCost = 3;
+        long lookupSpaceCost = 3 + 2 * count;
+        long lookupTimeCost = count;
+
+        if (count > 0 && high - low + 1 <= MAX_TABLE_SPAN &&
+                tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost) {
+            genOpCode(OP_CODE.TABLESWITCH);
+            genDefaultAddress(defaultAddress, defaultHolesArrayList);
+            genAddress((int) low);
+            genAddress((int) high);
+
+            for (long label = low; label <= high; label++) {
+                int[] range = rangesTreeMap.floorEntry((int) label).getValue();
+                if (label <= range[0]) {
+                    genAddress(range[1]);
                 } else {
-                    // variable
-                    currentToken.setTokenType("TK_A_VAR");
-
-                    t = symbol.getDataType();
-                    genOpCode(OP_CODE.PUSH);
-                    genAddress(symbol.getAddress());
-                    match("TK_A_VAR");
+                    // gap in the table
+                    genDefaultAddress(defaultAddress, defaultHolesArrayList);
                 }
-            } else {
-                // literal
-                t = getLitType(currentToken.getTokenType());
-                assert t != null;
-                switch (t) {
-                    case R:
-                        genOpCode(OP_CODE.PUSHF);
-                        genAddress(Float.valueOf(currentToken.getTokenValue()));
-                        break;
-                    case I:
-                        genOpCode(OP_CODE.PUSHI);
-                        genAddress(Integer.valueOf(currentToken.getTokenValue()));
-                        break;
-                    case B:
-                        genOpCode(OP_CODE.PUSHI);
-                        if (currentToken.getTokenValue().equals("true")) {
-                            genAddress(1);
-                        } else {
-                            genAddress(0);
-                        }
-                        break;
-                    case C:
-                        genOpCode(OP_CODE.PUSHI);
-                        genAddress((int)(currentToken.getTokenValue().charAt(0)));
-                        break;
+            }
+        } else {
+            genOpCode(OP_CODE.LOOKUPSWITCH);
+            genDefaultAddress(defaultAddress, defaultHolesArrayList);
+            genAddress((int) count);
+
+            for (int i = 0; i < count; i++) {
+                genAddress(keysArrayList.get(i));
+                if (addressesArrayList.get(i) == -1) {
+                    genDefaultAddress(defaultAddress, defaultHolesArrayList);
+                } else {
+                    genAddress(addressesArrayList.get(i));
                 }
-
-                match(currentToken.getTokenType());
             }
+        }
+    }
+
+    private void genDefaultAddress(int defaultAddress, ArrayList<Integer> defaultHolesArrayList) {
+        if (defaultAddress == -1) {
+            // hole for the exit address, filled once it is known
+            defaultHolesArrayList.add(ip);
+            genAddress(0);
+        } else {
+            genAddress(defaultAddress);
+        }
+    }
+
+    // writeln(E [, E]^*)
+    public void writeStat(){
+        match("TK_WRITELN");
+        match("TK_OPEN_PARENTHESIS");
+
+        while (true) {
+            TYPE t = E();
 
             assert t != null;
             switch (t) {
@@ -783,10 +1800,16 @@ public final class Parser {
         }
     }
 
-    public static void assignmentStat() {
-        Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+    public void assignmentStat() {
+        Symbol symbol = symbolTable.lookup(currentToken);
 
         if (symbol != null) {
+            for (Loop loop : loopsArrayList) {
+                if (loop.variable == symbol) {
+                    throw new Error(String.format("Cannot assign to for loop variable (%s)", symbol.getName()));
+                }
+            }
+
             TYPE lhsType = symbol.getDataType();
             int lhsAddress = symbol.getAddress();
 
@@ -795,9 +1818,17 @@ public final class Parser {
             match("TK_ASSIGNMENT");
 
             TYPE rhsType = E();
-            if (lhsType == rhsType) {
-                genOpCode(OP_CODE.POP);
+            if (lhsType == TYPE.E && rhsType == TYPE.E) {
+                checkElementType(symbol.getElementType(), setElementType);
+                genOpCode(OP_CODE.SET_COPY);
+                genAddress(lhsAddress);
+
+                variableWritten(symbol);
+            } else if (lhsType == rhsType) {
+                genOpCode(getStore(lhsType));
                 genAddress(lhsAddress);
+
+                variableWritten(symbol);
             } else {
                 throw new Error(String.format("LHS type (%s) is not equal to RHS type: (%s)", lhsType, rhsType));
             }
@@ -807,8 +1838,8 @@ public final class Parser {
     }
 
 
-    private static void arrayAssignmentStat() {
-        Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+    private void arrayAssignmentStat() {
+        Symbol symbol = symbolTable.lookup(currentToken);
         if (symbol != null) {
 
             handleArrayAccess(symbol);
@@ -819,78 +1850,75 @@ public final class Parser {
             TYPE rhsType = E();
             // Emit OP_CODE.PUT
             if (symbol.getValueType() == rhsType) {
-                genOpCode(OP_CODE.PUT);
+                genOpCode(symbol.getElementSize() == 1 ? OP_CODE.PUT8 : OP_CODE.PUT);
             }
 
         }
 
     }
 
-    private static void handleArrayAccess(Symbol symbol) {
+    /*
+    <array>[<index>] pushes the address of the element:
+        literal index -> address folded at compile time
+        variable index -> loop temporary if there is one, see getTemporary
+        expression index -> computed in place
+     */
+    private void handleArrayAccess(Symbol symbol) {
         match("TK_AN_ARRAY");
         match("TK_OPEN_SQUARE_BRACKET");
         TYPE t;
 
+        boolean singleToken = peekToken().getTokenType().equals("TK_CLOSE_SQUARE_BRACKET");
 
-        Symbol varSymbol = SymbolTable.lookup(currentToken.getTokenValue());
-        if (varSymbol != null) {
-            t = varSymbol.getDataType();
+        Symbol varSymbol = null;
+        if (currentToken.getTokenType().equals("TK_IDENTIFIER")) {
+            varSymbol = symbolTable.lookup(currentToken);
+        }
 
+        if (singleToken && varSymbol != null && varSymbol.getTokenType().equals("TK_A_VAR")) {
+            t = varSymbol.getDataType();
 
             if (t != symbol.getIndexType()) {
                 throw new Error(String.format("Incompatible index type: (%s, %s)", t, symbol.getIndexType()));
             }
 
             currentToken.setTokenType("TK_A_VAR");
-            genOpCode(OP_CODE.PUSH);
-            genAddress(varSymbol.getAddress());
             match("TK_A_VAR");
-
             match("TK_CLOSE_SQUARE_BRACKET");
 
-            genOpCode(OP_CODE.PUSHI);
-
-            switch (t) {
-                case I:
-
-                    int i1 = (int) symbol.getLow();
-                    int i2 = (int) symbol.getHigh();
-
-                    genAddress(i1);
-                    genOpCode(OP_CODE.XCHG);
-                    genOpCode(OP_CODE.SUB);
-
-                    // push element size
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(4);
-
-                    genOpCode(OP_CODE.MULT);
-
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(symbol.getAddress());
-
-                    genOpCode(OP_CODE.ADD);
-
-                    break;
-                case C:
-                    char c1 = (char) symbol.getLow();
-                    char c2 = (char) symbol.getHigh();
+            Temporary temporary = getTemporary(symbol, varSymbol);
+            if (temporary != null) {
+                genOpCode(OP_CODE.PUSH);
+                genAddress(temporary.address);
+            } else {
+                genElementAddress(symbol, varSymbol);
+            }
 
-                    genAddress(c1);
-                    genOpCode(OP_CODE.XCHG);
-                    genOpCode(OP_CODE.SUB);
+        } else if (singleToken && getLitType(currentToken.getTokenType()) != null) {
+            t = getLitType(currentToken.getTokenType());
 
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(symbol.getAddress());
+            if (t != symbol.getIndexType()) {
+                throw new Error(String.format("Incompatible index type: (%s, %s)", t, symbol.getIndexType()));
+            }
 
-                    genOpCode(OP_CODE.ADD);
+            int index = getLitValue();
+            match(currentToken.getTokenType());
+            match("TK_CLOSE_SQUARE_BRACKET");
 
-                    break;
+            // range check
+            if (index < symbol.getLow() || index > symbol.getHigh()) {
+                if (t == TYPE.C) {
+                    throw new Error(String.format("Index %c is not within range %c to %c",
+                            (char) index, (char) symbol.getLow(), (char) symbol.getHigh()));
+                }
+                throw new Error(String.format("Index %d is not within range %d to %d",
+                        index, symbol.getLow(), symbol.getHigh()));
             }
-        } else {
 
+            genOpCode(OP_CODE.PUSHI);
+            genAddress(symbol.getOrigin() + index * symbol.getElementSize());
 
-            String index = currentToken.getTokenValue();
+        } else {
             t = E();
 
             if (t != symbol.getIndexType()) {
@@ -899,79 +1927,61 @@ public final class Parser {
 
             match("TK_CLOSE_SQUARE_BRACKET");
 
-            genOpCode(OP_CODE.PUSHI);
-
-            switch (t) {
-                case I:
-
-                    int i1 = (int) symbol.getLow();
-                    int i2 = (int) symbol.getHigh();
-
-                    // range check:
-                    if (Integer.valueOf(index) < i1 || Integer.valueOf(index) > i2) {
-                        throw new Error(String.format("Index %d is not within range %d to %d",
-                                Integer.valueOf(index), i1, i2));
-                    }
-
-                    genAddress(i1);
-                    genOpCode(OP_CODE.XCHG);
-                    genOpCode(OP_CODE.SUB);
-
-                    // push element size
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(4);
-
-                    genOpCode(OP_CODE.MULT);
-
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(symbol.getAddress());
-
-                    genOpCode(OP_CODE.ADD);
-
-                    break;
-                case C:
-                    char c1 = (char) symbol.getLow();
-                    char c2 = (char) symbol.getHigh();
+            genIndexAddress(symbol);
+        }
+    }
 
-                    // range check
-                    if (index.toCharArray()[0] < c1 || index.toCharArray()[0] > c2) {
-                        throw new Error(String.format("Index %c is not within range %c to %c",
-                                index.toCharArray()[0], c1, c2));
-                    }
+    // Push the address of array[index] for an index variable
+    private void genElementAddress(Symbol array, Symbol index) {
+        genOpCode(getLoad(index.getDataType()));
+        genAddress(index.getAddress());
 
-                    genAddress(c1);
-                    genOpCode(OP_CODE.XCHG);
-                    genOpCode(OP_CODE.SUB);
+        genIndexAddress(array);
+    }
 
-                    genOpCode(OP_CODE.PUSHI);
-                    genAddress(symbol.getAddress());
+    // Turn the index on top of the stack into the address of the element: origin + index * elementSize
+    private void genIndexAddress(Symbol array) {
+        if (array.getElementSize() != 1) {
+            genOpCode(OP_CODE.PUSHI);
+            genAddress(array.getElementSize());
 
-                    genOpCode(OP_CODE.ADD);
+            genOpCode(OP_CODE.MULT);
+        }
 
-                    break;
-            }
+        genOpCode(OP_CODE.PUSHI);
+        genAddress(array.getOrigin());
 
-        }
+        genOpCode(OP_CODE.ADD);
     }
 
     /*
     Condition
     C -> EC'
-    C' -> < EC' | > EC' | <= EC' | >= EC' | = EC' | <> EC' | epsilon
+    C' -> < EC' | > EC' | <= EC' | >= EC' | = EC' | <> EC' | in EC' | epsilon
      */
-    public static TYPE C(){
+    public TYPE C(){
         TYPE e1 = E();
         while (currentToken.getTokenType().equals("TK_LESS_THAN") ||
                 currentToken.getTokenType().equals("TK_GREATER_THAN") ||
                 currentToken.getTokenType().equals("TK_LESS_THAN_EQUAL") ||
                 currentToken.getTokenType().equals("TK_GREATER_THAN_EQUAL") ||
                 currentToken.getTokenType().equals("TK_EQUAL") ||
-                currentToken.getTokenType().equals("TK_NOT_EQUAL")) {
+                currentToken.getTokenType().equals("TK_NOT_EQUAL") ||
+                currentToken.getTokenType().equals("TK_IN")) {
             String pred = currentToken.getTokenType();
             match(pred);
+            TYPE elementType = setElementType;
+
+            if (pred.equals("TK_IN")) {
+                // a set expression, x in a + b
+                TYPE e2 = E();
+                e1 = setIn(e1, e2);
+                continue;
+            }
+
             TYPE e2 = T();
 
-            e1 = emit(pred, e1, e2);
+            e1 = e1 == TYPE.E || e2 == TYPE.E ? emitSet(pred, e1, e2, elementType) : emit(pred, e1, e2);
         }
 
         return e1;
@@ -983,14 +1993,15 @@ public final class Parser {
     E -> TE'
     E' -> +TE' | -TE' | epsilon
      */
-    public static TYPE E(){
+    public TYPE E(){
         TYPE t1 = T();
         while (currentToken.getTokenType().equals("TK_PLUS") || currentToken.getTokenType().equals("TK_MINUS")) {
             String op = currentToken.getTokenType();
             match(op);
+            TYPE elementType = setElementType;
             TYPE t2 = T();
 
-            t1 = emit(op, t1, t2);
+            t1 = t1 == TYPE.E || t2 == TYPE.E ? emitSet(op, t1, t2, elementType) : emit(op, t1, t2);
         }
 
         return t1;
@@ -1001,16 +2012,17 @@ public final class Parser {
     T -> FT'
     T' ->  *FT' | /FT' | epsilon
      */
-    public static TYPE T() {
+    public TYPE T() {
         TYPE f1 = F();
         while (currentToken.getTokenType().equals("TK_MULTIPLY") ||
                 currentToken.getTokenType().equals("TK_DIVIDE") ||
                 currentToken.getTokenType().equals("TK_DIV")) {
             String op = currentToken.getTokenType();
             match(op);
+            TYPE elementType = setElementType;
             TYPE f2 = F();
 
-            f1 = emit(op, f1, f2);
+            f1 = f1 == TYPE.E || f2 == TYPE.E ? emitSet(op, f1, f2, elementType) : emit(op, f1, f2);
         }
         return f1;
     }
@@ -1018,18 +2030,28 @@ public final class Parser {
 
     /*
     Factor
-    F -> id | lit | (E) | not F | +F | -F
+    F -> id | id(E [, E]^*) | lit | (E) | not F | +F | -F | [[E [..E] [, E [..E]]^*]]
      */
-    public static TYPE F() {
+    public TYPE F() {
         switch (currentToken.getTokenType()) {
             case "TK_IDENTIFIER":
-                Symbol symbol = SymbolTable.lookup(currentToken.getTokenValue());
+                Symbol symbol = symbolTable.lookup(currentToken);
                 if (symbol != null) {
-                    if (symbol.getTokenType().equals("TK_A_VAR")) {
+                    if (symbol.getTokenType().equals("TK_A_VAR") && symbol.getDataType() == TYPE.E) {
+                        // set, by its address
+                        currentToken.setTokenType("TK_A_VAR");
+
+                        genOpCode(OP_CODE.PUSHI);
+                        genAddress(symbol.getAddress());
+                        setElementType = symbol.getElementType();
+
+                        match("TK_A_VAR");
+                        return TYPE.E;
+                    } else if (symbol.getTokenType().equals("TK_A_VAR")) {
                         // variable
                         currentToken.setTokenType("TK_A_VAR");
 
-                        genOpCode(OP_CODE.PUSH);
+                        genOpCode(getLoad(symbol.getDataType()));
                         genAddress(symbol.getAddress());
 
                         match("TK_A_VAR");
@@ -1038,9 +2060,17 @@ public final class Parser {
                         currentToken.setTokenType("TK_AN_ARRAY");
 
                         handleArrayAccess(symbol);
-                        genOpCode(OP_CODE.GET);
+                        genOpCode(symbol.getElementSize() == 1 ? OP_CODE.GET8 : OP_CODE.GET);
 
                         return symbol.getValueType();
+                    } else if (symbol.getTokenType().equals("TK_A_PROC")) {
+                        if (symbol.getDataType() == TYPE.P) {
+                            throw new Error(String.format("Procedure (%s) has no value", symbol.getName()));
+                        }
+
+                        // function call
+                        genCall(symbol);
+                        return symbol.getDataType();
                     }
                 } else {
                     throw new Error(String.format("Symbol not found (%s)", currentToken.getTokenValue()));
@@ -1053,7 +2083,7 @@ public final class Parser {
                 return TYPE.I;
             case "TK_FLOATLIT":
                 genOpCode(OP_CODE.PUSHF);
-                genAddress(Float.valueOf(currentToken.getTokenValue()));
+                genAddress(getConstant(Float.valueOf(currentToken.getTokenValue())));
 
                 match("TK_FLOATLIT");
                 return TYPE.R;
@@ -1085,6 +2115,8 @@ public final class Parser {
                 TYPE t = E();
                 match("TK_CLOSE_PARENTHESIS");
                 return t;
+            case "TK_OPEN_SQUARE_BRACKET":
+                return setConstructor();
             default:
                 throw new Error("Unknown data type");
         }
@@ -1092,7 +2124,7 @@ public final class Parser {
     }
 
 
-    public static TYPE emit(String op, TYPE t1, TYPE t2){
+    public TYPE emit(String op, TYPE t1, TYPE t2){
         switch (op) {
             case "TK_PLUS":
                 if (t1 == TYPE.I && t2 == TYPE.I) {
@@ -1188,7 +2220,231 @@ public final class Parser {
         return null;
     }
 
-    public static TYPE emitBool(OP_CODE pred, TYPE t1, TYPE t2) {
+    /*
+    <set> + <set>, - and * to a set temporary, = and <> to a boolean. elementType is the one of the
+    left operand, setElementType the one of the right.
+     */
+    private TYPE emitSet(String op, TYPE t1, TYPE t2, TYPE elementType) {
+        if (t1 != TYPE.E || t2 != TYPE.E) {
+            throw new Error(String.format("Operands (%s, %s) of %s are not both sets", t1, t2, op));
+        }
+        TYPE resultElementType = checkElementType(elementType, setElementType);
+
+        switch (op) {
+            case "TK_PLUS":
+                genSetOperation(OP_CODE.SET_UNION);
+                break;
+            case "TK_MINUS":
+                genSetOperation(OP_CODE.SET_DIFF);
+                break;
+            case "TK_MULTIPLY":
+                genSetOperation(OP_CODE.SET_INTER);
+                break;
+            case "TK_EQUAL":
+                genOpCode(OP_CODE.SET_EQL);
+                return TYPE.B;
+            case "TK_NOT_EQUAL":
+                genOpCode(OP_CODE.SET_NEQL);
+                return TYPE.B;
+            default:
+                throw new Error(String.format("Operator (%s) is not defined for sets", op));
+        }
+
+        setElementType = resultElementType;
+        return TYPE.E;
+    }
+
+    private void genSetOperation(OP_CODE opCode) {
+        genOpCode(opCode);
+        genAddress(getSetTemporary());
+    }
+
+    /*
+    x in <set>, a bit test. A set constructor of constants only within SET_TEST_ELEMENTS is not built,
+    its bits are the operands of a SET_TEST:
+        <x> SET_CLEAR temp PUSHI 'a' PUSHI 'z' SET_RANGE SET_IN -> <x> SET_TEST 97 <bits>
+     */
+    private TYPE setIn(TYPE t1, TYPE t2) {
+        if (t2 != TYPE.E) {
+            throw new Error(String.format("Right operand (%s) of in is not a set", t2));
+        }
+        checkElementType(setElementType, t1);
+
+        int low = constantSetEnd == ip ? getLowestElement(constantSet) : -1;
+        if (low >= 0 && getHighestElement(constantSet) - low < SET_TEST_ELEMENTS) {
+            ip = constantSetStart;
+            genOpCode(OP_CODE.SET_TEST);
+            genAddress(low);
+            for (int i = 0; i < SET_TEST_ELEMENTS; i += 32) {
+                int bits = 0;
+                for (int bit = 0; bit < 32 && low + i + bit < SET_ELEMENTS; bit++) {
+                    if (isElement(constantSet, low + i + bit)) {
+                        bits |= 1 << bit;
+                    }
+                }
+                genAddress(bits);
+            }
+        } else {
+            genOpCode(OP_CODE.SET_IN);
+        }
+        constantSetEnd = -1;
+
+        return TYPE.B;
+    }
+
+    /*
+    [E, E..E, ...], the elements that are constants are collected and added last by SET_RANGE and
+    SET_INCL, a constructor of constants only is kept in constantSet for setIn:
+        SET_CLEAR temp <E> SET_INCL <E> <E> SET_RANGE ... PUSHI low PUSHI high SET_RANGE ...
+     */
+    private TYPE setConstructor() {
+        int start = ip;
+        match("TK_OPEN_SQUARE_BRACKET");
+
+        genOpCode(OP_CODE.SET_CLEAR);
+        genAddress(getSetTemporary());
+
+        long[] constants = new long[SET_SIZE / 8];
+        boolean constant = true;
+        TYPE elementType = null;
+        while (!currentToken.getTokenType().equals("TK_CLOSE_SQUARE_BRACKET")) {
+            TYPE lowType = getLitType(currentToken.getTokenType());
+            if (lowType != null && isConstantElementEnd(peekToken())) {
+                // constant low, and a constant high or none
+                int low = getLitValue();
+                match(currentToken.getTokenType());
+                elementType = checkElementType(elementType, lowType);
+
+                int high = low;
+                if (currentToken.getTokenType().equals("TK_RANGE")) {
+                    match("TK_RANGE");
+                    TYPE highType = getLitType(currentToken.getTokenType());
+                    if (highType != null && isConstantElementEnd(peekToken())) {
+                        high = getLitValue();
+                        match(currentToken.getTokenType());
+                        checkElementType(elementType, highType);
+                    } else {
+                        constant = false;
+                        genOpCode(OP_CODE.PUSHI);
+                        genAddress(low);
+                        checkElementType(elementType, E());
+                        genOpCode(OP_CODE.SET_RANGE);
+                        high = low - 1;
+                    }
+                }
+
+                if (low <= high && (low < 0 || high >= SET_ELEMENTS)) {
+                    throw new Error(String.format("Set elements %d..%d are not within 0..%d", low, high, SET_ELEMENTS - 1));
+                }
+                for (int x = low; x <= high; x++) {
+                    constants[x >>> 6] |= 1L << x;
+                }
+            } else {
+                constant = false;
+                elementType = checkElementType(elementType, E());
+                if (currentToken.getTokenType().equals("TK_RANGE")) {
+                    match("TK_RANGE");
+                    checkElementType(elementType, E());
+                    genOpCode(OP_CODE.SET_RANGE);
+                } else {
+                    genOpCode(OP_CODE.SET_INCL);
+                }
+            }
+
+            if (!currentToken.getTokenType().equals("TK_COMMA")) {
+                break;
+            }
+            match("TK_COMMA");
+        }
+        match("TK_CLOSE_SQUARE_BRACKET");
+
+        // runs of constants
+        for (int low = getNextElement(constants, 0); low >= 0; ) {
+            int high = low;
+            while (high + 1 < SET_ELEMENTS && isElement(constants, high + 1)) {
+                high++;
+            }
+
+            genOpCode(OP_CODE.PUSHI);
+            genAddress(low);
+            if (high == low) {
+                genOpCode(OP_CODE.SET_INCL);
+            } else {
+                genOpCode(OP_CODE.PUSHI);
+                genAddress(high);
+                genOpCode(OP_CODE.SET_RANGE);
+            }
+
+            low = getNextElement(constants, high + 1);
+        }
+
+        if (constant) {
+            constantSet = constants;
+            constantSetStart = start;
+            constantSetEnd = ip;
+        }
+        setElementType = elementType;
+
+        return TYPE.E;
+    }
+
+    // true when token ends a constant element or its low
+    private static boolean isConstantElementEnd(Token token) {
+        String tokenType = token.getTokenType();
+        return tokenType.equals("TK_COMMA") || tokenType.equals("TK_CLOSE_SQUARE_BRACKET") || tokenType.equals("TK_RANGE");
+    }
+
+    // The element type of sets or elements of types elementType and type, null for []
+    private static TYPE checkElementType(TYPE elementType, TYPE type) {
+        if (type != null && type != TYPE.I && type != TYPE.C && type != TYPE.B) {
+            throw new Error(String.format("Set element type (%s) is not ordinal", type));
+        }
+        if (elementType != null && type != null && elementType != type) {
+            throw new Error(String.format("Set element type (%s) is not equal to (%s)", type, elementType));
+        }
+
+        return elementType != null ? elementType : type;
+    }
+
+    private static boolean isElement(long[] set, int x) {
+        return (set[x >>> 6] & 1L << x) != 0;
+    }
+
+    // The first element from x on, -1 if there is none
+    private static int getNextElement(long[] set, int x) {
+        for (; x < SET_ELEMENTS; x++) {
+            if (isElement(set, x)) {
+                return x;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int getLowestElement(long[] set) {
+        return getNextElement(set, 0);
+    }
+
+    private static int getHighestElement(long[] set) {
+        for (int x = SET_ELEMENTS - 1; x >= 0; x--) {
+            if (isElement(set, x)) {
+                return x;
+            }
+        }
+
+        return -1;
+    }
+
+    // A set temporary free in this statement
+    private int getSetTemporary() {
+        if (setTemporaries == setTemporariesArrayList.size()) {
+            setTemporariesArrayList.add(allocate(SET_SIZE, SET_ALIGNMENT));
+        }
+
+        return setTemporariesArrayList.get(setTemporaries++);
+    }
+
+    public TYPE emitBool(OP_CODE pred, TYPE t1, TYPE t2) {
         if (t1 == t2) {
             genOpCode(pred);
             return TYPE.B;
@@ -1206,13 +2462,16 @@ public final class Parser {
         return null;
     }
 
-    public static void genOpCode(OP_CODE b){
+    public void genOpCode(OP_CODE b){
 //        System.out.println(String.format("OP_CODE: %s", b));
+        ensureCapacity(ip + 1);
+        linesArray[ip] = line;
         byteArray[ip++] = (byte)(b.ordinal());
     }
 
-    public static void genAddress(int a){
+    public void genAddress(int a){
 //        System.out.println(String.format("ADDRESS_VALUE: %s", a));
+        ensureCapacity(ip + ADDRESS_SIZE);
         byte[] intBytes = ByteBuffer.allocate(ADDRESS_SIZE).putInt(a).array();
 
         for (byte b: intBytes) {
@@ -1220,22 +2479,110 @@ public final class Parser {
         }
     }
 
-    public static void genAddress(float a){
-//        System.out.println(String.format("ADDRESS_VALUE: %s", a));
-        byte[] intBytes = ByteBuffer.allocate(ADDRESS_SIZE).putFloat(a).array();
+    // Size in bytes of the instruction at address, including its operands
+    public int getInstructionSize(int address) {
+        OP_CODE opCode = OP_CODES[byteArray[address]];
+        switch (opCode) {
+            case TABLESWITCH:
+                int low = getAddress(address + 1 + ADDRESS_SIZE);
+                int high = getAddress(address + 1 + 2 * ADDRESS_SIZE);
+                return 1 + (3 + high - low + 1) * ADDRESS_SIZE;
+            case LOOKUPSWITCH:
+                int count = getAddress(address + 1 + ADDRESS_SIZE);
+                return 1 + (2 + 2 * count) * ADDRESS_SIZE;
+            default:
+                return 1 + opCode.operands * ADDRESS_SIZE;
+        }
+    }
 
-        for (byte b: intBytes) {
-            byteArray[ip++] = b;
+    // Byte offsets of the operands of the instruction at address that hold instruction addresses
+    public ArrayList<Integer> getJumpOperands(int address) {
+        ArrayList<Integer> operandsArrayList = new ArrayList<>();
+        int operand = address + 1;
+
+        switch (OP_CODES[byteArray[address]]) {
+            case JMP:
+            case JFALSE:
+            case JTRUE:
+                operandsArrayList.add(operand);
+                break;
+            case CALL:
+                operandsArrayList.add(operand);
+                break;
+            case FOR_LOOP:
+                operandsArrayList.add(operand + 2 * ADDRESS_SIZE);
+                break;
+            case FOR_NEXT:
+                operandsArrayList.add(operand + 2 * ADDRESS_SIZE);
+                break;
+            case TABLESWITCH:
+                int entries = getAddress(operand + 2 * ADDRESS_SIZE) - getAddress(operand + ADDRESS_SIZE) + 1;
+                operandsArrayList.add(operand);
+                for (int i = 0; i < entries; i++) {
+                    operandsArrayList.add(operand + (3 + i) * ADDRESS_SIZE);
+                }
+                break;
+            case LOOKUPSWITCH:
+                int count = getAddress(operand + ADDRESS_SIZE);
+                operandsArrayList.add(operand);
+                for (int i = 0; i < count; i++) {
+                    operandsArrayList.add(operand + (3 + 2 * i) * ADDRESS_SIZE);
+                }
+                break;
+        }
+
+        return operandsArrayList;
+    }
+
+    // Read back an emitted operand
+    public int getAddress(int address) {
+        byte[] valArray = new byte[ADDRESS_SIZE];
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            valArray[i] = byteArray[address + i];
+        }
+
+        return ByteBuffer.wrap(valArray).getInt();
+    }
+
+    // Grow the instruction array, large case tables do not fit in INSTRUCTION_SIZE
+    private void ensureCapacity(int size) {
+        if (size > byteArray.length) {
+            byteArray = Arrays.copyOf(byteArray, Math.max(size, byteArray.length * 2));
+            linesArray = Arrays.copyOf(linesArray, byteArray.length);
+        }
+    }
+
+    // Index of a PUSHF operand in the constant pool
+    private int getConstant(float value) {
+        Integer index = constantIndexHashMap.get(Float.floatToIntBits(value));
+        if (index == null) {
+            index = constantsArrayList.size();
+            constantsArrayList.add(value);
+            constantIndexHashMap.put(Float.floatToIntBits(value), index);
         }
+
+        return index;
     }
 
-    public static void getToken() {
-        if (it.hasNext()) {
+    public void getToken() {
+        if (nextToken != null) {
+            currentToken = nextToken;
+            nextToken = null;
+        } else if (it.hasNext()) {
             currentToken =  it.next();
         }
     }
 
-    public static void match(String tokenType) {
+    // The token after currentToken, without consuming it
+    public Token peekToken() {
+        if (nextToken == null && it.hasNext()) {
+            nextToken = it.next();
+        }
+
+        return nextToken != null ? nextToken : currentToken;
+    }
+
+    public void match(String tokenType) {
         if (!tokenType.equals(currentToken.getTokenType())) {
             throw new Error(String.format("Token type (%s) does not match current token type (%s)", tokenType, currentToken.getTokenType()));
         } else {
@@ -1244,7 +2591,7 @@ public final class Parser {
         }
     }
 
-    public static TYPE getLitType(String tokenType) {
+    public TYPE getLitType(String tokenType) {
         switch (tokenType) {
             case "TK_INTLIT":
                 return TYPE.I;
@@ -1259,7 +2606,95 @@ public final class Parser {
         }
     }
 
-    public static void setTokenArrayListIterator(ArrayList<Token> tokenArrayList) {
-        it = tokenArrayList.iterator();
+    // Ordinal value of an int, char or bool literal
+    public int getLitValue() {
+        switch (currentToken.getTokenType()) {
+            case "TK_INTLIT":
+                return Integer.valueOf(currentToken.getTokenValue());
+            case "TK_CHARLIT":
+                return currentToken.getTokenValue().charAt(0);
+            case "TK_BOOLLIT":
+                return Boolean.valueOf(currentToken.getTokenValue()) ? 1 : 0;
+            default:
+                throw new Error(String.format("Current token type (%s) is not an ordinal literal", currentToken.getTokenType()));
+        }
+    }
+
+    public void setUnrollFactor(int unrollFactor) {
+        this.unrollFactor = unrollFactor;
+    }
+
+    public void setUnrollBudget(int unrollBudget) {
+        this.unrollBudget = unrollBudget;
+    }
+
+    public void setInlineBudget(int inlineBudget) {
+        this.inlineBudget = inlineBudget;
+    }
+
+    // nanoseconds spent unrolling loops, inlining calls and rewriting tail calls
+    public long getOptimizeNanos() {
+        return optimizeNanos;
+    }
+
+    // bytes of global data, frames are allocated after it
+    // The frames start after the globals, aligned like them
+    public int getDataSize() {
+        return align(dp, ADDRESS_SIZE);
+    }
+
+    // probe statistics of the symbol table, see SymbolTable.getStatistics
+    public String getSymbolStatistics() {
+        return symbolTable.getStatistics();
+    }
+
+    // bytes of code emitted, the program ends with HALT
+    public int getCodeSize() {
+        return ip;
+    }
+
+    public float[] getConstants() {
+        float[] constants = new float[constantsArrayList.size()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = constantsArrayList.get(i);
+        }
+
+        return constants;
+    }
+
+    // Compiled procedures by entry address, with the addresses of their code and their names
+    public ArrayList<Procedure> getProcedures() {
+        ArrayList<Procedure> proceduresArrayList = new ArrayList<>(proceduresHashMap.values());
+        proceduresArrayList.sort(Comparator.comparingInt(procedure -> procedure.symbol.getAddress()));
+
+        return proceduresArrayList;
+    }
+
+    /*
+    Address of the first instruction of every run of instructions emitted for the same source line,
+    followed by that line:
+        {address0, line0, address1, line1, ...}
+     */
+    public int[] getLineTable() {
+        ArrayList<Integer> lineTableArrayList = new ArrayList<>();
+
+        int previousLine = -1;
+        int cursor = 0;
+        while (cursor < ip) {
+            if (linesArray[cursor] != previousLine) {
+                previousLine = linesArray[cursor];
+                lineTableArrayList.add(cursor);
+                lineTableArrayList.add(previousLine);
+            }
+
+            cursor += getInstructionSize(cursor);
+        }
+
+        int[] lineTable = new int[lineTableArrayList.size()];
+        for (int i = 0; i < lineTable.length; i++) {
+            lineTable[i] = lineTableArrayList.get(i);
+        }
+
+        return lineTable;
     }
 }
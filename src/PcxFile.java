@@ -0,0 +1,374 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/*
+A compiled program, written by `java Emulator compile` and run by `java Emulator run`.
+All values are big-endian like the instruction operands:
+
+    magic           4 bytes "PCXF"
+    version         2 bytes
+    flags           2 bytes, LINE_TABLE | PROCEDURE_TABLE
+    entry           4 bytes, address of the first instruction
+    code size       4 bytes, of the code unpacked
+    packed size     4 bytes
+    code            <packed size> bytes, packed by CompactCode
+    constant count  4 bytes
+    constants       <constant count> floats, the operands of PUSHF by index
+    data size       4 bytes, bytes of global data
+    [line count     4 bytes
+    line table      <line count> pairs of varints, the address of an instruction and its source line,
+                    each the difference to the previous pair, the line zigzag encoded]
+    [procedure count 4 bytes
+    procedures      <procedure count> of a varint entry address, a varint code size and a UTF name]
+
+Varints are unsigned LEB128, 7 bits a byte with the high bit set on all but the last byte.
+The code is unpacked when the file is read, the Verifier and Simulator see the instructions of the
+Parser with their 4-byte operands.
+ */
+public final class PcxFile {
+    static final int MAGIC = 0x50435846; // "PCXF"
+    static final short VERSION = 5;
+
+    private static final short LINE_TABLE = 1; // flag of a file with a line table
+    private static final short PROCEDURE_TABLE = 2; // flag of a file with a procedure table
+
+    private static final Parser.OP_CODE[] OP_CODES = Parser.OP_CODE.values();
+
+    private final int entry;
+    private final ByteBuffer code;
+    private final float[] constants;
+    private final int dataSize;
+    private final int[] lineTable; // {address, line}*, null if the file has none
+    private final int[] procedureTable; // {entry, end}* by entry, null if the file has none
+    private final String[] procedureNames;
+    private volatile Verifier verifier = null; // verified once, on first use
+
+    public PcxFile(int entry, ByteBuffer code, float[] constants, int dataSize, int[] lineTable,
+                   int[] procedureTable, String[] procedureNames) {
+        this.entry = entry;
+        this.code = code;
+        this.constants = constants;
+        this.dataSize = dataSize;
+        this.lineTable = lineTable;
+        this.procedureTable = procedureTable;
+        this.procedureNames = procedureNames;
+    }
+
+    // The program parser compiled to instructions
+    public static PcxFile fromParser(Parser parser, Byte[] instructions, boolean lineTable) {
+        byte[] codeArray = new byte[parser.getCodeSize()];
+        for (int i = 0; i < codeArray.length; i++) {
+            codeArray[i] = instructions[i];
+        }
+
+        ArrayList<Parser.Procedure> proceduresArrayList = parser.getProcedures();
+        int[] procedureTable = new int[proceduresArrayList.size() * 2];
+        String[] procedureNames = new String[proceduresArrayList.size()];
+        for (int i = 0; i < procedureNames.length; i++) {
+            Parser.Procedure procedure = proceduresArrayList.get(i);
+            procedureTable[i * 2] = procedure.symbol.getAddress();
+            procedureTable[i * 2 + 1] = procedure.end;
+            procedureNames[i] = procedure.symbol.getName();
+        }
+
+        return new PcxFile(0,
+                ByteBuffer.wrap(codeArray).asReadOnlyBuffer(),
+                parser.getConstants(),
+                parser.getDataSize(),
+                lineTable ? parser.getLineTable() : null,
+                procedureTable,
+                procedureNames);
+    }
+
+    public void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort((lineTable != null ? LINE_TABLE : 0) | (procedureTable != null ? PROCEDURE_TABLE : 0));
+            out.writeInt(entry);
+
+            ByteBuffer codeBuffer = code.duplicate();
+            codeBuffer.clear();
+            byte[] packed = CompactCode.pack(codeBuffer);
+            out.writeInt(codeBuffer.limit());
+            out.writeInt(packed.length);
+            out.write(packed);
+
+            out.writeInt(constants.length);
+            for (float constant : constants) {
+                out.writeFloat(constant);
+            }
+
+            out.writeInt(dataSize);
+
+            if (lineTable != null) {
+                out.writeInt(lineTable.length / 2);
+                int address = 0;
+                int line = 0;
+                for (int i = 0; i < lineTable.length; i += 2) {
+                    writeVarInt(out, lineTable[i] - address);
+                    writeVarInt(out, zigzag(lineTable[i + 1] - line));
+                    address = lineTable[i];
+                    line = lineTable[i + 1];
+                }
+            }
+
+            if (procedureTable != null) {
+                out.writeInt(procedureNames.length);
+                for (int i = 0; i < procedureNames.length; i++) {
+                    writeVarInt(out, procedureTable[i * 2]);
+                    writeVarInt(out, procedureTable[i * 2 + 1] - procedureTable[i * 2]);
+                    out.writeUTF(procedureNames[i]);
+                }
+            }
+        }
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IndexOutOfBoundsException("varint longer than 5 bytes");
+    }
+
+    // Small negative and positive values to small unsigned values: 0, -1, 1, -2 -> 0, 1, 2, 3
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static PcxFile read(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new Error(String.format("Not a .pcx file (%s)", path));
+            }
+
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new Error(String.format("Unsupported .pcx version %d (%s), expected %d", version, path, VERSION));
+            }
+
+            short flags = buffer.getShort();
+            int entry = buffer.getInt();
+
+            int codeSize = buffer.getInt();
+            int packedSize = buffer.getInt();
+            // no instruction unpacks to more than 5 bytes a packed byte
+            if (packedSize < 0 || packedSize > buffer.remaining() || codeSize < 0 || codeSize / 5 > packedSize
+                    || entry < 0 || entry >= codeSize) {
+                throw new Error(String.format("Corrupt .pcx code section (%s)", path));
+            }
+            ByteBuffer code;
+            try {
+                code = CompactCode.expand(buffer.slice(buffer.position(), packedSize), codeSize);
+            } catch (Error | BufferUnderflowException | BufferOverflowException e) {
+                throw new Error(String.format("Corrupt .pcx code section (%s)", path));
+            }
+            buffer.position(buffer.position() + packedSize);
+
+            float[] constants = new float[readCount(buffer, 4, path)];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = buffer.getFloat();
+            }
+
+            // globals are addressed below the frames
+            int dataSize = buffer.getInt();
+            if (dataSize < 0 || dataSize >= Parser.FRAME_ADDRESS) {
+                throw new Error(String.format("Corrupt .pcx data size %d (%s)", dataSize, path));
+            }
+
+            int[] lineTable = null;
+            if ((flags & LINE_TABLE) != 0) {
+                lineTable = new int[readCount(buffer, 2, path) * 2];
+                int address = 0;
+                int line = 0;
+                for (int i = 0; i < lineTable.length; i += 2) {
+                    address += readVarInt(buffer);
+                    line += unzigzag(readVarInt(buffer));
+                    lineTable[i] = address;
+                    lineTable[i + 1] = line;
+                }
+            }
+
+            int[] procedureTable = null;
+            String[] procedureNames = null;
+            if ((flags & PROCEDURE_TABLE) != 0) {
+                procedureNames = new String[readCount(buffer, 4, path)];
+                procedureTable = new int[procedureNames.length * 2];
+                for (int i = 0; i < procedureNames.length; i++) {
+                    procedureTable[i * 2] = readVarInt(buffer);
+                    procedureTable[i * 2 + 1] = procedureTable[i * 2] + readVarInt(buffer);
+                    procedureNames[i] = readUTF(buffer);
+                }
+            }
+
+            return new PcxFile(entry, code, constants, dataSize, lineTable, procedureTable, procedureNames);
+        } catch (BufferUnderflowException | NegativeArraySizeException | IndexOutOfBoundsException e) {
+            throw new Error(String.format("Truncated .pcx file (%s)", path));
+        }
+    }
+
+    /*
+    The count of a table of entries of at least entryBytes each, checked against the bytes left before
+    the table is allocated, so that a corrupt count is a truncated file and not an OutOfMemoryError
+     */
+    private static int readCount(ByteBuffer buffer, int entryBytes, Path path) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / entryBytes) {
+            throw new Error(String.format("Truncated .pcx file (%s)", path));
+        }
+
+        return count;
+    }
+
+    // A string written by DataOutputStream.writeUTF, names are plain identifiers
+    private static String readUTF(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The Verifier of the code, throws an Error if the code is malformed
+    public Verifier verify() {
+        Verifier verifier = this.verifier;
+        if (verifier == null) {
+            verifier = Verifier.verify(this);
+            this.verifier = verifier;
+        }
+
+        return verifier;
+    }
+
+    public int getEntry() {
+        return entry;
+    }
+
+    public ByteBuffer getCode() {
+        return code.duplicate();
+    }
+
+    public float[] getConstants() {
+        return constants;
+    }
+
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    public int[] getLineTable() {
+        return lineTable;
+    }
+
+    // Source line of the instruction at address, 0 if unknown
+    public int getLine(int address) {
+        int line = 0;
+        if (lineTable != null) {
+            for (int i = 0; i < lineTable.length && lineTable[i] <= address; i += 2) {
+                line = lineTable[i + 1];
+            }
+        }
+
+        return line;
+    }
+
+    // Bytes of the instruction at address with its operands
+    public int getInstructionSize(int address) {
+        Parser.OP_CODE opCode = OP_CODES[code.get(address)];
+        switch (opCode) {
+            case TABLESWITCH:
+                return 1 + (3 + code.getInt(address + 9) - code.getInt(address + 5) + 1) * 4;
+            case LOOKUPSWITCH:
+                return 1 + (2 + 2 * code.getInt(address + 5)) * 4;
+            default:
+                return 1 + opCode.operands * 4;
+        }
+    }
+
+    /*
+    The instruction at address as text, the operands of switches are summarized:
+        PUSH fp+8
+        PUSHF 2.5
+        TABLESWITCH 1..4 default 120
+        SET_TEST 97 03ffffff 00000000 00000000 00000000
+     */
+    public String disassemble(int address) {
+        Parser.OP_CODE opCode = OP_CODES[code.get(address)];
+        StringBuilder text = new StringBuilder(opCode.name());
+
+        switch (opCode) {
+            case PUSHF:
+                text.append(' ').append(constants[code.getInt(address + 1)]);
+                break;
+            case TABLESWITCH:
+                text.append(String.format(" %d..%d default %d",
+                        code.getInt(address + 5), code.getInt(address + 9), code.getInt(address + 1)));
+                break;
+            case LOOKUPSWITCH:
+                text.append(String.format(" %d keys default %d", code.getInt(address + 5), code.getInt(address + 1)));
+                break;
+            case SET_TEST:
+                text.append(String.format(" %d %08x %08x %08x %08x", code.getInt(address + 1), code.getInt(address + 5),
+                        code.getInt(address + 9), code.getInt(address + 13), code.getInt(address + 17)));
+                break;
+            default:
+                for (int i = 0; i < opCode.operands; i++) {
+                    int operand = code.getInt(address + 1 + i * 4);
+                    if (opCode != Parser.OP_CODE.PUSHI && (operand & Parser.FRAME_ADDRESS) != 0 && operand > 0) {
+                        text.append(" fp+").append(operand ^ Parser.FRAME_ADDRESS);
+                    } else {
+                        text.append(' ').append(operand);
+                    }
+                }
+        }
+
+        return text.toString();
+    }
+
+    // Name of the innermost procedure whose code contains address, null in the main program
+    public String getProcedure(int address) {
+        String procedure = null;
+        if (procedureTable != null) {
+            for (int i = 0; i < procedureTable.length && procedureTable[i] <= address; i += 2) {
+                if (address < procedureTable[i + 1]) {
+                    procedure = procedureNames[i / 2];
+                }
+            }
+        }
+
+        return procedure;
+    }
+}
@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*
+JDK Flight Recorder events of the phases of compiling and running a program, recorded with
+    java -XX:StartFlightRecording=filename=run.jfr Emulator <file.pas>
+and read with `jfr print --events 'pascal.*' run.jfr` or JDK Mission Control.
+Loading the first event class starts up JFR, which takes longer than compiling most programs,
+so the phases only create their events once a recording has initialized JFR.
+ */
+public final class PipelineEvents {
+
+    static boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Name("pascal.Scan")
+    @Label("Scan")
+    @Category({"Pascal", "Compiler"})
+    @Description("TokenScanner.scan of one source")
+    public static final class ScanEvent extends Event {
+        @Label("Source Size")
+        @DataAmount
+        long sourceBytes;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("pascal.Parse")
+    @Label("Parse")
+    @Category({"Pascal", "Compiler"})
+    @Description("Parser.parse of one program, including its optimizations")
+    public static final class ParseEvent extends Event {
+        @Label("Code Size")
+        @DataAmount
+        int codeBytes;
+
+        @Label("Symbols")
+        int symbols;
+
+        @Label("Constants")
+        int constants;
+
+        @Label("Unrolled Loops")
+        int unrolledLoops;
+
+        @Label("Inlined Calls")
+        int inlinedCalls;
+
+        @Label("Tail Calls")
+        int tailCalls;
+
+        @Label("Optimize Time")
+        @Timespan
+        long optimizeNanos;
+    }
+
+    @Name("pascal.Execute")
+    @Label("Execute")
+    @Category({"Pascal", "VM"})
+    @Description("Simulator.simulate of one program")
+    public static final class ExecuteEvent extends Event {
+        @Label("Instructions")
+        long instructions;
+
+        @Label("Output Size")
+        @DataAmount
+        long outputBytes;
+
+        @Label("Data Size")
+        @DataAmount
+        int dataBytes;
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+
+/*
+Counts the instructions a Simulator executes per OP_CODE and per address, and times one instruction
+in every TIMING_INTERVAL to estimate the time spent per OP_CODE:
+    estimated nanos = count * timed nanos / timed count
+Only a Simulator given a Profiler calls it, the test for one is loop invariant and compiled out of the
+loop of a VM without one.
+A profiled program always runs on the checked path, also when it is verified, so the counts match the
+unprofiled run but the times are those of the checked path and higher than the verified path's.
+
+Example report:
+    opcode           count      %   est. ms  ns/op
+    PUSH            600012   30.0      9.61  16.01
+    ...
+    address  line  opcode           count
+         42     7  FOR_NEXT        100000
+ */
+public final class Profiler {
+    static final int TIMING_INTERVAL = 1 << 10; // instructions, a power of two
+    private static final int TOP_ADDRESSES = 20;
+
+    private static final Parser.OP_CODE[] OP_CODES = Parser.OP_CODE.values();
+
+    private final PcxFile pcxFile;
+    private final long[] opCodeCounts = new long[OP_CODES.length];
+    private final long[] addressCounts;
+    private final long[] timedCounts = new long[OP_CODES.length];
+    private final long[] timedNanos = new long[OP_CODES.length];
+    private final long timerOverhead;
+
+    public Profiler(PcxFile pcxFile) {
+        this.pcxFile = pcxFile;
+        this.addressCounts = new long[pcxFile.getCode().capacity()];
+        this.timerOverhead = getTimerOverhead();
+    }
+
+    // Nanos System.nanoTime adds to a timed instruction, the least of a few back to back calls
+    private static long getTimerOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long start = System.nanoTime();
+            overhead = Math.min(overhead, System.nanoTime() - start);
+        }
+
+        return overhead;
+    }
+
+    void count(Parser.OP_CODE opCode, int address) {
+        opCodeCounts[opCode.ordinal()]++;
+        addressCounts[address]++;
+    }
+
+    void time(Parser.OP_CODE opCode, long nanos) {
+        timedCounts[opCode.ordinal()]++;
+        timedNanos[opCode.ordinal()] += Math.max(nanos - timerOverhead, 0);
+    }
+
+    private long getInstructions() {
+        long instructions = 0;
+        for (long count : opCodeCounts) {
+            instructions += count;
+        }
+
+        return instructions;
+    }
+
+    private double getNanosPerOp(int opCode) {
+        return timedCounts[opCode] == 0 ? 0 : (double) timedNanos[opCode] / timedCounts[opCode];
+    }
+
+    // OP_CODE ordinals that ran, most executed first
+    private ArrayList<Integer> getOpCodesByCount() {
+        ArrayList<Integer> opCodesArrayList = new ArrayList<>();
+        for (int i = 0; i < opCodeCounts.length; i++) {
+            if (opCodeCounts[i] > 0) {
+                opCodesArrayList.add(i);
+            }
+        }
+        opCodesArrayList.sort(Comparator.comparingLong((Integer opCode) -> opCodeCounts[opCode]).reversed());
+
+        return opCodesArrayList;
+    }
+
+    // Addresses of the instructions that ran, most executed first
+    private ArrayList<Integer> getAddressesByCount() {
+        ArrayList<Integer> addressesArrayList = new ArrayList<>();
+        for (int i = 0; i < addressCounts.length; i++) {
+            if (addressCounts[i] > 0) {
+                addressesArrayList.add(i);
+            }
+        }
+        addressesArrayList.sort(Comparator.comparingLong((Integer address) -> addressCounts[address]).reversed());
+
+        return addressesArrayList;
+    }
+
+    private String getOpCodeName(int address) {
+        return OP_CODES[pcxFile.getCode().get(address)].name();
+    }
+
+    public void report(PrintStream out) {
+        long instructions = getInstructions();
+
+        out.println(String.format("%-12s %12s %6s %9s %6s", "opcode", "count", "%", "est. ms", "ns/op"));
+        for (int opCode : getOpCodesByCount()) {
+            double nanosPerOp = getNanosPerOp(opCode);
+            out.println(String.format("%-12s %12d %6.1f %9.2f %6.2f", OP_CODES[opCode].name(), opCodeCounts[opCode],
+                    100.0 * opCodeCounts[opCode] / instructions, opCodeCounts[opCode] * nanosPerOp / 1e6, nanosPerOp));
+        }
+        out.println(String.format("%-12s %12d", "total", instructions));
+
+        out.println();
+        out.println(String.format("%7s %5s  %-12s %12s", "address", "line", "opcode", "count"));
+        ArrayList<Integer> addressesArrayList = getAddressesByCount();
+        for (int address : addressesArrayList.subList(0, Math.min(TOP_ADDRESSES, addressesArrayList.size()))) {
+            out.println(String.format("%7d %5d  %-12s %12d", address, pcxFile.getLine(address),
+                    getOpCodeName(address), addressCounts[address]));
+        }
+    }
+
+    /*
+    {"instructions": 1000, "timingInterval": 1024,
+     "opcodes": [{"opcode": "PUSH", "count": 300, "estimatedNanos": 4800, "nanosPerOp": 16.0}, ...],
+     "addresses": [{"address": 42, "line": 7, "opcode": "FOR_NEXT", "count": 100}, ...]}
+    Both lists are sorted by count, addresses that never ran are left out.
+     */
+    public void writeJson(Path path) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format("{\"instructions\": %d, \"timingInterval\": %d,%n \"opcodes\": [",
+                getInstructions(), TIMING_INTERVAL));
+
+        String separator = "";
+        for (int opCode : getOpCodesByCount()) {
+            double nanosPerOp = getNanosPerOp(opCode);
+            json.append(String.format(Locale.ROOT, "%s%n  {\"opcode\": \"%s\", \"count\": %d, \"estimatedNanos\": %d, \"nanosPerOp\": %.2f}",
+                    separator, OP_CODES[opCode].name(), opCodeCounts[opCode],
+                    Math.round(opCodeCounts[opCode] * nanosPerOp), nanosPerOp));
+            separator = ",";
+        }
+
+        json.append(String.format("],%n \"addresses\": ["));
+        separator = "";
+        for (int address : getAddressesByCount()) {
+            json.append(String.format("%s%n  {\"address\": %d, \"line\": %d, \"opcode\": \"%s\", \"count\": %d}",
+                    separator, address, pcxFile.getLine(address), getOpCodeName(address), addressCounts[address]));
+            separator = ",";
+        }
+        json.append(String.format("]}%n"));
+
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
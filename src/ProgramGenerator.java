@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/*
+java Emulator generate --lines=<n> [--seed=<n>] [<file.pas>]
+
+Writes a valid Pascal program of about n lines to <file.pas>, or standard output, the same program
+for the same n and seed. It has one integer variable per 8 lines and one array per 64, functions of
+two parameters, procedures with a local loop counter, and a main program of assignments, array
+stores, calls, writelns and while, if and case statements nested up to MAX_DEPTH deep.
+
+Every while loop counts a counter only it assigns up to at most MAX_TRIPS, functions call only the
+ones before them and procedures only functions, so the program always finishes, in at most about
+MAX_TRIPS^MAX_DEPTH times its size of instructions. Like the benchmarks it has no subtraction or reals, and an if is always the
+last statement of its block, which it runs to the end of.
+ */
+public final class ProgramGenerator {
+    static final int MAX_DEPTH = 3;
+    private static final int MAX_TRIPS = 3;
+    private static final int LINES_PER_VARIABLE = 8;
+    private static final int LINES_PER_ARRAY = 64;
+    private static final int LINES_PER_PROCEDURE = 200; // a quarter of the lines are procedure bodies
+    private static final int ARRAY_SIZE = 64;
+    private static final int FUNCTIONS = 8;
+
+    private final Random random;
+    private final StringBuilder source = new StringBuilder();
+    private int lines = 0;
+    private int indent = 0;
+
+    private final int variables;
+    private final int arrays;
+    private final int procedures;
+    private int functions = 0; // functions callable from the block being generated
+    private int calls = 0; // procedures callable from it
+
+    private ProgramGenerator(int lines, long seed) {
+        this.random = new Random(seed);
+        this.variables = Math.max(4, lines / LINES_PER_VARIABLE);
+        this.arrays = Math.max(1, lines / LINES_PER_ARRAY);
+        this.procedures = lines / LINES_PER_PROCEDURE;
+    }
+
+    public static void run(String[] args) throws IOException {
+        int lines = 0;
+        long seed = 1;
+        String file = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--lines=")) {
+                lines = Integer.valueOf(arg.substring("--lines=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.valueOf(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--")) {
+                throw new Error(String.format("Unknown generate option (%s)", arg));
+            } else {
+                file = arg;
+            }
+        }
+        if (lines <= 0) {
+            throw new Error("No --lines=<n> given");
+        }
+
+        String program = generate(lines, seed);
+        if (file == null) {
+            System.out.print(program);
+            System.out.flush();
+        } else {
+            Files.write(Paths.get(file), program.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static String generate(int lines, long seed) {
+        ProgramGenerator generator = new ProgramGenerator(lines, seed);
+        generator.program(lines);
+
+        return generator.source.toString();
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < indent; i++) {
+            source.append("    ");
+        }
+        source.append(text).append('\n');
+        lines++;
+    }
+
+    private void program(int targetLines) {
+        line("program generated;");
+        for (int i = 0; i < variables; i++) {
+            line(String.format("var v%d: integer;", i));
+        }
+        for (int i = 0; i < arrays; i++) {
+            line(String.format("var a%d: array[0..%d] of integer;", i, ARRAY_SIZE - 1));
+        }
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            line(String.format("var w%d: integer;", i));
+        }
+
+        for (int i = 0; i < FUNCTIONS; i++) {
+            line("");
+            line(String.format("function f%d(x, y: integer): integer;", i));
+            line("    begin");
+            indent += 2;
+            line(String.format("f%d := %s;", i, expression("x", "y")));
+            indent -= 2;
+            line("    end;");
+            functions++;
+        }
+
+        int procedureLines = targetLines / 4 / Math.max(1, procedures);
+        for (int i = 0; i < procedures; i++) {
+            line("");
+            line(String.format("procedure p%d;", i));
+            for (int depth = 0; depth < MAX_DEPTH; depth++) {
+                line(String.format("var q%d: integer;", depth));
+            }
+            line("    begin");
+            indent += 2;
+            int end = lines + procedureLines;
+            while (lines < end) {
+                statement(0, "q", false);
+            }
+            indent -= 2;
+            line("    end;");
+        }
+        calls = procedures;
+
+        line("");
+        line("begin");
+        indent++;
+        for (int i = 0; i < variables; i++) {
+            line(String.format("v%d := %d;", i, i));
+        }
+        while (lines < targetLines - 1) {
+            statement(0, "w", false);
+        }
+        indent--;
+        line("end.");
+    }
+
+    /*
+    One statement at depth, loops count with <counter><depth>. The last statement of a block may be
+    an if, anything after it would be part of it.
+     */
+    private void statement(int depth, String counter, boolean last) {
+        int kind = random.nextInt(20);
+        if (kind < 2 && depth < MAX_DEPTH) {
+            whileStatement(depth, counter);
+        } else if (kind < 4 && depth < MAX_DEPTH) {
+            caseStatement(depth, counter);
+        } else if (kind < 6 && last && depth < MAX_DEPTH) {
+            ifStatement(depth, counter);
+        } else if (kind < 9) {
+            line(String.format("%s[%s] := %s;", array(), index(depth, counter), expression(variable(), variable())));
+        } else if (kind < 10 && depth == 0 && calls > 0) {
+            line(String.format("p%d;", random.nextInt(calls)));
+        } else if (kind < 12) {
+            line(String.format("writeln(%s);", variable()));
+        } else {
+            line(String.format("%s := %s;", variable(), expression(variable(), variable())));
+        }
+    }
+
+    // 1 to 4 statements, the last of which may be an if
+    private void block(int depth, String counter) {
+        int statements = 1 + random.nextInt(4);
+        for (int i = 0; i < statements; i++) {
+            statement(depth, counter, i == statements - 1);
+        }
+    }
+
+    private void whileStatement(int depth, String counter) {
+        String loopCounter = counter + depth;
+        line(String.format("%s := 0;", loopCounter));
+        line(String.format("while %s < %d do", loopCounter, 1 + random.nextInt(MAX_TRIPS)));
+        line("begin");
+        indent++;
+        line(String.format("%s := %s + 1;", loopCounter, loopCounter));
+        block(depth + 1, counter);
+        indent--;
+        line("end;");
+    }
+
+    private void caseStatement(int depth, String counter) {
+        // a loop counter, in 0..MAX_TRIPS, selects most arms, outside of loops the value left by the last one
+        String selector = counter + random.nextInt(Math.max(1, depth));
+        line(String.format("case (%s) of", selector));
+        indent++;
+        int arms = 2 + random.nextInt(4);
+        int label = random.nextInt(2);
+        for (int i = 0; i < arms; i++) {
+            line(String.format("%d :", label));
+            label += 1 + random.nextInt(2);
+            indent++;
+            block(depth + 1, counter);
+            indent--;
+        }
+        indent--;
+        line("end;");
+    }
+
+    private void ifStatement(int depth, String counter) {
+        String[] relations = {"<", "<=", "=", "<>", ">", ">="};
+        line(String.format("if %s %s %s then", variable(), relations[random.nextInt(relations.length)], variable()));
+        indent++;
+        if (random.nextBoolean()) {
+            line(String.format("%s := %s", variable(), expression(variable(), variable())));
+            indent--;
+            line("else");
+            indent++;
+        }
+        block(depth + 1, counter);
+        indent--;
+    }
+
+    private String variable() {
+        return "v" + random.nextInt(variables);
+    }
+
+    private String array() {
+        return "a" + random.nextInt(arrays);
+    }
+
+    // In 0..ARRAY_SIZE - 1, through the loop counter when in a loop
+    private String index(int depth, String counter) {
+        if (depth > 0 && random.nextBoolean()) {
+            return String.format("%s%d + %d", counter, random.nextInt(depth), random.nextInt(ARRAY_SIZE - MAX_TRIPS));
+        }
+
+        return String.valueOf(random.nextInt(ARRAY_SIZE));
+    }
+
+    private String expression(String x, String y) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return String.format("%s + %s * %d", x, y, random.nextInt(10));
+            case 1:
+                return String.format("%s div %d + %s", x, 1 + random.nextInt(9), y);
+            case 2:
+                return String.format("%s[%d] + %s", array(), random.nextInt(ARRAY_SIZE), x);
+            case 3:
+                if (functions > 0) {
+                    return String.format("f%d(%s, %s)", random.nextInt(functions), x, y);
+                }
+                return String.format("%s * %s", x, y);
+            case 4:
+                return String.format("(%s + %d) * %s", x, random.nextInt(100), y);
+            default:
+                return String.format("%s + %s", x, y);
+        }
+    }
+}
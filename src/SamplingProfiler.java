@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Attributes the time of a running program to its Pascal source lines. A daemon thread marks a sample
+as due every interval, the Simulator takes it before its next instruction, so
+every sample sees a consistent ip and return stack without stopping the VM from outside.
+
+A sample is one line of collapsed stacks, the format of flamegraph.pl and speedscope:
+    main:14;fib:6;fib:6;fib:4 12
+the frames from the main program to the running procedure, each with the line it is running
+or calling from, followed by the number of samples of that stack.
+Like a Profiler it makes the program run on the checked path, also when it is verified, so the lines
+are the ones a verified run spends its time on but at the speed of the checked path.
+ */
+public final class SamplingProfiler {
+    public static final long DEFAULT_INTERVAL_MICROS = 1000;
+
+    private static final int CALL_SIZE = 5; // CALL <address>
+    private static final int TOP_LINES = 20;
+
+    private final PcxFile pcxFile;
+    private final long intervalNanos;
+    private final Thread ticker;
+
+    private volatile boolean due = false;
+    private volatile boolean stopped = false;
+
+    // only touched by the thread running the VM
+    private final HashMap<String, Long> stacksHashMap = new HashMap<>();
+    private final HashMap<String, Long> linesHashMap = new HashMap<>(); // by <procedure>:<line>
+    private long samples = 0;
+
+    public SamplingProfiler(PcxFile pcxFile, long intervalMicros) {
+        this.pcxFile = pcxFile;
+        this.intervalNanos = intervalMicros * 1000;
+
+        ticker = new Thread(() -> {
+            while (!stopped) {
+                LockSupport.parkNanos(intervalNanos);
+                due = true;
+            }
+        }, "sampling-profiler");
+        ticker.setDaemon(true);
+    }
+
+    public void start() {
+        ticker.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    boolean isDue() {
+        return due;
+    }
+
+    // Record the stack of a VM at address, returnStack holds {return address, frame pointer}* below rsp
+    void sample(int address, int[] returnStack, int rsp) {
+        due = false;
+        samples++;
+
+        StringBuilder stack = new StringBuilder();
+        for (int i = 0; i < rsp; i += 2) {
+            stack.append(getFrame(returnStack[i] - CALL_SIZE)).append(';');
+        }
+        String frame = getFrame(address);
+        stack.append(frame);
+
+        stacksHashMap.merge(stack.toString(), 1L, Long::sum);
+        linesHashMap.merge(frame, 1L, Long::sum);
+    }
+
+    // <procedure>:<line> of the frame running the instruction at address
+    private String getFrame(int address) {
+        return getProcedure(address) + ":" + pcxFile.getLine(address);
+    }
+
+    private String getProcedure(int address) {
+        String procedure = pcxFile.getProcedure(address);
+        return procedure != null ? procedure : "main";
+    }
+
+    public void report(PrintStream out) {
+        out.println(String.format("%d samples every %d us", samples, intervalNanos / 1000));
+        out.println(String.format("%-24s %8s %6s", "procedure:line", "samples", "%"));
+
+        ArrayList<Map.Entry<String, Long>> linesArrayList = new ArrayList<>(linesHashMap.entrySet());
+        linesArrayList.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> entry : linesArrayList.subList(0, Math.min(TOP_LINES, linesArrayList.size()))) {
+            out.println(String.format("%-24s %8d %6.1f", entry.getKey(), entry.getValue(), 100.0 * entry.getValue() / samples));
+        }
+    }
+
+    // Write the samples as collapsed stacks, one stack per line
+    public void writeCollapsed(Path path) throws IOException {
+        StringBuilder collapsed = new StringBuilder();
+        for (Map.Entry<String, Long> entry : stacksHashMap.entrySet()) {
+            collapsed.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+
+        Files.write(path, collapsed.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+java Emulator scale [--sizes=<lines>,...] [--seed=<n>] [--run]
+
+Compiles generated programs of each size, see ProgramGenerator, and reports per phase the time,
+the time per source line, the bytes the phase allocated, the heap still reachable after it and
+how the time grows against the size before it, as the exponent k of time ~ lines^k. Linear phases
+have k near 1, a k of 2 is quadratic. With --run the programs are also run.
+
+     lines  source MB  phase          ms   ns/line  alloc MB  retained MB  growth
+     10000       0.25  scan       601.20   60120.0    412.07         6.21
+                       parse      181.88   18188.0     58.47        15.02
+                       optimize    19.14    1914.0
+    100000       2.57  scan      3712.49   37124.9   4120.33        61.84    0.79
+    ...
+
+The allocated bytes are those of the thread compiling, the retained heap is measured after a full GC
+and includes the tokens the parse still refers to. A 10000 line program is compiled twice first
+so the smallest size is not timed before the JIT compiled the compiler. Sizes of millions of lines need -Xmx of
+gigabytes; a size that runs out of memory ends the report.
+ */
+public final class ScaleReport {
+    private static final int WARMUP_LINES = 10000;
+    private static final int WARMUP_RUNS = 2;
+    private static final double SUPERLINEAR = 1.3; // growth exponent flagged
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // the phases in the order of the report
+    private static final String[] PHASES = {"scan", "parse", "optimize", "execute"};
+
+    public static void run(String[] args) {
+        int[] sizes = {10000, 30000, 100000};
+        long seed = 1;
+        boolean run = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--sizes=")) {
+                sizes = Arrays.stream(arg.substring("--sizes=".length()).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.valueOf(arg.substring("--seed=".length()));
+            } else if (arg.equals("--run")) {
+                run = true;
+            } else {
+                throw new Error(String.format("Unknown scale option (%s)", arg));
+            }
+        }
+
+        String warmup = ProgramGenerator.generate(WARMUP_LINES, seed);
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            measure(warmup, run);
+        }
+
+        System.out.printf("%10s %10s  %-8s %10s %9s %9s %12s %7s%n",
+                "lines", "source MB", "phase", "ms", "ns/line", "alloc MB", "retained MB", "growth");
+        double[] previousMillis = null;
+        int previousLines = 0;
+        for (int lines : sizes) {
+            double[][] phases; // ms, allocated bytes, retained bytes per phase, NaN when not measured
+            String source;
+            try {
+                source = ProgramGenerator.generate(lines, seed);
+                phases = measure(source, run);
+            } catch (OutOfMemoryError e) {
+                System.out.printf("%10d out of memory, run with a larger -Xmx%n", lines);
+                break;
+            }
+
+            double[] millis = new double[PHASES.length];
+            for (int i = 0; i < PHASES.length; i++) {
+                millis[i] = phases[i][0];
+                if (Double.isNaN(millis[i])) {
+                    continue;
+                }
+
+                String growth = "";
+                if (previousMillis != null && previousMillis[i] > 0 && millis[i] > 0) {
+                    double k = Math.log(millis[i] / previousMillis[i]) / Math.log((double) lines / previousLines);
+                    growth = String.format("%7.2f%s", k, k >= SUPERLINEAR ? "  superlinear" : "");
+                }
+                System.out.printf("%10s %10s  %-8s %10.2f %9.1f %9s %12s %s%n",
+                        i == 0 ? String.valueOf(lines) : "",
+                        i == 0 ? String.format("%.2f", source.length() / 1e6) : "",
+                        PHASES[i], millis[i], millis[i] * 1e6 / lines,
+                        Double.isNaN(phases[i][1]) ? "" : String.format("%.2f", phases[i][1] / 1e6),
+                        Double.isNaN(phases[i][2]) ? "" : String.format("%.2f", phases[i][2] / 1e6),
+                        growth);
+            }
+            previousMillis = millis;
+            previousLines = lines;
+        }
+    }
+
+    // {ms, allocated bytes, retained bytes} of every phase of compiling and running source
+    private static double[][] measure(String source, boolean run) {
+        double[][] phases = new double[PHASES.length][];
+        long baseHeap = getRetainedHeap();
+
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        ArrayList<Token> tokenArrayList = new TokenScanner().scan(source);
+        long nanos = System.nanoTime() - start;
+        phases[0] = new double[]{nanos / 1e6, getAllocatedBytes() - allocated, getRetainedHeap() - baseHeap};
+
+        Parser parser = new Parser(tokenArrayList);
+        allocated = getAllocatedBytes();
+        start = System.nanoTime();
+        Byte[] instructions = parser.parse();
+        nanos = System.nanoTime() - start;
+        // the optimizations allocate as part of the parse, their bytes are counted there
+        phases[1] = new double[]{(nanos - parser.getOptimizeNanos()) / 1e6, getAllocatedBytes() - allocated,
+                getRetainedHeap() - baseHeap};
+        phases[2] = new double[]{parser.getOptimizeNanos() / 1e6, Double.NaN, Double.NaN};
+
+        phases[3] = new double[]{Double.NaN, Double.NaN, Double.NaN};
+        if (run) {
+            PcxFile pcxFile = PcxFile.fromParser(parser, instructions, true);
+            tokenArrayList = null;
+            parser = null;
+            instructions = null;
+
+            Simulator simulator = new Simulator(pcxFile, new PrintStream(OutputStream.nullOutputStream()));
+            allocated = getAllocatedBytes();
+            start = System.nanoTime();
+            simulator.simulate();
+            nanos = System.nanoTime() - start;
+            phases[3] = new double[]{nanos / 1e6, getAllocatedBytes() - allocated, Double.NaN};
+        }
+
+        return phases;
+    }
+
+    // Bytes allocated by this thread so far, where the JVM counts them
+    private static long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+        }
+
+        return 0;
+    }
+
+    private static long getRetainedHeap() {
+        System.gc();
+        System.gc();
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+Runs jobs that each compile and run a program on their own thread. With virtual threads every job
+is a virtual thread, so ten thousands of programs can be in flight on a few carrier threads, and the
+VMs created by newSimulator yield at a backward jump or call every safepointInterval instructions
+so a long loop does not keep its carrier from the other programs. Every VM adds the instructions it
+ran to the Metrics at safepoints, at least every DEFAULT_SAFEPOINT_INTERVAL instructions, so the
+counters move while a long program runs. With a job timeout every VM fails at the first safepoint
+after it ran that long.
+
+Virtual threads need JDK 21, they are looked up by reflection so the compiler still runs on JDK 17.
+Without them jobs run on a ForkJoinPool of parallelism platform threads.
+ */
+public final class Scheduler {
+    public static final long DEFAULT_SAFEPOINT_INTERVAL = 1 << 16; // instructions
+    public static final double DEFAULT_JOB_TIMEOUT = 300; // seconds
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final long safepointInterval;
+    private long jobTimeoutNanos = 0; // 0 for no timeout
+
+    public Scheduler(boolean virtualThreads, int parallelism, long safepointInterval) {
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : new ForkJoinPool(parallelism);
+        this.safepointInterval = safepointInterval;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), null before JDK 21
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            // JDK 17, or JDK 19 and 20 without --enable-preview
+            return null;
+        }
+    }
+
+    public Future<?> submit(Runnable job) {
+        return executor.submit(job);
+    }
+
+    // A VM for pcxFile that yields at safepoints when it runs on a virtual thread and updates the Metrics at them
+    public Simulator newSimulator(PcxFile pcxFile, PrintStream out) {
+        Simulator simulator = new Simulator(pcxFile, out);
+        simulator.setLiveMetrics();
+        if (virtual) {
+            simulator.setSafepointInterval(safepointInterval);
+        }
+        if (jobTimeoutNanos != 0) {
+            simulator.setTimeout(jobTimeoutNanos);
+        }
+
+        return simulator;
+    }
+
+    // Seconds every program may run, 0 for no limit
+    public void setJobTimeout(double seconds) {
+        jobTimeoutNanos = (long) (seconds * 1e9);
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
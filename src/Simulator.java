@@ -1,23 +1,221 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Stack;
 
 public class Simulator {
 
-    private static int ip = 0;
-    private static int dp = 0;
+    private int ip = 0;
+    private int dp = 0;
 
-    private static Stack<Object> stack = new Stack<>();
+    private OperandStack stack = new OperandStack();
 
-    private static Byte[] dataArray = new Byte[1000];
+    // A Stack that keeps its greatest depth, read from the unsynchronized element count of the Vector
+    private static final class OperandStack extends Stack<Object> {
+        private static final long serialVersionUID = 1L;
 
-    private static Byte[] instructions;
+        private int highWaterMark = 0;
 
-    public static void simulate() {
-        Parser.OP_CODE opCode;
+        // The top of the stack without the lock of peek, null if it is empty
+        Object top() {
+            return elementCount == 0 ? null : elementData[elementCount - 1];
+        }
+
+        @Override
+        public Object push(Object item) {
+            addElement(item);
+            if (elementCount > highWaterMark) {
+                highWaterMark = elementCount;
+            }
+
+            return item;
+        }
+    }
+
+    private byte[] dataArray = new byte[1000];
+
+    /*
+    Globals are at the start of dataArray, the frames of the running calls are stacked after them.
+    Every call keeps its return address and the frame pointer of its caller on the return stack:
+        CALL: returnStack <- return address
+        ENTER: returnStack <- fp, fp = frameTop, frameTop += frame size
+        RET: frameTop = fp, fp <- returnStack, ip <- returnStack
+     */
+    private static final int RETURN_STACK_SIZE = 1 << 16;
+
+    private int[] returnStack = new int[64]; // grows to RETURN_STACK_SIZE, most programs never call deeply
+    private int rsp = 0;
+
+    private int fp = 0; // frame of the running call
+    private int frameTop = 0; // end of the frames
+    private int frameTopHighWaterMark = 0;
+
+    private final PrintStream out;
+    private long outputBytes = 0;
+
+    /*
+    Backward jumps and calls are safepoints, at the first one after every safepointInterval instructions
+    the VM yields its thread so VMs sharing carrier threads run their loops in turns, see Scheduler,
+    and a program still running past its deadline fails
+     */
+    private long instructions = 0;
+    private long safepointInterval = Long.MAX_VALUE; // no safepoints
+    private long nextSafepoint = Long.MAX_VALUE;
+    private boolean yielding = false;
+    private long deadline = 0; // System.nanoTime() the program must end by
+    private long timeoutNanos = 0; // 0 for no deadline
+    private boolean timedOut = false;
+
+    // run so far as added to the Metrics at the safepoints, the rest is added when the program ends
+    private long runStart = 0;
+    private long recordedInstructions = 0;
+    private long recordedNanos = 0;
+
+    private Profiler profiler = null;
+    private SamplingProfiler sampler = null;
+
+    /*
+    Ring of the last instructions run, TRACE_FIELDS ints each written before the instruction runs:
+        address, OP_CODE ordinal, TRACE_* tag of the top of the stack, its value or float bits
+    printed with the instructions decoded to traceOut when the program fails
+     */
+    private static final int TRACE_FIELDS = 4;
+    private static final int TRACE_EMPTY = Verifier.EMPTY;
+    private static final int TRACE_INT = Verifier.INT;
+    private static final int TRACE_REAL = Verifier.REAL;
+    private static final int TRACE_BOOL = Verifier.BOOL;
+    private static final int TRACE_WORD = Verifier.WORD; // a value the verified path did not tell the type of
+
+    private final PcxFile pcxFile;
+    private int[] trace = null;
+    private int traceMask = 0;
+    private int traceEntries = 0; // instructions printed, the ring is this rounded up to a power of two
+    private long traceCursor = 0; // instructions traced, the ring wraps around
+    private PrintStream traceOut = null;
+
+    private ByteBuffer code; // instructions, from the Parser or mapped from a .pcx file
+    private float[] constants; // PUSHF operands
+
+    private static final Parser.OP_CODE[] OP_CODES = Parser.OP_CODE.values();
+
+    // big-endian ints of dataArray for the verified path
+    private static final VarHandle DATA = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // big-endian 64-bit words of dataArray, of the sets
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private boolean verify = true; // run a verified program on the verified path
+    private int verifiedStackSize = 0; // slots of the stack of the verified path
+
+    // A VM to run pcxFile from its entry writing to out, the globals are followed by the first frame
+    public Simulator(PcxFile pcxFile, PrintStream out) {
+        this.pcxFile = pcxFile;
+
+        // counts the bytes written, a PrintStream without autoflush passes them on as they are printed
+        this.out = new PrintStream(new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                outputBytes++;
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                outputBytes += length;
+                out.write(bytes, offset, length);
+            }
+        }, false);
+
+        code = pcxFile.getCode();
+        constants = pcxFile.getConstants();
+        ip = pcxFile.getEntry();
+
+        int dataSize = pcxFile.getDataSize();
+        if (dataSize > dataArray.length) {
+            dataArray = new byte[dataSize];
+        }
+        fp = dataSize;
+        frameTop = dataSize;
+    }
+
+    /*
+    Run the program to its HALT. A program the Verifier verified runs on the verified path, unless it is
+    profiled or verify is off, everything else on the checked path. Malformed code is rejected by the
+    Verifier before it runs.
+     */
+    public void simulate() {
+        Verifier verifier = verify ? pcxFile.verify() : null;
+
+        PipelineEvents.ExecuteEvent event = PipelineEvents.isRecording() ? new PipelineEvents.ExecuteEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+
+        // a loop invariant, the JIT compiles the loop without the profiling for a VM that is not profiled
+        // A profiled program runs on the checked path even when it is verified, runVerified does not count
+        boolean profiling = profiler != null || sampler != null;
+        boolean tracing = trace != null;
+        if (sampler != null) {
+            sampler.start();
+        }
+
+        runStart = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            if (verifier != null && verifier.isVerified() && !profiling) {
+                runVerified(verifier, tracing);
+            } else {
+                runChecked(profiling, tracing);
+            }
+
+            failed = false;
+        } catch (RuntimeException | Error e) {
+            if (trace != null) {
+                printTrace(e);
+            }
+            throw e;
+        } finally {
+            if (sampler != null) {
+                sampler.stop();
+            }
 
+            out.flush();
+            if (event != null && event.shouldCommit()) {
+                event.instructions = instructions;
+                event.outputBytes = outputBytes;
+                event.dataBytes = dataArray.length;
+                event.commit();
+            }
+
+            Metrics.recordExecute(instructions - recordedInstructions, System.nanoTime() - runStart - recordedNanos,
+                    Math.max(stack.highWaterMark, verifiedStackSize), Math.max(frameTopHighWaterMark, frameTop), failed);
+        }
+    }
+
+    // The loop of the checked path, values are boxed on a Stack and every operand is cast
+    private void runChecked(boolean profiling, boolean tracing) {
+        Parser.OP_CODE opCode;
         do {
+            int address = ip;
             opCode = getOpCode();
+            instructions++;
 //            System.out.println(opCode);
+
+            if (tracing) {
+                trace(opCode, address);
+            }
+
+            long timed = 0;
+            if (profiling) {
+                timed = profile(opCode, address);
+            }
+
             switch (opCode) {
                 case PUSH:
                     push();
@@ -37,6 +235,45 @@ public class Simulator {
                 case PUT:
                     put();
                     break;
+                case LOAD8:
+                    load8();
+                    break;
+                case STORE8:
+                    store8();
+                    break;
+                case GET8:
+                    get8();
+                    break;
+                case PUT8:
+                    put8();
+                    break;
+                case SET_CLEAR:
+                    setClear();
+                    break;
+                case SET_INCL:
+                    setIncl();
+                    break;
+                case SET_RANGE:
+                    setRange();
+                    break;
+                case SET_COPY:
+                    setCopy();
+                    break;
+                case SET_UNION:
+                case SET_INTER:
+                case SET_DIFF:
+                    setOperation(opCode);
+                    break;
+                case SET_EQL:
+                case SET_NEQL:
+                    setEql(opCode);
+                    break;
+                case SET_IN:
+                    setIn();
+                    break;
+                case SET_TEST:
+                    setTest();
+                    break;
                 case CVR:
                     cvr();
                     break;
@@ -46,6 +283,30 @@ public class Simulator {
                 case JMP:
                     jmp();
                     break;
+                case FOR_LOOP:
+                    forLoop();
+                    break;
+                case FOR_NEXT:
+                    forNext();
+                    break;
+                case INCR:
+                    incr();
+                    break;
+                case CALL:
+                    call();
+                    break;
+                case ENTER:
+                    enter();
+                    break;
+                case RET:
+                    ret();
+                    break;
+                case TABLESWITCH:
+                    tableSwitch();
+                    break;
+                case LOOKUPSWITCH:
+                    lookupSwitch();
+                    break;
                 case PRINT_REAL:
                     printReal();
                     break;
@@ -59,7 +320,7 @@ public class Simulator {
                     printChar();
                     break;
                 case PRINT_NEWLINE:
-                    System.out.println();
+                    out.println();
                     break;
                 case HALT:
                     halt();
@@ -116,57 +377,587 @@ public class Simulator {
                     throw new Error(String.format("Unhandled case: %s", opCode));
             }
 
+            if (timed != 0) {
+                profiler.time(opCode, System.nanoTime() - timed);
+            }
         }
         while (opCode != Parser.OP_CODE.HALT);
     }
 
-    private static void pushf() {
-        float val = getFloatValue();
+    /*
+    The loop of the verified path. Values are ints on an int stack: ints, the bits of reals and
+    booleans as 1 and 0. The Verifier proved every operand has the type the instruction takes and
+    the stack never underflows, the few instructions that take more than one type look theirs up in it.
+    The stack has the size the Verifier found, a recursive program grows it at a call that needs more.
+    The results are those of the checked path, comparisons convert their ints to floats like it does.
+     */
+    private void runVerified(Verifier verifier, boolean tracing) {
+        ByteBuffer code = this.code;
+        byte[] data = dataArray;
+        int[] constantBits = new int[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            constantBits[i] = Float.floatToIntBits(constants[i]);
+        }
+
+        boolean recursive = verifier.getMaxStack() < 0;
+        int procedureStack = verifier.getProcedureStack();
+        int[] stack = new int[recursive ? Math.max(64, procedureStack * 2) : verifier.getMaxStack()];
+        int sp = 0;
+        int ip = this.ip;
+        long instructions = this.instructions;
+
+        try {
+            while (true) {
+                int address = ip;
+                Parser.OP_CODE opCode = OP_CODES[code.get(ip)];
+                instructions++;
+
+                if (tracing) {
+                    trace(address, opCode.ordinal(), sp == 0 ? TRACE_EMPTY : verifier.getType(address), sp == 0 ? 0 : stack[sp - 1]);
+                }
+
+                switch (opCode) {
+                    case PUSH:
+                        stack[sp++] = (int) DATA.get(data, resolve(code.getInt(ip + 1)));
+                        ip += 5;
+                        break;
+                    case PUSHI:
+                        stack[sp++] = code.getInt(ip + 1);
+                        ip += 5;
+                        break;
+                    case PUSHF:
+                        stack[sp++] = constantBits[code.getInt(ip + 1)];
+                        ip += 5;
+                        break;
+                    case POP:
+                        DATA.set(data, resolve(code.getInt(ip + 1)), stack[--sp]);
+                        ip += 5;
+                        break;
+                    case GET:
+                        stack[sp - 1] = (int) DATA.get(data, resolve(stack[sp - 1]));
+                        ip++;
+                        break;
+                    case PUT:
+                        DATA.set(data, resolve(stack[sp - 2]), stack[sp - 1]);
+                        sp -= 2;
+                        ip++;
+                        break;
+                    case LOAD8:
+                        stack[sp++] = data[resolve(code.getInt(ip + 1))] & 0xff;
+                        ip += 5;
+                        break;
+                    case STORE8:
+                        data[resolve(code.getInt(ip + 1))] = (byte) stack[--sp];
+                        ip += 5;
+                        break;
+                    case GET8:
+                        stack[sp - 1] = data[resolve(stack[sp - 1])] & 0xff;
+                        ip++;
+                        break;
+                    case PUT8:
+                        data[resolve(stack[sp - 2])] = (byte) stack[sp - 1];
+                        sp -= 2;
+                        ip++;
+                        break;
+                    case SET_CLEAR: {
+                        int set = resolve(code.getInt(ip + 1));
+                        Arrays.fill(data, set, set + Parser.SET_SIZE, (byte) 0);
+                        stack[sp++] = code.getInt(ip + 1);
+                        ip += 5;
+                        break;
+                    }
+                    case SET_INCL:
+                        sp--;
+                        addElements(data, resolve(stack[sp - 1]), stack[sp], stack[sp]);
+                        ip++;
+                        break;
+                    case SET_RANGE:
+                        sp -= 2;
+                        addElements(data, resolve(stack[sp - 1]), stack[sp], stack[sp + 1]);
+                        ip++;
+                        break;
+                    case SET_COPY:
+                        System.arraycopy(data, resolve(stack[--sp]), data, resolve(code.getInt(ip + 1)), Parser.SET_SIZE);
+                        ip += 5;
+                        break;
+                    case SET_UNION:
+                    case SET_INTER:
+                    case SET_DIFF:
+                        sp--;
+                        operate(data, opCode, resolve(stack[sp - 1]), resolve(stack[sp]), resolve(code.getInt(ip + 1)));
+                        stack[sp - 1] = code.getInt(ip + 1);
+                        ip += 5;
+                        break;
+                    case SET_EQL:
+                    case SET_NEQL:
+                        sp--;
+                        stack[sp - 1] = equals(data, resolve(stack[sp - 1]), resolve(stack[sp])) == (opCode == Parser.OP_CODE.SET_EQL) ? 1 : 0;
+                        ip++;
+                        break;
+                    case SET_IN:
+                        sp--;
+                        stack[sp - 1] = contains(data, resolve(stack[sp]), stack[sp - 1]) ? 1 : 0;
+                        ip++;
+                        break;
+                    case SET_TEST:
+                        stack[sp - 1] = test(code, ip, stack[sp - 1]) ? 1 : 0;
+                        ip += 21;
+                        break;
+                    case CVR:
+                        if (verifier.getType(address) == Verifier.INT) {
+                            stack[sp - 1] = Float.floatToIntBits((float) stack[sp - 1]);
+                        }
+                        ip++;
+                        break;
+                    case XCHG: {
+                        int val = stack[sp - 1];
+                        stack[sp - 1] = stack[sp - 2];
+                        stack[sp - 2] = val;
+                        ip++;
+                        break;
+                    }
+                    case JMP: {
+                        int target = code.getInt(ip + 1);
+                        if (target <= address && instructions >= nextSafepoint) {
+                            safepoint(instructions);
+                        }
+                        ip = target;
+                        break;
+                    }
+                    case JFALSE:
+                    case JTRUE:
+                        if ((stack[--sp] != 0) == (opCode == Parser.OP_CODE.JTRUE)) {
+                            int target = code.getInt(ip + 1);
+                            if (target <= address && instructions >= nextSafepoint) {
+                                safepoint(instructions);
+                            }
+                            ip = target;
+                        } else {
+                            ip += 5;
+                        }
+                        break;
+                    case FOR_LOOP: {
+                        int limit = stack[--sp];
+                        int step = code.getInt(ip + 1);
+                        int counter = (int) DATA.get(data, resolve(code.getInt(ip + 5)));
+                        if (step > 0 ? counter > limit : counter < limit) {
+                            ip = code.getInt(ip + 9);
+                        } else {
+                            int slots = resolve(code.getInt(ip + 13));
+                            DATA.set(data, slots, limit);
+                            DATA.set(data, slots + 4, counter);
+                            ip += 17;
+                        }
+                        break;
+                    }
+                    case FOR_NEXT: {
+                        int step = code.getInt(ip + 1);
+                        int variable = resolve(code.getInt(ip + 5));
+                        int slots = resolve(code.getInt(ip + 17));
+                        int counter = (int) DATA.get(data, slots + 4);
+                        long left = (long) DATA.get(data, slots) - counter;
+                        counter += step;
+                        if (step > 0 ? left >= step : left <= step) {
+                            DATA.set(data, slots + 4, counter);
+                            if (code.getInt(ip + 13) == 1) {
+                                DATA.set(data, variable, counter);
+                            }
+                            int target = code.getInt(ip + 9);
+                            if (target <= address && instructions >= nextSafepoint) {
+                                safepoint(instructions);
+                            }
+                            ip = target;
+                        } else {
+                            DATA.set(data, variable, counter);
+                            ip += 21;
+                        }
+                        break;
+                    }
+                    case INCR: {
+                        int variable = resolve(code.getInt(ip + 1));
+                        DATA.set(data, variable, (int) DATA.get(data, variable) + code.getInt(ip + 5));
+                        ip += 9;
+                        break;
+                    }
+                    case CALL: {
+                        if (recursive && sp + procedureStack > stack.length) {
+                            stack = Arrays.copyOf(stack, Math.max(sp + procedureStack, stack.length * 2));
+                        }
+                        int target = code.getInt(ip + 1);
+                        pushReturn(ip + 5);
+                        if (target <= address && instructions >= nextSafepoint) {
+                            safepoint(instructions);
+                        }
+                        ip = target;
+                        break;
+                    }
+                    case ENTER:
+                        allocateFrame(code.getInt(ip + 1));
+                        data = dataArray;
+                        ip += 5;
+                        break;
+                    case RET:
+                        frameTop = fp;
+                        fp = returnStack[--rsp];
+                        ip = returnStack[--rsp];
+                        break;
+                    case TABLESWITCH: {
+                        int val = stack[--sp];
+                        int low = code.getInt(ip + 5);
+                        if (val < low || val > code.getInt(ip + 9)) {
+                            ip = code.getInt(ip + 1);
+                        } else {
+                            ip = code.getInt(ip + 13 + (val - low) * 4);
+                        }
+                        break;
+                    }
+                    case LOOKUPSWITCH: {
+                        int val = stack[--sp];
+                        int pairs = ip + 9;
+                        int target = code.getInt(ip + 1);
+
+                        // binary search the last key not above val
+                        int low = 0;
+                        int high = code.getInt(ip + 5) - 1;
+                        while (low <= high) {
+                            int mid = (low + high) >>> 1;
+                            if (code.getInt(pairs + mid * 8) <= val) {
+                                target = code.getInt(pairs + mid * 8 + 4);
+                                low = mid + 1;
+                            } else {
+                                high = mid - 1;
+                            }
+                        }
+                        ip = target;
+                        break;
+                    }
+                    case PRINT_REAL: {
+                        int val = stack[--sp];
+                        if (verifier.getType(address) == Verifier.BOOL) {
+                            out.print(val != 0);
+                        } else {
+                            out.print(Float.intBitsToFloat(val));
+                        }
+                        ip++;
+                        break;
+                    }
+                    case PRINT_INT: {
+                        int val = stack[--sp];
+                        byte type = verifier.getType(address);
+                        if (type == Verifier.REAL) {
+                            out.print(Float.intBitsToFloat(val));
+                        } else if (type == Verifier.BOOL) {
+                            out.print(val != 0);
+                        } else {
+                            out.print(val);
+                        }
+                        ip++;
+                        break;
+                    }
+                    case PRINT_BOOL:
+                        out.print(stack[--sp] == 1 ? "True" : "False");
+                        ip++;
+                        break;
+                    case PRINT_CHAR:
+                        out.print(Character.toChars(stack[--sp])[0]);
+                        ip++;
+                        break;
+                    case PRINT_NEWLINE:
+                        out.println();
+                        ip++;
+                        break;
+                    case HALT:
+                        ip++;
+                        halt();
+                        return;
+                    case EQL:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] == (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    case NEQL:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] != (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    case LSS:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] < (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    case LEQ:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] <= (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    case GTR:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] > (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    case GEQ:
+                        sp--;
+                        stack[sp - 1] = (float) stack[sp - 1] >= (float) stack[sp] ? 1 : 0;
+                        ip++;
+                        break;
+                    // SUB, FSUB take the second from the top, DIV and FDIV the top from the second, as the checked path
+                    case ADD:
+                        sp--;
+                        stack[sp - 1] = stack[sp] + stack[sp - 1];
+                        ip++;
+                        break;
+                    case SUB:
+                        sp--;
+                        stack[sp - 1] = stack[sp] - stack[sp - 1];
+                        ip++;
+                        break;
+                    case MULT:
+                        sp--;
+                        stack[sp - 1] = stack[sp] * stack[sp - 1];
+                        ip++;
+                        break;
+                    case DIV:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] / stack[sp];
+                        ip++;
+                        break;
+                    case FADD:
+                        sp--;
+                        stack[sp - 1] = Float.floatToIntBits(Float.intBitsToFloat(stack[sp]) + Float.intBitsToFloat(stack[sp - 1]));
+                        ip++;
+                        break;
+                    case FSUB:
+                        sp--;
+                        stack[sp - 1] = Float.floatToIntBits(Float.intBitsToFloat(stack[sp]) - Float.intBitsToFloat(stack[sp - 1]));
+                        ip++;
+                        break;
+                    case FMULT:
+                        sp--;
+                        stack[sp - 1] = Float.floatToIntBits(Float.intBitsToFloat(stack[sp]) * Float.intBitsToFloat(stack[sp - 1]));
+                        ip++;
+                        break;
+                    case FDIV:
+                        sp--;
+                        stack[sp - 1] = Float.floatToIntBits(Float.intBitsToFloat(stack[sp - 1]) / Float.intBitsToFloat(stack[sp]));
+                        ip++;
+                        break;
+                    default:
+                        throw new Error(String.format("Unhandled case: %s", opCode));
+                }
+            }
+        } finally {
+            this.ip = ip;
+            this.instructions = instructions;
+            verifiedStackSize = stack.length;
+        }
+    }
+
+    // At a due safepoint, of either path
+    private void safepoint(long instructions) {
+        nextSafepoint = instructions + safepointInterval;
+
+        long nanos = System.nanoTime() - runStart;
+        Metrics.recordProgress(instructions - recordedInstructions, nanos - recordedNanos);
+        recordedInstructions = instructions;
+        recordedNanos = nanos;
+
+        if (timeoutNanos != 0 && System.nanoTime() - deadline > 0) {
+            timedOut = true;
+            throw new Error(String.format("Program ran longer than its timeout of %.1f s", timeoutNanos / 1e9));
+        }
+        if (yielding) {
+            Thread.yield();
+        }
+    }
+
+    private void trace(Parser.OP_CODE opCode, int address) {
+        int entry = ((int) traceCursor++ & traceMask) * TRACE_FIELDS;
+        trace[entry] = address;
+        trace[entry + 1] = opCode.ordinal();
+
+        Object top = stack.top();
+        if (top instanceof Integer) {
+            trace[entry + 2] = TRACE_INT;
+            trace[entry + 3] = (Integer) top;
+        } else if (top instanceof Float) {
+            trace[entry + 2] = TRACE_REAL;
+            trace[entry + 3] = Float.floatToRawIntBits((Float) top);
+        } else if (top instanceof Boolean) {
+            trace[entry + 2] = TRACE_BOOL;
+            trace[entry + 3] = (Boolean) top ? 1 : 0;
+        } else {
+            trace[entry + 2] = TRACE_EMPTY;
+        }
+    }
+
+    // Trace of the verified path, which keeps the type of the top of the stack in the Verifier
+    private void trace(int address, int opCode, int type, int top) {
+        int entry = ((int) traceCursor++ & traceMask) * TRACE_FIELDS;
+        trace[entry] = address;
+        trace[entry + 1] = opCode;
+        trace[entry + 2] = type == Verifier.ANY ? TRACE_WORD : type;
+        trace[entry + 3] = top;
+    }
+
+    /*
+    Example:
+    Trace of the last 3 instructions before java.util.EmptyStackException, oldest first:
+      address  line  instruction               top of stack
+          233    16  PUSH fp+4                 int 3
+          238    16  ADD                       int 7
+      >   239    16  POP 12                    empty
+     */
+    private void printTrace(Throwable e) {
+        int count = (int) Math.min(traceCursor, traceEntries);
+
+        out.flush();
+        traceOut.println(String.format("Trace of the last %d instructions before %s, oldest first:", count, e));
+        traceOut.println(String.format("  %7s %5s  %-24s  %s", "address", "line", "instruction", "top of stack"));
+        for (long i = traceCursor - count; i < traceCursor; i++) {
+            int entry = ((int) i & traceMask) * TRACE_FIELDS;
+            int address = trace[entry];
+
+            String top;
+            switch (trace[entry + 2]) {
+                case TRACE_INT:
+                    top = "int " + trace[entry + 3];
+                    break;
+                case TRACE_REAL:
+                    top = "real " + Float.intBitsToFloat(trace[entry + 3]);
+                    break;
+                case TRACE_BOOL:
+                    top = trace[entry + 3] == 1 ? "bool true" : "bool false";
+                    break;
+                case TRACE_WORD:
+                    top = "word " + trace[entry + 3];
+                    break;
+                default:
+                    top = "empty";
+            }
+
+            traceOut.println(String.format("%s %7d %5d  %-24s  %s", i == traceCursor - 1 ? ">" : " ",
+                    address, pcxFile.getLine(address), pcxFile.disassemble(address), top));
+        }
+        traceOut.flush();
+    }
+
+    // Feed the profiler and take a due sample before the instruction at address runs, the start time if it is timed
+    private long profile(Parser.OP_CODE opCode, int address) {
+        if (sampler != null && sampler.isDue()) {
+            sampler.sample(address, returnStack, rsp);
+        }
+        if (profiler == null) {
+            return 0;
+        }
+
+        profiler.count(opCode, address);
+        return (instructions & (Profiler.TIMING_INTERVAL - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    private void pushf() {
+        float val = constants[getAddressValue()];
         stack.push(val);
     }
 
-    private static void get() {
+    private void get() {
         dp = (int)stack.pop();
         stack.push(getData(dp));
     }
 
-    private static Object put() {
+    private Object put() {
         Object val = stack.pop();
         dp = (int)stack.pop();
 
+        putValue(dp, val);
 
-        byte[] valBytes;
-        if (val instanceof Integer) {
-            valBytes = ByteBuffer.allocate(4).putInt((int) val).array();
-        } else {
-            valBytes = ByteBuffer.allocate(4).putFloat((float) val).array();
-        }
+        return val;
+    }
 
+    private void load8() {
+        stack.push(dataArray[resolve(getAddressValue())] & 0xff);
+    }
 
-        for (byte b: valBytes) {
-            dataArray[dp++] = b;
-        }
+    private void store8() {
+        Object val = stack.pop();
+        dataArray[resolve(getAddressValue())] = (byte) getBits(val);
+    }
 
-        return val;
+    private void get8() {
+        dp = (int)stack.pop();
+        stack.push(dataArray[resolve(dp)] & 0xff);
+    }
+
+    private void put8() {
+        Object val = stack.pop();
+        dp = (int)stack.pop();
+        dataArray[resolve(dp)] = (byte) getBits(val);
+    }
+
+    private void setClear() {
+        int set = getAddressValue();
+        Arrays.fill(dataArray, resolve(set), resolve(set) + Parser.SET_SIZE, (byte) 0);
+        stack.push(set);
+    }
+
+    private void setIncl() {
+        int x = (int) stack.pop();
+        addElements(dataArray, resolve((int) stack.top()), x, x);
     }
 
-    private static void jtrue() {
+    private void setRange() {
+        int high = (int) stack.pop();
+        int low = (int) stack.pop();
+        addElements(dataArray, resolve((int) stack.top()), low, high);
+    }
+
+    private void setCopy() {
+        int set = (int) stack.pop();
+        System.arraycopy(dataArray, resolve(set), dataArray, resolve(getAddressValue()), Parser.SET_SIZE);
+    }
+
+    private void setOperation(Parser.OP_CODE opCode) {
+        int b = (int) stack.pop();
+        int a = (int) stack.pop();
+        int result = getAddressValue();
+        operate(dataArray, opCode, resolve(a), resolve(b), resolve(result));
+        stack.push(result);
+    }
+
+    private void setEql(Parser.OP_CODE opCode) {
+        int b = (int) stack.pop();
+        int a = (int) stack.pop();
+        stack.push(equals(dataArray, resolve(a), resolve(b)) == (opCode == Parser.OP_CODE.SET_EQL));
+    }
+
+    private void setIn() {
+        int set = (int) stack.pop();
+        int x = (int) stack.pop();
+        stack.push(contains(dataArray, resolve(set), x));
+    }
+
+    private void setTest() {
+        int x = (int) stack.pop();
+        stack.push(test(code, ip - 1, x));
+        ip += 20;
+    }
+
+    private void jtrue() {
         if (stack.pop().toString().equals("true")){
-            ip = getAddressValue();
+            branch(getAddressValue());
         } else {
             getAddressValue();
         }
     }
 
-    private static void jfalse() {
+    private void jfalse() {
         if (stack.pop().toString().equals("false")){
-            ip = getAddressValue();
+            branch(getAddressValue());
         } else {
             getAddressValue();
         }
     }
 
-    private static void eql() {
+    private void eql() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -176,7 +967,7 @@ public class Simulator {
         stack.push(val1.equals(val2));
     }
 
-    private static void neql() {
+    private void neql() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -186,7 +977,7 @@ public class Simulator {
         stack.push(!val1.equals(val2));
     }
 
-    private static void less() {
+    private void less() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -196,7 +987,7 @@ public class Simulator {
         stack.push(val1 < val2);
     }
 
-    private static void greater() {
+    private void greater() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -206,7 +997,7 @@ public class Simulator {
         stack.push(val1 > val2);
     }
 
-    private static void lessEql() {
+    private void lessEql() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -216,7 +1007,7 @@ public class Simulator {
         stack.push(val1 <= val2);
     }
 
-    private static void greaterEql() {
+    private void greaterEql() {
         Integer intVal2 = (Integer) stack.pop();
         Float val2 = (float) intVal2;
 
@@ -226,175 +1017,437 @@ public class Simulator {
         stack.push(val1 >= val2);
     }
 
-    private static void printReal() {
+    private void printReal() {
 
         Object val = stack.pop();
 
         if (val instanceof Integer) {
             byte[] valArray = ByteBuffer.allocate(4).putInt((int) val).array();
 
-            System.out.print(ByteBuffer.wrap(valArray).getFloat());
+            out.print(ByteBuffer.wrap(valArray).getFloat());
         } else {
-            System.out.print(val);
+            out.print(val);
         }
 
     }
 
-    private static void printBool() {
+    private void printBool() {
         int val = (int) stack.pop();
         if (val == 1) {
-            System.out.print("True");
+            out.print("True");
         } else {
-            System.out.print("False");
+            out.print("False");
         }
     }
 
-    public static void printInt(){
-        System.out.print(stack.pop());
+    public void printInt(){
+        out.print(stack.pop());
 
     }
 
-    public static void printChar(){
-        System.out.print(Character.toChars((Integer) stack.pop())[0]);
+    public void printChar(){
+        out.print(Character.toChars((Integer) stack.pop())[0]);
     }
 
-    public static void add(){
+    public void add(){
         int val1 = (int) stack.pop();
         int val2 = (int) stack.pop();
         stack.push(val1 + val2);
     }
 
-    private static void fadd() {
+    private void fadd() {
         float val1 = (float) stack.pop();
         float val2 = (float) stack.pop();
         stack.push(val1 + val2);
     }
 
 
-    public static void sub(){
+    public void sub(){
         int val1 = (int) stack.pop();
         int val2 = (int) stack.pop();
         stack.push(val1 - val2);
     }
 
-    public static void fsub(){
+    public void fsub(){
         float val1 = (float) stack.pop();
         float val2 = (float) stack.pop();
         stack.push(val1 - val2);
     }
 
-    public static void mult(){
+    public void mult(){
         int val1 = (int) stack.pop();
         int val2 = (int) stack.pop();
         stack.push(val1 * val2);
     }
 
-    public static void fmult(){
+    public void fmult(){
         float val1 = (float) stack.pop();
         float val2 = (float) stack.pop();
         stack.push(val1 * val2);
     }
 
-    public static void fdiv(){
+    public void fdiv(){
         float val2 = (float) stack.pop();
         float val1 = (float) stack.pop();
 
         stack.push(val1 / val2);
     }
 
-    public static void div(){
+    public void div(){
         int val2 = (int) stack.pop();
         int val1 = (int) stack.pop();
         stack.push(val1 / val2);
     }
 
-    public static void cvr(){
+    public void cvr(){
         float val = Float.valueOf(String.valueOf(stack.pop()));
         stack.push(val);
     }
 
-    public static void xchg(){
+    public void xchg(){
         Object val1 = stack.pop();
         Object val2 = stack.pop();
         stack.push(val1);
         stack.push(val2);
     }
 
-    public static void pushi(){
+    public void pushi(){
         int val = getAddressValue();
         stack.push(val);
     }
 
-    public static void push(){
+    public void push(){
         dp = getAddressValue();
         stack.push(getData(dp));
     }
 
-    public static Object pop(){
+    public Object pop(){
         Object val = stack.pop();
         dp = getAddressValue();
 
+        putValue(dp, val);
 
-        byte[] valBytes;
-        if (val instanceof Integer) {
-            valBytes = ByteBuffer.allocate(4).putInt((int) val).array();
+        return val;
+    }
+
+    public void jmp(){
+        branch(getAddressValue());
+    }
+
+    // Jump to address, stopping at the safepoint first when it is due and the jump goes back
+    private void branch(int address) {
+        if (instructions >= nextSafepoint && address <= ip) {
+            safepoint(instructions);
+        }
+        ip = address;
+    }
+
+    // FOR_LOOP <step> <address> <exit> <slots>, keeps the limit and the counter in the slots for the body
+    public void forLoop() {
+        int limit = (int) stack.pop();
+
+        int step = getAddressValue();
+        int address = getAddressValue();
+        int exit = getAddressValue();
+        int slots = getAddressValue();
+
+        int counter = getData(address);
+        if (step > 0 ? counter > limit : counter < limit) {
+            ip = exit;
         } else {
-            valBytes = ByteBuffer.allocate(4).putFloat((float) val).array();
+            putData(slots, limit);
+            putData(slots + 4, counter);
         }
+    }
 
+    // FOR_NEXT <step> <address> <body> <sync> <slots>
+    public void forNext() {
+        int step = getAddressValue();
+        int address = getAddressValue();
+        int body = getAddressValue();
+        int sync = getAddressValue();
+        int slots = getAddressValue();
+
+        // the distance to the limit is compared before stepping, a limit near MaxInt must not overflow the counter
+        int counter = getData(slots + 4);
+        long left = (long) getData(slots) - counter;
+        counter += step;
+
+        if (step > 0 ? left >= step : left <= step) {
+            putData(slots + 4, counter);
+            if (sync == 1) {
+                putData(address, counter);
+            }
+            branch(body);
+        } else {
+            // loop finished, leave the final value in the variable, limit + 1 as the unrolled loop does
+            putData(address, counter);
+        }
+    }
+
+    // INCR <address> <value>, adds value to the integer at address
+    public void incr() {
+        int address = getAddressValue();
+        int val = getAddressValue();
+
+        putData(address, getData(address) + val);
+    }
+
+    // CALL <address>
+    public void call() {
+        int address = getAddressValue();
 
-        for (byte b: valBytes) {
-            dataArray[dp++] = b;
+        pushReturn(ip);
+        branch(address);
+    }
+
+    // ENTER <frame size>, allocates the zeroed frame of the called procedure
+    public void enter() {
+        allocateFrame(getAddressValue());
+    }
+
+    private void allocateFrame(int frameSize) {
+        pushReturn(fp);
+        fp = frameTop;
+        frameTop += frameSize;
+        frameTopHighWaterMark = Math.max(frameTopHighWaterMark, frameTop);
+
+        if (frameTop > dataArray.length) {
+            dataArray = Arrays.copyOf(dataArray, Math.max(frameTop, dataArray.length * 2));
         }
+        Arrays.fill(dataArray, fp, frameTop, (byte) 0);
+    }
 
+    private void pushReturn(int val) {
+        if (rsp == returnStack.length) {
+            if (returnStack.length == RETURN_STACK_SIZE) {
+                throw new Error(String.format("Stack overflow: more than %d nested calls", RETURN_STACK_SIZE / 2));
+            }
+            returnStack = Arrays.copyOf(returnStack, returnStack.length * 2);
+        }
+        returnStack[rsp++] = val;
+    }
 
-        return val;
+    // RET, frees the frame and returns to the caller
+    public void ret() {
+        frameTop = fp;
+        fp = returnStack[--rsp];
+        ip = returnStack[--rsp];
     }
 
-    public static void jmp(){
-        ip = getAddressValue();
+    // TABLESWITCH <default> <low> <high> <address>*(high-low+1)
+    public void tableSwitch() {
+        int val = (int) stack.pop();
+
+        int defaultAddress = getAddressValue();
+        int low = getAddressValue();
+        int high = getAddressValue();
+
+        if (val < low || val > high) {
+            ip = defaultAddress;
+        } else {
+            ip += (val - low) * 4;
+            ip = getAddressValue();
+        }
     }
 
+    // LOOKUPSWITCH <default> <count> [<key> <address>]*count, keys are sorted and each one starts
+    // an interval up to the next, a value below the first key goes to default
+    public void lookupSwitch() {
+        int val = (int) stack.pop();
+
+        int target = getAddressValue();
+        int count = getAddressValue();
+        int pairs = ip;
+
+        // binary search the last key not above val
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            ip = pairs + mid * 8;
+
+            if (getAddressValue() <= val) {
+                target = getAddressValue();
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
 
-    public static void halt() {
-        System.out.print("\nProgram finished with exit code 0\n");
-        System.exit(0);
+        ip = target;
     }
 
-    public static int getAddressValue() {
-        byte[] valArray = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            valArray[i] = instructions[ip++];
+
+    public void halt() {
+        out.print("\nProgram finished with exit code 0\n");
+        out.flush();
+    }
+
+    // Yield the thread every safepointInterval instructions
+    public void setSafepointInterval(long safepointInterval) {
+        this.safepointInterval = safepointInterval;
+        nextSafepoint = instructions + safepointInterval;
+        yielding = true;
+    }
+
+    // true once the program failed for running past its deadline
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    // Fail the program at the first safepoint timeoutNanos after now
+    public void setTimeout(long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+        deadline = System.nanoTime() + timeoutNanos;
+        setSafepoints();
+    }
+
+    // Add the instructions and time run to the Metrics at the safepoints while the program runs, not only when it ends
+    public void setLiveMetrics() {
+        setSafepoints();
+    }
+
+    // Safepoints at least every default safepoint interval
+    private void setSafepoints() {
+        if (safepointInterval > Scheduler.DEFAULT_SAFEPOINT_INTERVAL) {
+            safepointInterval = Scheduler.DEFAULT_SAFEPOINT_INTERVAL;
+            nextSafepoint = instructions + safepointInterval;
+        }
+    }
+
+    // Keep the last entries instructions in a ring rounded up to a power of two, and print them to traceOut if the program fails
+    public void setTrace(int entries, PrintStream traceOut) {
+        int size = Integer.highestOneBit(Math.max(entries - 1, 1)) << 1;
+
+        trace = new int[size * TRACE_FIELDS];
+        traceMask = size - 1;
+        traceEntries = entries;
+        traceCursor = 0;
+        this.traceOut = traceOut;
+    }
+
+    // Run on the checked path without verifying the program first
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public void setSampler(SamplingProfiler sampler) {
+        this.sampler = sampler;
+    }
+
+    // Bytes of output written so far
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    // Instructions executed so far
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public int getAddressValue() {
+        int val = code.getInt(ip);
+        ip += 4;
+
+        return val;
+    }
+
+    // Data address of an operand, frame addresses are relative to the running call
+    private int resolve(int address) {
+        if ((address & Parser.FRAME_ADDRESS) != 0) {
+            return fp + (address ^ Parser.FRAME_ADDRESS);
         }
 
-        return ByteBuffer.wrap(valArray).getInt();
+        return address;
+    }
+
+    public int getData(int dp) {
+        return ByteBuffer.wrap(dataArray, resolve(dp), 4).getInt();
+    }
+
+
+    public void putData(int dp, int val) {
+        ByteBuffer.wrap(dataArray, resolve(dp), 4).putInt(val);
+    }
+
+    // Store an int or the bits of a float
+    private void putValue(int dp, Object val) {
+        putData(dp, getBits(val));
     }
 
-    public static float getFloatValue() {
-        byte[] valArray = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            valArray[i] = instructions[ip++];
+    // Add low..high to the set at resolved address set, see Parser.SET_SIZE
+    private static void addElements(byte[] data, int set, int low, int high) {
+        if (low > high) {
+            return;
+        }
+        if (low < 0 || high >= Parser.SET_ELEMENTS) {
+            throw new Error(String.format("Set element %d is not within 0..%d", low < 0 ? low : high, Parser.SET_ELEMENTS - 1));
         }
 
-        return ByteBuffer.wrap(valArray).getFloat();
+        for (int x = low; x <= high; ) {
+            int word = set + (x >>> 6) * 8;
+            int last = Math.min(high, x | 63);
+            long bits = (-1L << x) & (-1L >>> (63 - (last & 63)));
+            WORDS.set(data, word, (long) WORDS.get(data, word) | bits);
+            x = last + 1;
+        }
     }
 
-    public static int getData(int dp) {
-        byte[] valArray = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            valArray[i] = dataArray[dp++];
+    // result = a + b, a * b or a - b at resolved addresses, a word at a time so result may be a or b
+    private static void operate(byte[] data, Parser.OP_CODE opCode, int a, int b, int result) {
+        for (int i = 0; i < Parser.SET_SIZE; i += 8) {
+            long wordA = (long) WORDS.get(data, a + i);
+            long wordB = (long) WORDS.get(data, b + i);
+            long word;
+            switch (opCode) {
+                case SET_UNION:
+                    word = wordA | wordB;
+                    break;
+                case SET_INTER:
+                    word = wordA & wordB;
+                    break;
+                default:
+                    word = wordA & ~wordB;
+            }
+            WORDS.set(data, result + i, word);
         }
+    }
 
-        return ByteBuffer.wrap(valArray).getInt();
+    private static boolean equals(byte[] data, int a, int b) {
+        for (int i = 0; i < Parser.SET_SIZE; i += 8) {
+            if ((long) WORDS.get(data, a + i) != (long) WORDS.get(data, b + i)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
+    private static boolean contains(byte[] data, int set, int x) {
+        return x >= 0 && x < Parser.SET_ELEMENTS && ((long) WORDS.get(data, set + (x >>> 6) * 8) & 1L << x) != 0;
+    }
 
-    public static Parser.OP_CODE getOpCode(){
-        return Parser.OP_CODE.values()[instructions[ip++]];
+    // x in the constant set of the SET_TEST at address
+    private static boolean test(ByteBuffer code, int address, int x) {
+        int offset = x - code.getInt(address + 1);
+        return offset >= 0 && offset < Parser.SET_TEST_ELEMENTS && (code.getInt(address + 5 + (offset >>> 5) * 4) & 1 << offset) != 0;
     }
 
-    public static void setInstructions(Byte[] instructions) {
-        Simulator.instructions = instructions;
+    // An int or the bits of a float, of which STORE8 and PUT8 store the low byte
+    private static int getBits(Object val) {
+        if (val instanceof Integer) {
+            return (int) val;
+        }
+
+        return Float.floatToIntBits((float) val);
     }
 
+    public Parser.OP_CODE getOpCode(){
+        return OP_CODES[code.get(ip++)];
+    }
 }
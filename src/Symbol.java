@@ -7,97 +7,147 @@ Example:
         name = "x"
         tokenType = "TK_A_VAR"
         dataType = TYPE.I
-        value = 2
         address = 0
- */
 
-public class Symbol {
-    private String name = "";
-    private String tokenType = "";
-    private Parser.TYPE dataType = null;
-    private int address;
-    private int returnAddress; // return address for procedure
+    var a : array[1..10] of integer;
 
-    private Object low; // low value range for array
-    private Object high; // high value range for array
+    For array a:
+        tokenType = "TK_AN_ARRAY"
+        dataType = TYPE.A, indexType = TYPE.I, valueType = TYPE.I
+        low = 1, high = 10, elementSize = 4
+        address of a[i] = origin + i * elementSize, origin = address - low * elementSize
 
-    private Parser.TYPE indexType; // index type for array
-    private Parser.TYPE valueType; // value type for array
+    Chars and booleans take 1 byte, array[...] of char has elementSize = 1, integers and reals 4, each
+    aligned to its size, so the elements are packed without padding between them.
 
-    Symbol next; // pointer to the next entry in the symbolTable bucket list
+    var s : set of 'a'..'z';
 
-    public Symbol(String name, String tokenType, Parser.TYPE dataType, int address){
-        this.name = name;
-        this.tokenType = tokenType;
-        this.dataType = dataType;
-        this.address = address;
+    For set s:
+        tokenType = "TK_A_VAR"
+        dataType = TYPE.E, elementType = TYPE.C
+        low = 97, high = 122, the set has the bits of all of 0..255 like every set, see Parser.SET_SIZE
+
+    function f(n: integer): real;
+
+    For function f:
+        tokenType = "TK_A_PROC"
+        dataType = TYPE.R, the result type, TYPE.P for a procedure
+        address = entry of the code
+
+    Parameters and locals of a procedure have their address tagged with Parser.FRAME_ADDRESS.
+
+Symbols are immutable, the kind and the types are packed into one short:
+    typeKind = kind << 8 | type << 4 | indexType
+where type is the dataType of a variable and the valueType of an array, and indexType the
+elementType of a set.
+ */
+
+public final class Symbol {
+    private static final Parser.TYPE[] TYPES = Parser.TYPE.values(); // values() copies the array on every call
+    // kinds, by the tokenType of the symbol
+    private static final String[] KIND_TOKEN_TYPES = {"TK_A_VAR", "TK_AN_ARRAY", "TK_A_PROC", "TK_A_LABEL"};
+    private static final int VAR_KIND = 0;
+    private static final int ARRAY_KIND = 1;
+
+    private final String name;
+    private final int nameId; // NameTable id of name
+    private final short typeKind;
+    private final int address;
+
+    private final int low; // low value range for array or set, chars as their code
+    private final int high; // high value range for array or set
+    private final int elementSize; // bytes per array element, also between consecutive elements
+
+    public Symbol(Token nameToken, String tokenType, Parser.TYPE dataType, int address){
+        this(nameToken, getKind(tokenType), dataType, Parser.TYPE.I, address, 0, 0, 0);
     }
 
-    public String getName() {
-        return name;
+    // array symbol
+    public Symbol(Token nameToken, Parser.TYPE indexType, Parser.TYPE valueType, int address, int low, int high, int elementSize){
+        this(nameToken, ARRAY_KIND, valueType, indexType, address, low, high, elementSize);
     }
 
-    public void setName(String name) {
-        this.name = name;
+    // set variable of elements low..high
+    public Symbol(Token nameToken, Parser.TYPE elementType, int address, int low, int high){
+        this(nameToken, VAR_KIND, Parser.TYPE.E, elementType, address, low, high, 0);
     }
 
-    public Parser.TYPE getDataType() {
-        return dataType;
+    // named by the identifier token declaring it, with the name id of its scan
+    private Symbol(Token nameToken, int kind, Parser.TYPE type, Parser.TYPE indexType, int address, int low, int high, int elementSize){
+        this.name = nameToken.getTokenValue();
+        this.nameId = nameToken.getNameId();
+        this.typeKind = (short) (kind << 8 | type.ordinal() << 4 | indexType.ordinal());
+        this.address = address;
+
+        this.low = low;
+        this.high = high;
+        this.elementSize = elementSize;
     }
 
-    public int getAddress() {
-        return address;
+    private static int getKind(String tokenType) {
+        for (int kind = 0; kind < KIND_TOKEN_TYPES.length; kind++) {
+            if (KIND_TOKEN_TYPES[kind].equals(tokenType)) {
+                return kind;
+            }
+        }
+
+        throw new Error(String.format("Unknown symbol token type (%s)", tokenType));
     }
 
-    public void setAddress(int address) {
-        this.address = address;
+    private int getKind() {
+        return (typeKind >> 8) & 0b11;
     }
 
-    public String getTokenType() {
-        return tokenType;
+    public String getName() {
+        return name;
     }
 
-    public void setTokenType(String tokenType) {
-        this.tokenType = tokenType;
+    public int getNameId() {
+        return nameId;
     }
 
-    public int getReturnAddress() {
-        return returnAddress;
+    public Parser.TYPE getDataType() {
+        if (getKind() == ARRAY_KIND) {
+            return Parser.TYPE.A;
+        }
+
+        return TYPES[(typeKind >> 4) & 0b1111];
     }
 
-    public void setReturnAddress(int returnAddress) {
-        this.returnAddress = returnAddress;
+    public int getAddress() {
+        return address;
     }
 
-    public Object getLow() {
-        return low;
+    public String getTokenType() {
+        return KIND_TOKEN_TYPES[getKind()];
     }
 
-    public void setLow(Object low) {
-        this.low = low;
+    public int getLow() {
+        return low;
     }
 
-    public Object getHigh() {
+    public int getHigh() {
         return high;
     }
 
-    public void setHigh(Object high) {
-        this.high = high;
+    public int getElementSize() {
+        return elementSize;
     }
 
-    public Parser.TYPE getIndexType() {
-        return indexType;
+    // address of the element at index 0, even when it is outside low..high
+    public int getOrigin() {
+        return address - low * elementSize;
     }
 
-    public void setIndexType(Parser.TYPE indexType) {
-        this.indexType = indexType;
+    public Parser.TYPE getIndexType() {
+        return TYPES[typeKind & 0b1111];
     }
 
     public Parser.TYPE getValueType() {
-        return valueType;
+        return TYPES[(typeKind >> 4) & 0b1111];
     }
 
-    public void setValueType(Parser.TYPE valueType) {
-        this.valueType = valueType;
+    public Parser.TYPE getElementType() {
+        return getIndexType();
     }
 }
@@ -1,62 +1,205 @@
+import java.util.Arrays;
+
+/*
+Symbols are stored once in the flat symbols array, everything else refers to them by their
+index in it. Each scope is an open addressing hash table of symbol indexes with linear probing,
+resized to keep it at most half full. lookup searches the scopes from the innermost out.
+
+Tokens carry the NameTable id of their identifier, lookup(Token) indexes the
+innermost visible symbol for that id directly without hashing the name.
+ */
 public final class SymbolTable {
 
     static class Scope {
-        Symbol[] symbolTable = new Symbol[HASH_TABLE_SIZE]; // symbol table for the current scope
+        int[] symbolTable = new int[INITIAL_TABLE_SIZE]; // symbol index + 1 for the current scope, 0 is empty
+        int size = 0; // number of symbols in symbolTable
         Scope next = null; // pointer to the next outer scope
     }
 
-    private static final int HASH_TABLE_SIZE = 211;
-    private static Scope headerScope = new Scope();
+    private static final int INITIAL_TABLE_SIZE = 16; // power of two
+    private static final float LOAD_FACTOR = 0.5f;
+    private Scope headerScope = new Scope();
+
+    private Symbol[] symbols = new Symbol[INITIAL_TABLE_SIZE];
+    private int[] shadowedIndexes = new int[INITIAL_TABLE_SIZE]; // index + 1 of the symbol with the same name in an outer scope
+    private int symbolCount = 0;
 
-    public static void insert(Symbol symbol) {
-        int hashValue = hash(symbol.getName());
+    private int[] nameIdIndexes = new int[INITIAL_TABLE_SIZE]; // index + 1 of the innermost visible symbol by name id
 
-        Symbol bucketCursor = headerScope.symbolTable[hashValue];
-        if (bucketCursor == null) {
-            // Empty bucket
-            headerScope.symbolTable[hashValue] = symbol;
-        } else {
-            // Existing Symbols in bucket
-            while (bucketCursor.next != null) {
-                bucketCursor = bucketCursor.next;
+    // probe statistics, lookup(Token) does not probe
+    private long insertCount = 0;
+    private long insertProbeCount = 0; // table slots visited by insert
+    private long lookupCount = 0;
+    private long probeCount = 0; // table slots visited by lookup and lookupCurrentScope
+    private int maxProbeLength = 0;
+
+    public void insert(Symbol symbol) {
+        if (symbol.getNameId() < 0) {
+            throw new Error(String.format("Symbol %s has no name id, its token was not scanned", symbol.getName()));
+        }
+
+        if (headerScope.size + 1 > headerScope.symbolTable.length * LOAD_FACTOR) {
+            resize(headerScope);
+        }
+
+        if (symbolCount == symbols.length) {
+            symbols = Arrays.copyOf(symbols, symbolCount * 2);
+            shadowedIndexes = Arrays.copyOf(shadowedIndexes, symbolCount * 2);
+        }
+        int index = symbolCount++;
+        symbols[index] = symbol;
+
+        if (symbol.getNameId() >= nameIdIndexes.length) {
+            nameIdIndexes = Arrays.copyOf(nameIdIndexes, Math.max(symbol.getNameId() + 1, nameIdIndexes.length * 2));
+        }
+
+        int[] symbolTable = headerScope.symbolTable;
+        int mask = symbolTable.length - 1;
+        int slot = hash(symbol.getName()) & mask;
+        int probeLength = 1;
+
+        while (symbolTable[slot] != 0) {
+            if (symbols[symbolTable[slot] - 1].getName().equals(symbol.getName())) {
+                // Redeclared in the same scope
+                shadowedIndexes[index] = shadowedIndexes[symbolTable[slot] - 1];
+                nameIdIndexes[symbol.getNameId()] = index + 1;
+                symbolTable[slot] = index + 1;
+                recordInsert(probeLength);
+                return;
             }
 
-            // Append symbol at the end of the bucket
-            bucketCursor.next = symbol;
+            slot = (slot + 1) & mask;
+            probeLength++;
         }
+
+        symbolTable[slot] = index + 1;
+        headerScope.size++;
+        recordInsert(probeLength);
+
+        shadowedIndexes[index] = nameIdIndexes[symbol.getNameId()];
+        nameIdIndexes[symbol.getNameId()] = index + 1;
     }
 
-    public static Symbol lookup(String symbolName) {
+    // Symbol for an identifier token, null for other tokens
+    public Symbol lookup(Token token) {
+        int nameId = token.getNameId();
+        if (nameId < 0 || nameId >= nameIdIndexes.length || nameIdIndexes[nameId] == 0) {
+            return null;
+        }
+
+        return symbols[nameIdIndexes[nameId] - 1];
+    }
+
+    // Symbol for an identifier token declared in the current scope, null if it is not or only in an outer scope
+    public Symbol lookupCurrentScope(Token token) {
+        Symbol symbol = lookup(token);
+        if (symbol == null) {
+            return null;
+        }
+
+        int[] symbolTable = headerScope.symbolTable;
+        int mask = symbolTable.length - 1;
+        int slot = hash(symbol.getName()) & mask;
+        int probeLength = 1;
+
+        lookupCount++;
+
+        while (symbolTable[slot] != 0) {
+            if (symbols[symbolTable[slot] - 1] == symbol) {
+                recordProbe(probeLength);
+                return symbol;
+            }
+            slot = (slot + 1) & mask;
+            probeLength++;
+        }
+
+        recordProbe(probeLength);
+        return null;
+    }
+
+    public Symbol lookup(String symbolName) {
         int hashValue = hash(symbolName);
-        Symbol bucketCursor = headerScope.symbolTable[hashValue];
         Scope scopeCursor = headerScope;
+        int probeLength = 0;
+
+        lookupCount++;
 
         while (scopeCursor != null) {
-            while (bucketCursor != null) {
-                if (bucketCursor.getName().equals(symbolName)) {
-                    return bucketCursor;
+            int[] symbolTable = scopeCursor.symbolTable;
+            int mask = symbolTable.length - 1;
+            int slot = hashValue & mask;
+
+            while (symbolTable[slot] != 0) {
+                probeLength++;
+                Symbol symbol = symbols[symbolTable[slot] - 1];
+                if (symbol.getName().equals(symbolName)) {
+                    recordProbe(probeLength);
+                    return symbol;
                 }
-                bucketCursor = bucketCursor.next;
+                slot = (slot + 1) & mask;
             }
+
+            // Empty slot ends the probe in this scope
+            probeLength++;
             scopeCursor = scopeCursor.next;
         }
 
         // Symbol does not exist
+        recordProbe(probeLength);
         return null;
     }
 
-    public static int hash(String symbolName) {
-        int h = 0;
+    /*
+    FNV-1a over the characters followed by the murmur3 finalizer,
+    so that the low bits used to pick the slot depend on every character
+     */
+    public int hash(String symbolName) {
+        int h = 0x811c9dc5;
         for (int i = 0; i < symbolName.length(); i++) {
-            h = h + h + symbolName.charAt(i);
+            h ^= symbolName.charAt(i);
+            h *= 0x01000193;
         }
 
-        h = h % HASH_TABLE_SIZE;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
 
         return h;
     }
 
-    public static void openScope() {
+    // Double the table and reinsert every symbol
+    private void resize(Scope scope) {
+        int[] oldSymbolTable = scope.symbolTable;
+        int[] symbolTable = new int[oldSymbolTable.length * 2];
+        int mask = symbolTable.length - 1;
+
+        for (int entry : oldSymbolTable) {
+            if (entry != 0) {
+                int slot = hash(symbols[entry - 1].getName()) & mask;
+                while (symbolTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                symbolTable[slot] = entry;
+            }
+        }
+
+        scope.symbolTable = symbolTable;
+    }
+
+    private void recordInsert(int probeLength) {
+        insertCount++;
+        insertProbeCount += probeLength;
+        maxProbeLength = Math.max(maxProbeLength, probeLength);
+    }
+
+    private void recordProbe(int probeLength) {
+        probeCount += probeLength;
+        maxProbeLength = Math.max(maxProbeLength, probeLength);
+    }
+
+    public void openScope() {
         Scope innerScope = new Scope();
 
         // Add new scope to the headerScope
@@ -66,11 +209,73 @@ public final class SymbolTable {
         headerScope = innerScope;
     }
 
-    public static void closeScope() {
+    public void closeScope() {
+        // Uncover the symbols this scope shadowed
+        for (int entry : headerScope.symbolTable) {
+            if (entry != 0) {
+                nameIdIndexes[symbols[entry - 1].getNameId()] = shadowedIndexes[entry - 1];
+            }
+        }
+
         headerScope = headerScope.next;
     }
 
-    public static Scope getHeaderScope() {
+    public Scope getHeaderScope() {
         return headerScope;
     }
+
+    public long getInsertCount() {
+        return insertCount;
+    }
+
+    public long getInsertProbeCount() {
+        return insertProbeCount;
+    }
+
+    public long getLookupCount() {
+        return lookupCount;
+    }
+
+    public long getProbeCount() {
+        return probeCount;
+    }
+
+    public int getMaxProbeLength() {
+        return maxProbeLength;
+    }
+
+    // Symbols inserted in all scopes, also the ones closed since
+    public int getSymbolCount() {
+        return symbolCount;
+    }
+
+    // Symbols in the current scope
+    public int getSize() {
+        return headerScope.size;
+    }
+
+    // Fraction of the slots in the current scope that hold a symbol
+    public float getOccupancy() {
+        return (float) headerScope.size / headerScope.symbolTable.length;
+    }
+
+    /*
+    Example:
+    scopes: 1, symbols: 12, occupancy: 0.38, inserts: 40, average insert probe length: 1.20,
+    lookups: 35, average lookup probe length: 1.09, max probe length: 3
+     */
+    public String getStatistics() {
+        int scopes = 0;
+        int symbols = 0;
+        for (Scope scopeCursor = headerScope; scopeCursor != null; scopeCursor = scopeCursor.next) {
+            scopes++;
+            symbols += scopeCursor.size;
+        }
+
+        return String.format("scopes: %d, symbols: %d, occupancy: %.2f, inserts: %d, average insert probe length: %.2f, " +
+                        "lookups: %d, average lookup probe length: %.2f, max probe length: %d",
+                scopes, symbols, getOccupancy(),
+                insertCount, insertCount == 0 ? 0 : (double) insertProbeCount / insertCount,
+                lookupCount, lookupCount == 0 ? 0 : (double) probeCount / lookupCount, maxProbeLength);
+    }
 }
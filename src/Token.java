@@ -13,6 +13,8 @@ public final class Token {
     private int lineCol = 0;
     private int lineRow = 0;
 
+    private int nameId = -1; // NameTable id of an identifier, -1 for other tokens
+
     public Token(String tokenType, String tokenValue, int lineCol, int lineRow){
         this.tokenType = tokenType;
         this.tokenValue = tokenValue;
@@ -45,4 +47,12 @@ public final class Token {
     public int getLineRow() {
         return lineRow;
     }
+
+    public int getNameId() {
+        return nameId;
+    }
+
+    public void setNameId(int nameId) {
+        this.nameId = nameId;
+    }
 }
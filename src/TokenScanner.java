@@ -1,22 +1,25 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Scanner;
+import java.util.function.LongSupplier;
 
 public final class TokenScanner {
-    private static String tokenName = "";
-    private static int lineRow = 0;
-    private static int lineCol = 0;
-    private static boolean readingString = false;
-    private static boolean readingNumber = false;
-    private static boolean isFloat = false;
-    private static boolean sciNotation = false;
-    private static boolean readingColon = false;
-    private static boolean readingBool = false;
-    private static boolean readingDot = false;
-
-    private static ArrayList<Token> tokenArrayList = new ArrayList<>();
+    private String tokenName = "";
+    private int lineRow = 0;
+    private int lineCol = 0;
+    private boolean readingString = false;
+    private boolean readingNumber = false;
+    private boolean isFloat = false;
+    private boolean sciNotation = false;
+    private boolean readingColon = false;
+    private boolean readingBool = false;
+    private boolean readingDot = false;
+
+    private ArrayList<Token> tokenArrayList = new ArrayList<>();
+    private final NameTable nameTable = new NameTable(); // ids of the identifiers of this scan
 
     enum TYPE {
         LETTER, DIGIT, SPACE, OPERATOR, QUOTE
@@ -93,9 +96,24 @@ public final class TokenScanner {
         CHAR_TYPE.put(String.valueOf(Character.toChars(39)[0]), TYPE.QUOTE);
     }
 
-    public static ArrayList<Token> scan(File file) throws FileNotFoundException {
+    public ArrayList<Token> scan(File file) throws FileNotFoundException {
+        return scan(new Scanner(file), file::length);
+    }
+
+    // source text given inline instead of in a file, its size in the scan event is that of its UTF-8 bytes
+    public ArrayList<Token> scan(String source) {
+        return scan(new Scanner(source), () -> source.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    // sourceBytes is only called for a scan event that is recorded
+    private ArrayList<Token> scan(Scanner sc, LongSupplier sourceBytes) {
+        PipelineEvents.ScanEvent event = PipelineEvents.isRecording() ? new PipelineEvents.ScanEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+
         // Delimiter to scan each char
-        Scanner sc = new Scanner(file).useDelimiter("");
+        sc.useDelimiter("");
 
         while (sc.hasNext()) {
             char element = sc.next().toLowerCase().charAt(0);
@@ -106,10 +124,16 @@ public final class TokenScanner {
         tokenName = "EOF";
         generateToken("TK_EOF");
 
+        if (event != null && event.shouldCommit()) {
+            event.sourceBytes = sourceBytes.getAsLong();
+            event.tokens = tokenArrayList.size();
+            event.commit();
+        }
+
         return tokenArrayList;
     }
 
-    public static void checkCharacter(char element){
+    public void checkCharacter(char element){
         switch (CHAR_TYPE.get(String.valueOf(element))){
 
             case LETTER:
@@ -135,6 +159,7 @@ public final class TokenScanner {
                 if (readingString){
                     // Append to a string
                     tokenName += element;
+                    break;
                 } else if (readingColon) {
 //                    System.out.println(OPERATORS_TOKEN.get(tokenName));
                     generateToken(OPERATORS_TOKEN.get(tokenName));
@@ -150,19 +175,20 @@ public final class TokenScanner {
                 } else if (!readingNumber) {
                     // End of word
                     tokenName = endOfWord();
-
-                    if (element == Character.toChars(10)[0]){
-                        // Check for newline on Unix OS
-                        lineRow++;
-                        lineCol = 0;
-                    } else if (element == Character.toChars(9)[0]){
-                        lineCol+=4;
-                    } else if (element == Character.toChars(32)[0]){
-                        lineCol++;
-                    }
                 } else {
                     handleNumber();
                 }
+
+                // also after a number, a colon or < and >, which end at the space
+                if (element == Character.toChars(10)[0]){
+                    // Check for newline on Unix OS
+                    lineRow++;
+                    lineCol = 0;
+                } else if (element == Character.toChars(9)[0]){
+                    lineCol+=4;
+                } else if (element == Character.toChars(32)[0]){
+                    lineCol++;
+                }
                 break;
             case OPERATOR:
                 if (readingDot && element == '.') {
@@ -170,9 +196,10 @@ public final class TokenScanner {
                         tokenName = "";
                         generateToken("TK_RANGE");
                     } else {
-                        generateToken(tokenName.substring(0, tokenName.length()-2));
-                        generateToken("TK_DOT");
-                        tokenName = "";
+                        // a word before the range, as in [low..high]
+                        tokenName = tokenName.substring(0, tokenName.length()-1);
+                        endOfWord();
+                        generateToken("TK_RANGE");
                     }
                     readingDot = false;
 
@@ -280,7 +307,7 @@ public final class TokenScanner {
         }
     }
 
-    public static String endOfWord(){
+    public String endOfWord(){
         if(KEYWORDS_TOKEN.containsKey(tokenName)){
 //            System.out.println(KEYWORDS_TOKEN.get(tokenName));
             generateToken(KEYWORDS_TOKEN.get(tokenName));
@@ -302,7 +329,7 @@ public final class TokenScanner {
         return tokenName;
     }
 
-    public static void clearStatuses() {
+    public void clearStatuses() {
         readingString = false;
         readingNumber = false;
         isFloat = false;
@@ -311,8 +338,11 @@ public final class TokenScanner {
         readingBool = false;
     }
 
-    public static void generateToken(String tokenType) {
+    public void generateToken(String tokenType) {
         Token t = new Token(tokenType, tokenName, lineCol, lineRow);
+        if (tokenType.equals("TK_IDENTIFIER")) {
+            t.setNameId(nameTable.intern(tokenName));
+        }
         tokenArrayList.add(t);
 
         lineCol += tokenName.length();
@@ -320,7 +350,7 @@ public final class TokenScanner {
         tokenName = "";
     }
 
-    public static void handleNumber() {
+    public void handleNumber() {
         readingNumber = false;
         if (isFloat) {
 //            System.out.println("TK_FLOATLIT: " + tokenName);
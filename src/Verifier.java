@@ -0,0 +1,722 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/*
+Checks the code of a program before it runs and works out the type of every operand stack slot at
+every instruction and the greatest depth of the stack. The Simulator runs a verified program on its
+fast path, an int stack of that depth without casts or checks of the depth, see Simulator.runVerified.
+
+Malformed code is rejected with an Error:
+    an opcode that does not exist, an instruction that runs past the end of the code or a jump,
+    switch or call into the middle of an instruction
+    a PUSHF of a constant that does not exist, a global outside of the data, a frame address
+    outside of the frame of its procedure or in the main program
+    a CALL of an address that is not an ENTER, an ENTER that is not the first instruction of a
+    procedure or a RET in the main program
+    popping the empty stack, a LOOKUPSWITCH with unsorted keys
+    paths that meet with different stack depths, RETs of one procedure with different stacks
+    a boolean where a number is expected or a number where a boolean is, which the checked path
+    cannot cast either, an opcode the Simulator does not run
+
+Well formed code that the checked path runs but the fast path cannot is not verified, getReason
+tells why. The checked path runs it as before and fails the same way if it gets that far:
+    an int where a real is expected or a real where an int is, like a FADD of a real loaded by
+    PUSH, which loads ints, or a value printed whose type depends on the path that reached it
+    a jump to a label in another procedure, a goto out of a procedure
+
+Every procedure is followed once from its entry, not once per call. The slots of the caller below
+the entry are words (ints or reals) that the procedure may pop. At its RET the procedure has popped
+k of them and pushed its results in their place, which is the effect of its CALLs:
+
+    entry:   ENTER 8                 depth 0
+             POP fp+4                depth -1, popped the argument
+             ...
+             PUSH fp+0               depth 0, k = 1, one int result
+             RET
+
+Procedures are followed until the effects of all of them are known, recursion included.
+ */
+public final class Verifier {
+    // Types of stack slots, the same values as the trace tags of the Simulator
+    static final byte EMPTY = 0; // no slot
+    static final byte INT = 1;
+    static final byte REAL = 2;
+    static final byte BOOL = 3;
+    static final byte WORD = 4; // an int or the bits of a real, from a caller or paths that meet
+    static final byte ANY = 5; // a boolean where paths meet with a word
+
+    private static final Parser.OP_CODE[] OP_CODES = Parser.OP_CODE.values();
+
+    /*
+    The stack at an instruction relative to the entry of its procedure, depth from low up to 0 are
+    the slots of the caller it popped and pushed again
+     */
+    private static final class State {
+        private int low = 0; // lowest depth reached
+        private int depth = 0;
+        private byte[] slots = new byte[8]; // type of the slot at depth d at d - low
+
+        State copy() {
+            State state = new State();
+            state.low = low;
+            state.depth = depth;
+            state.slots = Arrays.copyOf(slots, Math.max(1, depth - low));
+
+            return state;
+        }
+
+        byte typeAt(int position) {
+            return position < low ? WORD : slots[position - low];
+        }
+
+        // Merge state into this one, true if this changed
+        boolean join(State state) {
+            int joinedLow = Math.min(low, state.low);
+            byte[] joinedSlots = new byte[Math.max(1, depth - joinedLow)];
+            boolean changed = joinedLow != low;
+            for (int position = joinedLow; position < depth; position++) {
+                byte type = Verifier.join(typeAt(position), state.typeAt(position));
+                joinedSlots[position - joinedLow] = type;
+                changed |= type != typeAt(position);
+            }
+
+            low = joinedLow;
+            slots = joinedSlots;
+            return changed;
+        }
+    }
+
+    private static byte join(byte type1, byte type2) {
+        if (type1 == type2) {
+            return type1;
+        }
+
+        return isWord(type1) && isWord(type2) ? WORD : ANY;
+    }
+
+    // Types POP and PUT store
+    private static boolean isWord(byte type) {
+        return type == INT || type == REAL || type == WORD;
+    }
+
+    private static final class Procedure {
+        final int entry;
+        final boolean main;
+        int frameSize = 0;
+
+        HashMap<Integer, State> statesHashMap = new HashMap<>(); // stack at the jump targets
+        State result = null; // stack at RET, null until a RET is reached
+        int maxDepth = 0; // above the entry, without the procedures it calls
+        ArrayList<int[]> callsArrayList = new ArrayList<>(); // {depth, entry} of every call
+
+        Procedure(int entry, boolean main) {
+            this.entry = entry;
+            this.main = main;
+        }
+    }
+
+    private final PcxFile pcxFile;
+    private final ByteBuffer code;
+    private final int codeSize;
+
+    private final BitSet instructions = new BitSet(); // addresses of instructions
+    private final BitSet operands = new BitSet(); // addresses of operand bytes
+    private final BitSet targets = new BitSet(); // addresses jumped, switched or called to
+
+    private final Procedure main;
+    private final TreeMap<Integer, Procedure> proceduresTreeMap = new TreeMap<>(); // by entry
+    private final HashMap<Integer, Procedure> ownersHashMap = new HashMap<>(); // procedure of every target
+
+    private final byte[] types; // type of the top of the stack before the instruction at every address
+    private String reason = null;
+    private int maxStack = 0;
+    private int procedureStack = 0;
+
+    private Verifier(PcxFile pcxFile) {
+        this.pcxFile = pcxFile;
+        this.code = pcxFile.getCode();
+        this.codeSize = code.limit();
+        this.types = new byte[codeSize];
+        this.main = new Procedure(pcxFile.getEntry(), true);
+    }
+
+    // Verify the code of pcxFile, throws an Error if it is malformed
+    public static Verifier verify(PcxFile pcxFile) {
+        Verifier verifier = new Verifier(pcxFile);
+        verifier.decode();
+        verifier.analyze();
+
+        return verifier;
+    }
+
+    // true when the fast path can run the program
+    public boolean isVerified() {
+        return reason == null;
+    }
+
+    // Why the program is not verified, null if it is
+    public String getReason() {
+        return reason;
+    }
+
+    // Greatest depth of the operand stack, -1 if it grows with the depth of recursive calls
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    // Greatest depth of the operand stack the main program or a procedure reaches above its entry, without its calls
+    public int getProcedureStack() {
+        return procedureStack;
+    }
+
+    // Type of the top of the stack before the instruction at address, WORD for a slot of the caller
+    byte getType(int address) {
+        return types[address];
+    }
+
+    private Error reject(int address, String what) {
+        return new Error(String.format("Malformed code at address %d: %s", address, what));
+    }
+
+    // A stack slot of type where expected is, a real/int mismatch only is not verified
+    private void checkType(int address, byte type, byte expected) {
+        if (type == expected) {
+            return;
+        }
+
+        String what = String.format("%s of %s", OP_CODES[code.get(address)], getName(type));
+        if (!isWord(type) || !isWord(expected)) {
+            throw reject(address, what);
+        }
+        unverified(address, what);
+    }
+
+    // The first reason the fast path cannot run the program
+    private void unverified(int address, String what) {
+        if (reason == null) {
+            reason = String.format("%s at address %d", what, address);
+        }
+    }
+
+    private int operand(int address, int index) {
+        return code.getInt(address + 1 + index * 4);
+    }
+
+    /*
+    Decode every instruction reachable from the entry and the procedures it calls, checking the
+    instructions do not overlap and the jumps land on instructions
+     */
+    private void decode() {
+        ArrayDeque<Integer> workArrayDeque = new ArrayDeque<>();
+        workArrayDeque.add(main.entry);
+        targets.set(main.entry);
+
+        while (!workArrayDeque.isEmpty()) {
+            int address = workArrayDeque.poll();
+            int previous = address; // the instruction before address
+            boolean next = true;
+
+            while (next && !instructions.get(address)) {
+                if (address < 0 || address >= codeSize) {
+                    throw reject(previous, String.format("runs past the end of the code to %d", address));
+                }
+                if (operands.get(address)) {
+                    throw reject(address, "a jump target in the middle of an instruction");
+                }
+                if ((code.get(address) & 0xff) >= OP_CODES.length) {
+                    throw reject(address, String.format("opcode %d does not exist", code.get(address) & 0xff));
+                }
+
+                Parser.OP_CODE opCode = OP_CODES[code.get(address)];
+                int size = getSize(address, opCode);
+                for (int i = address + 1; i < address + size; i++) {
+                    if (instructions.get(i) || operands.get(i)) {
+                        throw reject(address, "overlaps another instruction");
+                    }
+                }
+                instructions.set(address);
+                operands.set(address + 1, address + size);
+
+                switch (opCode) {
+                    case JMP:
+                        addTarget(address, operand(address, 0), workArrayDeque);
+                        next = false;
+                        break;
+                    case JFALSE:
+                    case JTRUE:
+                        addTarget(address, operand(address, 0), workArrayDeque);
+                        break;
+                    case FOR_LOOP:
+                    case FOR_NEXT:
+                        addTarget(address, operand(address, 2), workArrayDeque);
+                        break;
+                    case TABLESWITCH:
+                        addTarget(address, operand(address, 0), workArrayDeque);
+                        for (int i = 3; i < (size - 1) / 4; i++) {
+                            addTarget(address, operand(address, i), workArrayDeque);
+                        }
+                        next = false;
+                        break;
+                    case LOOKUPSWITCH:
+                        addTarget(address, operand(address, 0), workArrayDeque);
+                        for (int i = 0; i < operand(address, 1); i++) {
+                            if (i > 0 && operand(address, 2 + i * 2) <= operand(address, i * 2)) {
+                                throw reject(address, "keys are not sorted");
+                            }
+                            addTarget(address, operand(address, 3 + i * 2), workArrayDeque);
+                        }
+                        next = false;
+                        break;
+                    case CALL: {
+                        int entry = operand(address, 0);
+                        if (entry < 0 || entry >= codeSize || code.get(entry) != Parser.OP_CODE.ENTER.ordinal()) {
+                            throw reject(address, String.format("calls %d, which is not an ENTER", entry));
+                        }
+                        addTarget(address, entry, workArrayDeque);
+                        if (!proceduresTreeMap.containsKey(entry)) {
+                            proceduresTreeMap.put(entry, new Procedure(entry, false));
+                        }
+                        break;
+                    }
+                    case RET:
+                    case HALT:
+                        next = false;
+                        break;
+                    default:
+                }
+
+                previous = address;
+                address += size;
+            }
+        }
+    }
+
+    // Bytes of the instruction at address, checking it ends within the code
+    private int getSize(int address, Parser.OP_CODE opCode) {
+        long size;
+        if (opCode == Parser.OP_CODE.TABLESWITCH) {
+            checkEnd(address, 13);
+            size = 13 + ((long) operand(address, 2) - operand(address, 1) + 1) * 4;
+            if (size < 13) {
+                throw reject(address, "the switch ends before it starts");
+            }
+        } else if (opCode == Parser.OP_CODE.LOOKUPSWITCH) {
+            checkEnd(address, 9);
+            size = 9 + (long) operand(address, 1) * 8;
+            if (size < 9) {
+                throw reject(address, "the switch has a negative number of keys");
+            }
+        } else {
+            size = 1 + opCode.operands * 4;
+        }
+
+        checkEnd(address, size);
+        return (int) size;
+    }
+
+    private void checkEnd(int address, long size) {
+        if (address + size > codeSize) {
+            throw reject(address, "runs past the end of the code");
+        }
+    }
+
+    private void addTarget(int address, int target, ArrayDeque<Integer> workArrayDeque) {
+        if (target < 0 || target >= codeSize) {
+            throw reject(address, String.format("goes to %d, outside of the code", target));
+        }
+
+        targets.set(target);
+        workArrayDeque.add(target);
+    }
+
+    // Follow the stack through the procedures until their effects no longer change, then through the main program
+    private void analyze() {
+        boolean changed;
+        do {
+            changed = false;
+            for (Procedure procedure : proceduresTreeMap.values()) {
+                changed |= analyze(procedure);
+            }
+        } while (changed);
+        analyze(main);
+
+        // a procedure called from a target it reaches again is recursive, its stack has no bound
+        HashMap<Procedure, Integer> needsHashMap = new HashMap<>();
+        maxStack = getNeed(main, needsHashMap);
+        procedureStack = main.maxDepth;
+        for (Procedure procedure : proceduresTreeMap.values()) {
+            procedureStack = Math.max(procedureStack, procedure.maxDepth);
+        }
+    }
+
+    // Stack procedure needs above its entry with the procedures it calls, -1 if that recurses
+    private int getNeed(Procedure procedure, HashMap<Procedure, Integer> needsHashMap) {
+        Integer need = needsHashMap.get(procedure);
+        if (need != null) {
+            return need;
+        }
+
+        needsHashMap.put(procedure, -1); // until known, a call back to it is recursion
+        int maxNeed = procedure.maxDepth;
+        for (int[] call : procedure.callsArrayList) {
+            int calleeNeed = getNeed(proceduresTreeMap.get(call[1]), needsHashMap);
+            if (calleeNeed < 0) {
+                maxNeed = -1;
+                break;
+            }
+            maxNeed = Math.max(maxNeed, call[0] + calleeNeed);
+        }
+        needsHashMap.put(procedure, maxNeed);
+
+        return maxNeed;
+    }
+
+    // Follow the stack through procedure from its entry, true if its effect changed
+    private boolean analyze(Procedure procedure) {
+        State result = procedure.result != null ? procedure.result.copy() : null;
+
+        procedure.statesHashMap.clear();
+        procedure.callsArrayList.clear();
+        procedure.maxDepth = 0;
+
+        ArrayDeque<Integer> workArrayDeque = new ArrayDeque<>();
+        procedure.statesHashMap.put(procedure.entry, new State());
+        ownersHashMap.put(procedure.entry, procedure);
+        workArrayDeque.add(procedure.entry);
+        while (!workArrayDeque.isEmpty()) {
+            int address = workArrayDeque.poll();
+            walk(procedure, address, procedure.statesHashMap.get(address).copy(), workArrayDeque);
+        }
+
+        if (procedure.result == null) {
+            return result != null;
+        }
+
+        return result == null || result.low != procedure.result.low || result.depth != procedure.result.depth ||
+                result.join(procedure.result);
+    }
+
+    // Follow state from the target at address until its path ends or reaches another target
+    private void walk(Procedure procedure, int address, State state, ArrayDeque<Integer> workArrayDeque) {
+        while (true) {
+            Parser.OP_CODE opCode = OP_CODES[code.get(address)];
+            int next = address + getSize(address, opCode);
+            types[address] = state.depth > state.low ? state.slots[state.depth - 1 - state.low] :
+                    procedure.main ? EMPTY : WORD;
+
+            switch (opCode) {
+                case PUSH:
+                    checkData(procedure, address, operand(address, 0), 4);
+                    push(state, INT);
+                    break;
+                case PUSHI:
+                    push(state, INT);
+                    break;
+                case PUSHF:
+                    if (operand(address, 0) < 0 || operand(address, 0) >= pcxFile.getConstants().length) {
+                        throw reject(address, String.format("constant %d does not exist", operand(address, 0)));
+                    }
+                    push(state, REAL);
+                    break;
+                case POP:
+                    checkData(procedure, address, operand(address, 0), 4);
+                    popWord(procedure, address, state);
+                    break;
+                case GET:
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case PUT:
+                    popWord(procedure, address, state);
+                    pop(procedure, address, state, INT);
+                    break;
+                case LOAD8:
+                    checkData(procedure, address, operand(address, 0), 1);
+                    push(state, INT);
+                    break;
+                case STORE8:
+                    checkData(procedure, address, operand(address, 0), 1);
+                    popWord(procedure, address, state);
+                    break;
+                case GET8:
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case PUT8:
+                    popWord(procedure, address, state);
+                    pop(procedure, address, state, INT);
+                    break;
+                case SET_CLEAR:
+                    checkData(procedure, address, operand(address, 0), Parser.SET_SIZE);
+                    push(state, INT);
+                    break;
+                case SET_INCL:
+                    // the set stays
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case SET_RANGE:
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case SET_COPY:
+                    checkData(procedure, address, operand(address, 0), Parser.SET_SIZE);
+                    pop(procedure, address, state, INT);
+                    break;
+                case SET_UNION:
+                case SET_INTER:
+                case SET_DIFF:
+                    checkData(procedure, address, operand(address, 0), Parser.SET_SIZE);
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case SET_EQL:
+                case SET_NEQL:
+                case SET_IN:
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, BOOL);
+                    break;
+                case SET_TEST:
+                    pop(procedure, address, state, INT);
+                    push(state, BOOL);
+                    break;
+                case CVR: {
+                    byte type = pop(procedure, address, state, EMPTY);
+                    if (type != REAL) {
+                        checkType(address, type, INT);
+                    }
+                    push(state, REAL);
+                    break;
+                }
+                case XCHG: {
+                    byte type1 = pop(procedure, address, state, EMPTY);
+                    byte type2 = pop(procedure, address, state, EMPTY);
+                    push(state, type1);
+                    push(state, type2);
+                    break;
+                }
+                case JMP:
+                    merge(procedure, address, operand(address, 0), state, workArrayDeque);
+                    return;
+                case JFALSE:
+                case JTRUE:
+                    pop(procedure, address, state, BOOL);
+                    merge(procedure, address, operand(address, 0), state, workArrayDeque);
+                    break;
+                case TABLESWITCH:
+                case LOOKUPSWITCH:
+                    pop(procedure, address, state, INT);
+                    merge(procedure, address, operand(address, 0), state, workArrayDeque);
+                    if (opCode == Parser.OP_CODE.TABLESWITCH) {
+                        for (int i = 3; i < (next - address - 1) / 4; i++) {
+                            merge(procedure, address, operand(address, i), state, workArrayDeque);
+                        }
+                    } else {
+                        for (int i = 0; i < operand(address, 1); i++) {
+                            merge(procedure, address, operand(address, 3 + i * 2), state, workArrayDeque);
+                        }
+                    }
+                    return;
+                case FOR_LOOP:
+                    // the limit goes to the slots of the loop, the exit and the body see the same stack
+                    checkData(procedure, address, operand(address, 1), 4);
+                    checkData(procedure, address, operand(address, 3), 8);
+                    pop(procedure, address, state, INT);
+                    merge(procedure, address, operand(address, 2), state, workArrayDeque);
+                    break;
+                case FOR_NEXT:
+                    checkData(procedure, address, operand(address, 1), 4);
+                    checkData(procedure, address, operand(address, 4), 8);
+                    merge(procedure, address, operand(address, 2), state, workArrayDeque);
+                    break;
+                case INCR:
+                    checkData(procedure, address, operand(address, 0), 4);
+                    break;
+                case CALL: {
+                    Procedure callee = proceduresTreeMap.get(operand(address, 0));
+                    procedure.callsArrayList.add(new int[]{state.depth, callee.entry});
+                    if (callee.result == null) {
+                        // returns as far as is known yet
+                        return;
+                    }
+                    for (int i = callee.result.low; i < 0; i++) {
+                        popWord(procedure, address, state);
+                    }
+                    for (int position = callee.result.low; position < callee.result.depth; position++) {
+                        push(state, callee.result.typeAt(position));
+                    }
+                    break;
+                }
+                case ENTER:
+                    if (address != procedure.entry) {
+                        throw reject(address, "ENTER is not the first instruction of a procedure");
+                    }
+                    if (operand(address, 0) < 0) {
+                        throw reject(address, String.format("frame of %d bytes", operand(address, 0)));
+                    }
+                    procedure.frameSize = operand(address, 0);
+                    break;
+                case RET:
+                    if (procedure.main) {
+                        throw reject(address, "RET in the main program");
+                    }
+                    if (procedure.result == null) {
+                        procedure.result = state.copy();
+                    } else if (procedure.result.low != state.low || procedure.result.depth != state.depth) {
+                        throw reject(address, "RETs with different stacks");
+                    } else {
+                        procedure.result.join(state);
+                    }
+                    return;
+                case HALT:
+                    return;
+                case PRINT_INT: {
+                    byte type = pop(procedure, address, state, EMPTY);
+                    if (type != INT && type != REAL && type != BOOL) {
+                        unverified(address, String.format("PRINT_INT of %s", getName(type)));
+                    }
+                    break;
+                }
+                case PRINT_REAL: {
+                    byte type = pop(procedure, address, state, EMPTY);
+                    if (type == ANY) {
+                        unverified(address, String.format("PRINT_REAL of %s", getName(type)));
+                    }
+                    break;
+                }
+                case PRINT_BOOL:
+                case PRINT_CHAR:
+                    pop(procedure, address, state, INT);
+                    break;
+                case PRINT_NEWLINE:
+                    break;
+                case EQL:
+                case NEQL:
+                case LSS:
+                case LEQ:
+                case GTR:
+                case GEQ:
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, BOOL);
+                    break;
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                    pop(procedure, address, state, INT);
+                    pop(procedure, address, state, INT);
+                    push(state, INT);
+                    break;
+                case FADD:
+                case FSUB:
+                case FMULT:
+                case FDIV:
+                    pop(procedure, address, state, REAL);
+                    pop(procedure, address, state, REAL);
+                    push(state, REAL);
+                    break;
+                default:
+                    throw reject(address, String.format("%s, which the Simulator does not run", opCode));
+            }
+
+            procedure.maxDepth = Math.max(procedure.maxDepth, state.depth);
+
+            address = next;
+            if (targets.get(address)) {
+                merge(procedure, address, address, state, workArrayDeque);
+                return;
+            }
+        }
+    }
+
+    private static void push(State state, byte type) {
+        if (state.depth - state.low == state.slots.length) {
+            state.slots = Arrays.copyOf(state.slots, state.slots.length * 2);
+        }
+        state.slots[state.depth++ - state.low] = type;
+    }
+
+    // Pop a slot of type, any type for EMPTY, below the entry of a procedure that is a slot of its caller
+    private byte pop(Procedure procedure, int address, State state, byte type) {
+        byte popped;
+        if (state.depth > state.low) {
+            popped = state.slots[--state.depth - state.low];
+        } else if (procedure.main) {
+            throw reject(address, String.format("%s pops the empty stack", OP_CODES[code.get(address)]));
+        } else {
+            state.low--;
+            state.depth--;
+            popped = WORD;
+        }
+
+        if (type != EMPTY) {
+            checkType(address, popped, type);
+        }
+        return popped;
+    }
+
+    // Pop a value POP, PUT, STORE8 or PUT8 store
+    private void popWord(Procedure procedure, int address, State state) {
+        byte popped = pop(procedure, address, state, EMPTY);
+        if (!isWord(popped)) {
+            throw reject(address, String.format("%s of %s", OP_CODES[code.get(address)], getName(popped)));
+        }
+    }
+
+    // Merge state into the one at target, to be followed again if it changed
+    private void merge(Procedure procedure, int address, int target, State state, ArrayDeque<Integer> workArrayDeque) {
+        Procedure owner = ownersHashMap.putIfAbsent(target, procedure);
+        if (owner != null && owner != procedure) {
+            unverified(address, String.format("a jump to %d in another procedure", target));
+            return;
+        }
+
+        State targetState = procedure.statesHashMap.get(target);
+        if (targetState == null) {
+            procedure.statesHashMap.put(target, state.copy());
+            workArrayDeque.add(target);
+        } else if (targetState.depth != state.depth) {
+            throw reject(address, String.format("a jump to %d with stack depth %d where it is %d", target, state.depth, targetState.depth));
+        } else if (targetState.join(state)) {
+            workArrayDeque.add(target);
+        }
+    }
+
+    // size bytes of a global within the data or of a frame address within the frame of procedure
+    private void checkData(Procedure procedure, int address, int data, int size) {
+        if ((data & Parser.FRAME_ADDRESS) != 0) {
+            int offset = data ^ Parser.FRAME_ADDRESS;
+            if (procedure.main || offset < 0 || offset + size > procedure.frameSize) {
+                throw reject(address, String.format("frame address fp+%d outside of the frame", offset));
+            }
+        } else if (data < 0 || data + size > pcxFile.getDataSize()) {
+            throw reject(address, String.format("global %d outside of the data", data));
+        }
+    }
+
+    private static String getName(byte type) {
+        switch (type) {
+            case INT:
+                return "an int";
+            case REAL:
+                return "a real";
+            case BOOL:
+                return "a boolean";
+            case WORD:
+                return "a word";
+            default:
+                return "a boolean or word";
+        }
+    }
+}